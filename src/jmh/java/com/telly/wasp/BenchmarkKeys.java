@@ -0,0 +1,74 @@
+package com.telly.wasp;
+
+import java.util.Random;
+
+/**
+ * Keys and access sequences shared by the benchmarks. Sequences are skewed the way image
+ * lists are: a few bitmaps are shown over and over, most only once in a while.
+ */
+final class BenchmarkKeys {
+    /**
+     * Length of access sequences, a power of two so a running index can be masked
+     */
+    static final int SEQUENCE_LENGTH = 1 << 16;
+    static final int SEQUENCE_MASK = SEQUENCE_LENGTH - 1;
+    private static final long SEED = 42L;
+
+    private BenchmarkKeys() {
+    }
+
+    /**
+     * @return uris as served by an image CDN, {@code count} of them
+     */
+    static String[] uris(int count) {
+        String[] uris = new String[count];
+        for (int i = 0; i < count; i++) {
+            uris[i] = "http://images.example.com/photos/" + (i * 7919L) + "/large.jpg?v=" + (i & 7);
+        }
+        return uris;
+    }
+
+    /**
+     * @return {@link #SEQUENCE_LENGTH} indexes below {@code count}, drawn from a Zipf
+     *         distribution of given exponent, 0 for uniform ones
+     */
+    static int[] zipfSequence(int count, double exponent) {
+        double[] cumulative = new double[count];
+        double sum = 0d;
+        for (int i = 0; i < count; i++) {
+            sum += 1d / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+        Random random = new Random(SEED);
+        int[] sequence = new int[SEQUENCE_LENGTH];
+        for (int i = 0; i < SEQUENCE_LENGTH; i++) {
+            double target = random.nextDouble() * sum;
+            int low = 0;
+            int high = count - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (cumulative[middle] < target) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            sequence[i] = low;
+        }
+        return sequence;
+    }
+
+    /**
+     * @return {@code count} weights from {@code min} to {@code max}, most of them small,
+     *         like thumbnails mixed with a few full screen bitmaps
+     */
+    static int[] weights(int count, int min, int max) {
+        Random random = new Random(SEED);
+        int[] weights = new int[count];
+        for (int i = 0; i < count; i++) {
+            double skewed = Math.pow(random.nextDouble(), 3d);
+            weights[i] = min + (int) (skewed * (max - min));
+        }
+        return weights;
+    }
+}
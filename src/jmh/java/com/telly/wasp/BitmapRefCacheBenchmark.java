@@ -0,0 +1,108 @@
+package com.telly.wasp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Churn of the in memory bitmap cache as a scrolling list causes it: look a ref up, on a
+ * miss put a freshly loaded one evicting others. Refs hold no bitmap, their size is set
+ * as if they did, so nothing of Android runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitmapRefCacheBenchmark {
+    private static final long MAX_MEMORY = 256L * 1024L * 1024L;
+    private static final int TARGET_WIDTH = 320;
+    private static final int TARGET_HEIGHT = 240;
+    private static final int MIN_BITMAP_SIZE = 20 * 1024;
+    private static final int MAX_BITMAP_SIZE = 2 * 1024 * 1024;
+
+    @Param({"LRU", "WINDOW_TINY_LFU"})
+    public String policy;
+    @Param({"false", "true"})
+    public boolean metricsEnabled;
+    @Param({"4000"})
+    public int uriCount;
+
+    BitmapHelper.BitmapRefCache cache;
+    String[] uris;
+    int[] sizes;
+    int[] sequence;
+    final AtomicInteger offsets = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        uris = BenchmarkKeys.uris(uriCount);
+        sizes = BenchmarkKeys.weights(uriCount, MIN_BITMAP_SIZE, MAX_BITMAP_SIZE);
+        sequence = BenchmarkKeys.zipfSequence(uriCount, 0.8d);
+        Metrics metrics = new Metrics(new Metrics.Source() {
+            @Override
+            public void fill(Metrics.Snapshot snapshot) {
+            }
+        });
+        metrics.setEnabled(metricsEnabled);
+        cache = new BitmapHelper.BitmapRefCache(new BitmapPool(0), new WeakBitmapCache(),
+                new MemoryBudget(MAX_MEMORY, false), metrics);
+        cache.setPolicy(BitmapHelper.CachePolicy.valueOf(policy));
+        for (int index : sequence) {
+            show(index);
+        }
+    }
+
+    /**
+     * Where a thread is in the access sequence
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int index;
+
+        @Setup
+        public void setUp(BitmapRefCacheBenchmark benchmark) {
+            index = benchmark.offsets.getAndAdd(BenchmarkKeys.SEQUENCE_LENGTH / 16);
+        }
+
+        int next() {
+            return index++ & BenchmarkKeys.SEQUENCE_MASK;
+        }
+    }
+
+    BitmapHelper.BitmapRef show(int index) {
+        String uri = uris[index];
+        BitmapHelper.BitmapRef ref = cache.lookup(uri, TARGET_WIDTH, TARGET_HEIGHT, null);
+        if (ref == null) {
+            ref = new BitmapHelper.BitmapRef(uri, TARGET_WIDTH, TARGET_HEIGHT);
+            ref.currentSize = sizes[index];
+            cache.putAndObserve(ref.getCacheKey(), ref);
+        }
+        return ref;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public BitmapHelper.BitmapRef churn(Cursor cursor) {
+        return show(sequence[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public BitmapHelper.BitmapRef churnContended(Cursor cursor) {
+        return show(sequence[cursor.next()]);
+    }
+}
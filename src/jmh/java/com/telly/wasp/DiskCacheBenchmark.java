@@ -0,0 +1,110 @@
+package com.telly.wasp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups in the index of {@link DiskCache}, hits including the journal line they append
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskCacheBenchmark {
+    private static final int ENTRY_LENGTH = 256;
+
+    @Param({"1000", "10000"})
+    public int entryCount;
+
+    private File directory;
+    private DiskCache cache;
+    private String[] keys;
+    private String[] missingKeys;
+    private int index;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = new File(System.getProperty("java.io.tmpdir"), "wasp-disk-cache-benchmark-" + System.nanoTime());
+        cache = new DiskCache(directory, Long.MAX_VALUE);
+        String[] uris = BenchmarkKeys.uris(entryCount * 2);
+        keys = new String[entryCount];
+        missingKeys = new String[entryCount];
+        byte[] content = new byte[ENTRY_LENGTH];
+        for (int i = 0; i < entryCount; i++) {
+            keys[i] = BitmapHelper.diskKey(uris[i]);
+            missingKeys[i] = BitmapHelper.diskKey(uris[entryCount + i]);
+            DiskCache.Editor editor = cache.edit(keys[i]);
+            FileOutputStream output = new FileOutputStream(editor.getFile());
+            try {
+                output.write(content);
+            } finally {
+                output.close();
+            }
+            editor.commit(uris[i]);
+        }
+        cache.flush();
+    }
+
+    @TearDown
+    public void tearDown() {
+        delete(directory);
+    }
+
+    private int next() {
+        int i = index++;
+        if (index == entryCount) {
+            index = 0;
+        }
+        return i;
+    }
+
+    @Benchmark
+    public File getHit() {
+        return cache.get(keys[next()]);
+    }
+
+    @Benchmark
+    public File getMiss() {
+        return cache.get(missingKeys[next()]);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return cache.contains(keys[next()]);
+    }
+
+    /**
+     * Hit then reading the origin back from the file, as every verified lookup does
+     */
+    @Benchmark
+    public String getVerified() {
+        return DiskCache.readOrigin(cache.get(keys[next()]));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,85 @@
+package com.telly.wasp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a write into a full {@link UpdateableLruCache} weighing its entries, every
+ * write of a new key evicting one or several entries to make room
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvictionBenchmark {
+    private static final int KEY_COUNT = 1 << 14;
+    private static final int MIN_WEIGHT = 16;
+
+    @Param({"LRU", "WINDOW_TINY_LFU"})
+    public String policy;
+    /**
+     * Heaviest entry relative to the lightest one, 1 when all weigh the same
+     */
+    @Param({"1", "64", "1024"})
+    public int weightRatio;
+
+    private UpdateableLruCache<String, Integer> cache;
+    private String[] keys;
+    private Integer[] weights;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        keys = BenchmarkKeys.uris(KEY_COUNT);
+        int[] drawn = BenchmarkKeys.weights(KEY_COUNT, MIN_WEIGHT, MIN_WEIGHT * weightRatio);
+        weights = new Integer[KEY_COUNT];
+        long total = 0L;
+        for (int i = 0; i < KEY_COUNT; i++) {
+            weights[i] = drawn[i];
+            total += drawn[i];
+        }
+        // holds about a tenth of the keys, so writes cycling through all of them always evict
+        int maxSize = (int) (total / 10L);
+        EvictionPolicy<String, Integer> evictionPolicy = BitmapHelper.CachePolicy.valueOf(policy) == BitmapHelper.CachePolicy.LRU
+                ? new LruPolicy<String, Integer>() : new WindowTinyLfuPolicy<String, Integer>();
+        cache = new UpdateableLruCache<String, Integer>(maxSize, evictionPolicy) {
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+        };
+        for (int i = 0; i < KEY_COUNT; i++) {
+            cache.put(keys[i], weights[i]);
+        }
+    }
+
+    @Benchmark
+    public Integer putEvicting() {
+        int i = index++ & (KEY_COUNT - 1);
+        return cache.put(keys[i], weights[i]);
+    }
+
+    /**
+     * Same preceded by a read of another key, so the frequency aware policy has something
+     * to tell entries apart by
+     */
+    @Benchmark
+    public Integer getThenPutEvicting() {
+        int i = index++ & (KEY_COUNT - 1);
+        cache.get(keys[(i * 31) & (KEY_COUNT - 1)]);
+        return cache.put(keys[i], weights[i]);
+    }
+}
@@ -0,0 +1,65 @@
+package com.telly.wasp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deriving the keys every load goes through: the memory cache key, its hash as the map
+ * computes it, and the file name of the disk cache entry
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyBenchmark {
+    private static final int URI_COUNT = 1024;
+
+    private String[] uris;
+    private Transformation transformation;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        uris = BenchmarkKeys.uris(URI_COUNT);
+        transformation = Transformations.chain(Transformations.centerCrop(320, 240), Transformations.roundCorners(8f));
+    }
+
+    private String nextUri() {
+        return uris[index++ & (URI_COUNT - 1)];
+    }
+
+    @Benchmark
+    public String cacheKey() {
+        return BitmapHelper.cacheKey(nextUri(), 320, 240);
+    }
+
+    @Benchmark
+    public String cacheKeyTransformed() {
+        return BitmapHelper.cacheKey(nextUri(), 320, 240, transformation);
+    }
+
+    /**
+     * Hash of a key built for the lookup, never cached in the string yet
+     */
+    @Benchmark
+    public int cacheKeyHash() {
+        return BitmapHelper.cacheKey(nextUri(), 320, 240).hashCode();
+    }
+
+    @Benchmark
+    public String diskKey() {
+        return BitmapHelper.diskKey(nextUri());
+    }
+}
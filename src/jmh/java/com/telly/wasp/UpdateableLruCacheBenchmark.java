@@ -0,0 +1,155 @@
+package com.telly.wasp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lookups, writes and trims of {@link UpdateableLruCache} under both eviction policies,
+ * from one thread and from as many as there are processors
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateableLruCacheBenchmark {
+    @Param({"LRU", "WINDOW_TINY_LFU"})
+    public String policy;
+    /**
+     * Distinct keys accessed, five times what fits
+     */
+    @Param({"10000"})
+    public int keyCount;
+    @Param({"2000"})
+    public int maxSize;
+
+    private UpdateableLruCache<String, String> cache;
+    String[] keys;
+    int[] sequence;
+    /**
+     * Spreads the threads over the sequence, so they do not hit the same keys in lockstep
+     */
+    final AtomicInteger offsets = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        keys = BenchmarkKeys.uris(keyCount);
+        sequence = BenchmarkKeys.zipfSequence(keyCount, 0.9d);
+        cache = newCache(policy, maxSize);
+        for (int index : sequence) {
+            String key = keys[index];
+            if (cache.get(key) == null) {
+                cache.put(key, key);
+            }
+        }
+    }
+
+    static UpdateableLruCache<String, String> newCache(String policy, int maxSize) {
+        EvictionPolicy<String, String> evictionPolicy = BitmapHelper.CachePolicy.valueOf(policy) == BitmapHelper.CachePolicy.LRU
+                ? new LruPolicy<String, String>() : new WindowTinyLfuPolicy<String, String>();
+        return new UpdateableLruCache<String, String>(maxSize, evictionPolicy);
+    }
+
+    /**
+     * Where a thread is in the access sequence
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int index;
+
+        @Setup
+        public void setUp(UpdateableLruCacheBenchmark benchmark) {
+            index = benchmark.offsets.getAndAdd(BenchmarkKeys.SEQUENCE_LENGTH / 16);
+        }
+
+        String next(UpdateableLruCacheBenchmark benchmark) {
+            return benchmark.keys[benchmark.sequence[index++ & BenchmarkKeys.SEQUENCE_MASK]];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String get(Cursor cursor) {
+        return cache.get(cursor.next(this));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String getContended(Cursor cursor) {
+        return cache.get(cursor.next(this));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String put(Cursor cursor) {
+        String key = cursor.next(this);
+        return cache.put(key, key);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String putContended(Cursor cursor) {
+        String key = cursor.next(this);
+        return cache.put(key, key);
+    }
+
+    /**
+     * Readers missing now and then while another thread loads what they missed
+     */
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public String readWriteGet(Cursor cursor) {
+        return cache.get(cursor.next(this));
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public String readWritePut(Cursor cursor) {
+        String key = cursor.next(this);
+        return cache.put(key, key);
+    }
+
+    /**
+     * A full cache trimmed to half its size, as on memory pressure
+     */
+    @State(Scope.Thread)
+    public static class Full {
+        UpdateableLruCache<String, String> cache;
+
+        @Setup(Level.Invocation)
+        public void fill(UpdateableLruCacheBenchmark benchmark) {
+            cache = newCache(benchmark.policy, benchmark.maxSize);
+            for (int i = 0; i < benchmark.maxSize; i++) {
+                String key = benchmark.keys[i];
+                cache.put(key, key);
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int trimHalf(Full full) {
+        full.cache.trimToSize(maxSize / 2);
+        return full.cache.size();
+    }
+}
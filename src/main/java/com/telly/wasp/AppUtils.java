@@ -9,8 +9,12 @@ import android.os.Build;
  * @version 1.0
  */
 final class AppUtils {
+    private static final int SDK_JELLY_BEAN_MR2_API_LEVEL = 18;
+    private static final int SDK_ICE_CREAM_SANDWICH_API_LEVEL = 14;
+    private static final int SDK_HONEYCOMB_MR1_API_LEVEL = 12;
     private static final int SDK_HONEYCOMB_API_LEVEL = 11;
     private static final int SDK_NINE_API_LEVEL = 9;
+    private static final int SDK_FROYO_API_LEVEL = 8;
 
     /**
      * Determine if current SDK version/API Level is Honeycomb (11)
@@ -22,6 +26,22 @@ final class AppUtils {
         return Build.VERSION.SDK_INT >= SDK_HONEYCOMB_API_LEVEL;
     }
 
+    public static boolean isHoneycombMR1Plus() {
+        return Build.VERSION.SDK_INT >= SDK_HONEYCOMB_MR1_API_LEVEL;
+    }
+
+    public static boolean isJellyBeanMR2Plus() {
+        return Build.VERSION.SDK_INT >= SDK_JELLY_BEAN_MR2_API_LEVEL;
+    }
+
+    public static boolean isIceCreamSandwichPlus() {
+        return Build.VERSION.SDK_INT >= SDK_ICE_CREAM_SANDWICH_API_LEVEL;
+    }
+
+    public static boolean isFroyoPlus() {
+        return Build.VERSION.SDK_INT >= SDK_FROYO_API_LEVEL;
+    }
+
     public static boolean isNinePlus() {
         return Build.VERSION.SDK_INT >= SDK_NINE_API_LEVEL;
     }
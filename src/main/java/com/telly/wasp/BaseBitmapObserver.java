@@ -14,6 +14,10 @@ public abstract class BaseBitmapObserver implements UrlHolder {
     private String mUrl;
     private final Handler mHandler;
     private boolean mTakeUriIntoAccount = true;
+    private volatile boolean mProgressive;
+    private int mTargetWidth;
+    private int mTargetHeight;
+    private Transformation mTransformation;
 
     protected BaseBitmapObserver(String url, Handler uiThreadHandler) {
         mUrl = url;
@@ -32,6 +36,51 @@ public abstract class BaseBitmapObserver implements UrlHolder {
         return mUrl;
     }
 
+    /**
+     * Asks for the bitmap to be decoded no bigger than needed to cover the given size.
+     * Bitmaps are cached per url and target size.
+     *
+     * @param width  target width in pixels, 0 if it does not matter
+     * @param height target height in pixels, 0 if it does not matter
+     */
+    public synchronized void setTargetSize(int width, int height) {
+        mTargetWidth = Math.max(0, width);
+        mTargetHeight = Math.max(0, height);
+    }
+
+    /**
+     * @return target width in pixels or 0 to get the bitmap at full size
+     */
+    public synchronized int getTargetWidth() {
+        return mTargetWidth;
+    }
+
+    /**
+     * @return target height in pixels or 0 to get the bitmap at full size
+     */
+    public synchronized int getTargetHeight() {
+        return mTargetHeight;
+    }
+
+    /**
+     * Asks for the bitmap to be transformed once decoded, e.g. cropped and rounded.
+     * Transformed bitmaps are cached per url, target size and transformation key, so
+     * observers asking for the same transformation share the result.
+     *
+     * @param transformation transformation to apply, null for none
+     * @see Transformations
+     */
+    public synchronized void setTransformation(Transformation transformation) {
+        mTransformation = transformation;
+    }
+
+    /**
+     * @return transformation applied to the bitmap or null if none
+     */
+    public synchronized Transformation getTransformation() {
+        return mTransformation;
+    }
+
     public Handler getHandler() {
         return mHandler;
     }
@@ -45,22 +94,86 @@ public abstract class BaseBitmapObserver implements UrlHolder {
 
         final String refUri = ref.getUri();
         if (!mTakeUriIntoAccount || (refUri != null && refUri.equals(mUrl))) {
+            if (data instanceof Bitmap) { // a preview
+                if (mProgressive) {
+                    doLoad(ref, (Bitmap) data, true);
+                }
+                return;
+            }
             final Bitmap bitmap = ref.getBitmap();
-            doLoad(ref, bitmap);
+            doLoad(ref, bitmap, false);
         }
     }
 
+    /**
+     * Asks for low resolution previews while the bitmap downloads, when it is a progressive
+     * JPEG or an interlaced PNG. Previews are delivered to
+     * {@link #doLoad(BitmapHelper.BitmapRef, Bitmap, boolean)} as intermediate, the final
+     * bitmap comes later to replace them. Off by default.
+     *
+     * @param progressive true to get previews
+     */
+    public void setProgressive(boolean progressive) {
+        mProgressive = progressive;
+    }
+
+    /**
+     * @return true if this observer gets previews while the bitmap downloads
+     */
+    public boolean isProgressive() {
+        return mProgressive;
+    }
+
+    /**
+     * Tells whether a pending load of the given uri is still wanted by this observer,
+     * loads no observer needs anymore get cancelled. By default it is as long as this
+     * observer is still associated to that uri.
+     * <p/>
+     * Called from loading threads.
+     *
+     * @param uri uri being loaded
+     * @return true if this observer still needs it
+     */
+    public boolean isStillNeeded(String uri) {
+        return !mTakeUriIntoAccount || (uri != null && uri.equals(getUrl()));
+    }
+
     public void setTakeUriIntoAccount(boolean takeUriIntoAccount) {
         mTakeUriIntoAccount = takeUriIntoAccount;
     }
 
     protected abstract void doLoad(BitmapHelper.BitmapRef ref, Bitmap bitmap);
 
+    /**
+     * @return true if this observer leases the bitmaps it gets and releases them once not
+     *         drawn anymore, see {@link BitmapLease}. Bitmaps handed to other observers are
+     *         never recycled.
+     */
+    boolean leasesBitmaps() {
+        return false;
+    }
+
+    /**
+     * Called with the loaded bitmap and, if progressive, with previews before it. By
+     * default previews are handled just like the loaded bitmap.
+     *
+     * @param intermediate true if the bitmap is a preview to be replaced by the loaded one
+     * @see #setProgressive(boolean)
+     */
+    protected void doLoad(BitmapHelper.BitmapRef ref, Bitmap bitmap, boolean intermediate) {
+        doLoad(ref, bitmap);
+    }
+
     public static class NoOpObserver extends BaseBitmapObserver{
         public NoOpObserver() {
             super(null, null);
         }
 
+        @Override
+        public boolean isStillNeeded(String uri) {
+            return true; // used to just get bitmaps into cache
+        }
+
         @Override
         protected void doLoad(BitmapHelper.BitmapRef ref, Bitmap bitmap) {
             // do nothing
@@ -1,20 +1,37 @@
 package com.telly.wasp;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 import android.os.Debug;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.String.format;
 
@@ -33,23 +50,109 @@ public class BitmapHelper {
     private static final String WASP_PREFIX = "wasp";
     private static final String MUTABLE_BITMAP_PREFIX = "mutable_%d_%d";
     private static final Random RANDOM = new Random(System.currentTimeMillis());
+    /**
+     * Fraction of the memory cache size given to the bitmap pool
+     */
+    private static final int POOL_SIZE_DIVIDER = 8;
+    private static final long DEFAULT_DISK_CACHE_SIZE = 50L * 1024L * 1024L; // 50 MiB
+    private static final int DEFAULT_PERSIST_QUALITY = 85;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+    };
     /**
      * On memory pool to add already loaded from file bitmaps
      * Note: will be purged on by itself in case of low memory
      */
     private final BitmapRefCache cache;
+    /**
+     * Bitmaps evicted from {@link #cache} waiting to be reused
+     */
+    private final BitmapPool pool;
+    /**
+     * Bitmaps evicted from {@link #cache} while still shown
+     */
+    private final WeakBitmapCache weakCache;
+    /**
+     * Encoded bytes of recently loaded bitmaps, checked before the disk cache
+     */
+    private final EncodedBitmapCache encodedCache;
     /**
      * the hard worker
      */
     private final BitmapLoader loader;
+    /**
+     * Warms the caches in background
+     */
+    private final Prefetcher prefetcher;
+    /**
+     * Persists bitmaps cached by the app
+     */
+    private final WriteBehindQueue writeBehind;
+    /**
+     * Latencies and counters of loads, disabled by default
+     */
+    private final Metrics metrics;
+    private volatile int persistQuality = DEFAULT_PERSIST_QUALITY;
+    /**
+     * Files downloaded or persisted, opened on first use as it needs a context
+     */
+    private DiskCache diskCache;
+    private long diskCacheMaxSize = DEFAULT_DISK_CACHE_SIZE;
+    /**
+     * Whether {@link #onTrimMemory(int)} is called by the system already
+     */
+    private boolean memoryCallbacksRegistered;
 
     /**
      * Unique constructor
      * must be quick as hell
      */
     private BitmapHelper() {
-        cache = new BitmapRefCache();
-        loader = new BitmapLoader();
+        MemoryBudget budget = BitmapRefCache.createBudget();
+        pool = new BitmapPool(budget.getInitialSize() / POOL_SIZE_DIVIDER);
+        weakCache = new WeakBitmapCache();
+        metrics = new Metrics(new Metrics.Source() {
+            @Override
+            public void fill(Metrics.Snapshot snapshot) {
+                fillMetrics(snapshot);
+            }
+        });
+        cache = new BitmapRefCache(pool, weakCache, budget, metrics);
+        encodedCache = new EncodedBitmapCache(EncodedBitmapCache.DEFAULT_MAX_SIZE);
+        prefetcher = new Prefetcher(new Prefetcher.Dispatcher() {
+            @Override
+            public boolean dispatch(Prefetcher.Request request) {
+                return dispatchPrefetch(request);
+            }
+        });
+        writeBehind = new WriteBehindQueue(new WriteBehindQueue.Writer() {
+            @Override
+            public void write(WriteBehindQueue.Write write) throws IOException {
+                try {
+                    persist(write);
+                } catch (IOException e) {
+                    Log.w(BitmapHelper.class.getSimpleName(), "Unable to persist " + write.uri, e);
+                    throw e;
+                }
+            }
+        }, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "wasp-write-behind");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        }));
+        loader = new BitmapLoader(cache, pool, encodedCache, prefetcher, writeBehind, metrics);
     }
 
     /**
@@ -64,12 +167,272 @@ public class BitmapHelper {
         return instance;
     }
 
+    /**
+     * @return the pool evicted bitmaps go to, use it to tune its size or check its stats
+     */
+    public BitmapPool getBitmapPool() {
+        return pool;
+    }
+
+    /**
+     * @return the tier bitmaps evicted while still shown go to, use it to check its stats
+     */
+    public WeakBitmapCache getWeakCache() {
+        return weakCache;
+    }
+
+    /**
+     * @return the tier keeping encoded bytes of recently loaded bitmaps, use it to tune its
+     *         size or check its stats
+     */
+    public EncodedBitmapCache getEncodedCache() {
+        return encodedCache;
+    }
+
+    /**
+     * @return the scheduler running loads, use it to check queue depths and active threads
+     */
+    public LoadScheduler getLoadScheduler() {
+        return loader.scheduler;
+    }
+
+    /**
+     * @return the prefetcher, use it to warm the caches with bitmaps needed soon
+     * @see #prefetch(Context, List, int, int, Prefetcher.Mode)
+     */
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * @return the queue persisting bitmaps cached by the app, use it to check its backlog
+     *         or flush it
+     * @see #cacheBitmap(Context, Bitmap, String, boolean)
+     */
+    public WriteBehindQueue getWriteBehindQueue() {
+        return writeBehind;
+    }
+
+    /**
+     * @param quality quality bitmaps are persisted with, from 0 to 100. Ignored for those
+     *                with alpha persisted as PNG, before Jelly Bean MR2.
+     * @see #cacheBitmap(Context, Bitmap, String, boolean)
+     */
+    public void setPersistQuality(int quality) {
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("quality must be within 0 and 100");
+        }
+        persistQuality = quality;
+    }
+
+    /**
+     * @return latencies per stage of loads, counters and the state of every cache tier,
+     *         to be enabled before use
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    private void fillMetrics(Metrics.Snapshot snapshot) {
+        snapshot.tier(Metrics.Tier.MEMORY, cache.hitCount(), cache.missCount(), cache.size(), cache.maxSize());
+        snapshot.tier(Metrics.Tier.WEAK, weakCache.hitCount(), weakCache.missCount(), weakCache.size(), 0);
+        snapshot.tier(Metrics.Tier.POOL, pool.hitCount(), pool.missCount(), pool.size(), pool.maxSize());
+        snapshot.tier(Metrics.Tier.ENCODED, encodedCache.hitCount(), encodedCache.missCount(), encodedCache.size(),
+                encodedCache.maxSize());
+        DiskCache files;
+        synchronized (this) {
+            files = diskCache;
+        }
+        if (files != null) {
+            snapshot.tier(Metrics.Tier.DISK, files.hitCount(), files.missCount(), files.size(), files.maxSize());
+        }
+        snapshot.diskQueueSize = loader.scheduler.diskQueueSize();
+        snapshot.networkQueueSize = loader.scheduler.networkQueueSize();
+    }
+
+    /**
+     * @return the loads in flight, use it to bound them or check how many requests join one
+     */
+    public InFlightTable<?> getInFlightTable() {
+        return loader.pending;
+    }
+
     /**
      * Clears current cache if any
      */
     public void clearCache() {
         if (cache != null) {
-            cache.evictAll();
+            cache.evictFor(Metrics.EvictionReason.REMOVED);
+            weakCache.clear();
+        }
+    }
+
+    /**
+     * Changes the eviction strategy of the in memory cache, cached bitmaps are kept.
+     * Mostly meant to compare hit rates, see {@link #toString()}.
+     *
+     * @param policy the policy to use from now on
+     */
+    public void setCachePolicy(CachePolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
+        }
+        cache.setPolicy(policy);
+    }
+
+    /**
+     * Returns the cache of downloaded files, opening it if needed. Opening reads its
+     * journal so better do the first call off the UI thread.
+     *
+     * @param context used to get the cache directory
+     * @return the disk cache, use it to tune its size or check its stats
+     */
+    public synchronized DiskCache getDiskCache(Context context) {
+        registerMemoryCallbacks(context);
+        if (diskCache == null) {
+            File cacheDirectory = IOUtils.getCacheDirectory(context);
+            File directory = new File(cacheDirectory, WASP_PREFIX);
+            boolean firstOpen = !directory.exists();
+            diskCache = new DiskCache(directory, diskCacheMaxSize);
+            if (firstOpen) {
+                deleteLegacyFiles(diskCache, cacheDirectory);
+            }
+        }
+        return diskCache;
+    }
+
+    /**
+     * Subscribes to memory trim notifications of the application, once. Before Ice Cream
+     * Sandwich there are none, the application may forward its
+     * {@code onLowMemory()} to {@link #onLowMemory()} itself.
+     */
+    private synchronized void registerMemoryCallbacks(Context context) {
+        if (memoryCallbacksRegistered || context == null || !AppUtils.isIceCreamSandwichPlus()) {
+            return;
+        }
+        Context application = context.getApplicationContext();
+        (application != null ? application : context).registerComponentCallbacks(new MemoryCallbacks(this));
+        memoryCallbacksRegistered = true;
+    }
+
+    /**
+     * Frees memory according to how short of it the system is, as told by
+     * {@link ComponentCallbacks2#onTrimMemory(int)}. Called by the system since Ice Cream
+     * Sandwich once a context was given to this helper.
+     * <ul>
+     * <li>While running, the memory cache budget shrinks to 3/4, 1/2 or, when critical, to
+     * just what is shown on screen. It does not grow back for a while. Pooled bitmaps are
+     * dropped but for a moderate level.</li>
+     * <li>Once the UI is hidden or the app in background, pooled bitmaps are dropped and
+     * the memory cache trimmed to 1/2 then 1/4 of its budget, to be cleared as the app
+     * gets closer to be killed.</li>
+     * </ul>
+     *
+     * @param level one of the {@code TRIM_MEMORY_*} levels of {@link ComponentCallbacks2}
+     */
+    public void onTrimMemory(int level) {
+        cache.setEvictionReason(Metrics.EvictionReason.TRIM);
+        try {
+            trimMemory(level);
+        } finally {
+            cache.setEvictionReason(null);
+        }
+    }
+
+    private void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            cache.evictAll(); // bitmaps still shown go to the weak cache, costing nothing
+            encodedCache.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            cache.trimToFraction(0.25f);
+            encodedCache.trimToFraction(0.25f);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            cache.trimToFraction(0.5f);
+            encodedCache.trimToFraction(0.5f);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            cache.trimToVisible();
+            cache.shrinkBudget(0.5f);
+            encodedCache.trimToFraction(0.5f);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            cache.shrinkBudget(0.5f);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            cache.shrinkBudget(0.75f);
+        }
+        if (level > ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            pool.clear(); // otherwise worth keeping, pooled bitmaps save allocations while scrolling
+        }
+    }
+
+    /**
+     * Clears the memory cache, the encoded bitmap cache and the bitmap pool. Called by the system since Ice Cream
+     * Sandwich once a context was given to this helper.
+     *
+     * @see #onTrimMemory(int)
+     */
+    public void onLowMemory() {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    /**
+     * Forwards memory notifications to the helper, only loaded where they exist
+     */
+    private static final class MemoryCallbacks implements ComponentCallbacks2 {
+        private final BitmapHelper helper;
+
+        MemoryCallbacks(BitmapHelper helper) {
+            this.helper = helper;
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            helper.onTrimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            helper.onLowMemory();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    }
+
+    /**
+     * Deletes in background the files older versions kept right in the cache directory,
+     * named after a 32 bits hash of their url they can not be reused. Done on the thread
+     * of the disk cache, which deletes its own files there.
+     */
+    private static void deleteLegacyFiles(DiskCache diskCache, final File cacheDirectory) {
+        diskCache.executeInBackground(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = cacheDirectory.listFiles();
+                if (files == null) {
+                    return;
+                }
+                for (File file : files) {
+                    if (file.getName().startsWith(WASP_PREFIX) && file.isFile() && !file.delete()) {
+                        Log.w(BitmapHelper.class.getSimpleName(), "Could not delete " + file);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the maximum sum in bytes of the downloaded files, least recently used ones
+     * are deleted in background when exceeded. Defaults to 50 MiB.
+     *
+     * @param maxSize maximum size in bytes
+     */
+    public synchronized void setDiskCacheSize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be > 0");
+        }
+        diskCacheMaxSize = maxSize;
+        if (diskCache != null) {
+            diskCache.setMaxSize(maxSize);
         }
     }
 
@@ -81,33 +444,21 @@ public class BitmapHelper {
         if (uris == null || uris.length == 0) {
             throw new IllegalStateException("Uri array is empty or null");
         }
+        DiskCache files = getDiskCache(context);
         for (String uri : uris) {
-            File file = getCacheFileFromUri(context, uri);
-            if (file.exists() && !file.delete()) {
-                throw new RuntimeException("Could not delete " + file);
-            }
+            String diskKey = diskKey(uri);
+            encodedCache.remove(diskKey);
+            files.remove(diskKey);
         }
     }
 
     /**
-     * Deletes all cached files. This method runs synchronously so you must put it
-     * inside a worker thread if you do not want to block the UI
+     * Deletes all cached files. They are forgotten right away and actually deleted in a
+     * background thread.
      */
     public void deleteAllCachedFiles(Context context) {
-        File cacheDirectory = IOUtils.getCacheDirectory(context);
-        if (cacheDirectory == null || !cacheDirectory.exists()) {
-            return;
-        }
-        String[] files = cacheDirectory.list();
-        for (String fileName : files) {
-            if (!fileName.startsWith(WASP_PREFIX)) {
-                continue;
-            }
-            File file = new File(cacheDirectory, fileName);
-            if (file.exists() && !file.delete()) {
-                throw new RuntimeException("Could not delete " + file);
-            }
-        }
+        encodedCache.clear();
+        getDiskCache(context).clear();
     }
 
     /**
@@ -115,18 +466,33 @@ public class BitmapHelper {
      *         of images downloaded, nor the images in memory cache.
      */
     public int savedFilesCount(Context context) {
-        File cacheDirectory = IOUtils.getCacheDirectory(context);
-        if (cacheDirectory == null || !cacheDirectory.exists() || !cacheDirectory.isDirectory()) {
-            return 0;
-        }
-        int count = 0;
-        String[] files = cacheDirectory.list();
-        for (String fileName : files) {
-            if (fileName.startsWith(WASP_PREFIX)) {
-                count++;
-            }
-        }
-        return count;
+        return getDiskCache(context).count();
+    }
+
+    /**
+     * Makes target sized decodes scale the subsampled bitmap down to just cover the
+     * target size. Otherwise they are only subsampled by a power of two, which is
+     * cheaper but can leave bitmaps up to twice as big as needed. Disabled by default,
+     * change it before loading any bitmap.
+     *
+     * @param scaleExactly true to scale bitmaps to their target size
+     */
+    public void setScaleToTargetSize(boolean scaleExactly) {
+        loader.scaleExactly = scaleExactly;
+    }
+
+    /**
+     * Makes transformed bitmaps be persisted to the disk cache, through the
+     * {@link #getWriteBehindQueue() write behind queue}, so they are read back instead of
+     * transformed again once evicted from memory or in a later process. Worth it for
+     * costly transformations, e.g. blurring. Persisted ones are not revalidated with the
+     * server. Disabled by default.
+     *
+     * @param persist true to persist transformed bitmaps
+     * @see BaseBitmapObserver#setTransformation(Transformation)
+     */
+    public void setPersistTransformations(boolean persist) {
+        loader.persistTransformations = persist;
     }
 
     /**
@@ -138,17 +504,76 @@ public class BitmapHelper {
      *         Note: in case of urlFrom parameter is null this method does nothing
      */
     public Bitmap getBitmap(String urlFrom) {
+        return getBitmap(urlFrom, 0, 0);
+    }
+
+    /**
+     * Try to get the bitmap decoded for the given target size from cache
+     *
+     * @param urlFrom      A valid URL pointing to a bitmap
+     * @param targetWidth  target width in pixels, 0 if it does not matter
+     * @param targetHeight target height in pixels, 0 if it does not matter
+     * @return A bitmap associated to given url and size if any available
+     *         <p/>
+     *         Note: in case of urlFrom parameter is null this method does nothing
+     * @see BaseBitmapObserver#setTargetSize(int, int)
+     */
+    public Bitmap getBitmap(String urlFrom, int targetWidth, int targetHeight) {
+        return getBitmap(urlFrom, targetWidth, targetHeight, null);
+    }
+
+    /**
+     * Try to get the bitmap decoded for the given target size and transformed from cache
+     *
+     * @param urlFrom        A valid URL pointing to a bitmap
+     * @param targetWidth    target width in pixels, 0 if it does not matter
+     * @param targetHeight   target height in pixels, 0 if it does not matter
+     * @param transformation transformation applied to it, may be null
+     * @return A bitmap associated to given url, size and transformation if any available
+     * @see BaseBitmapObserver#setTransformation(Transformation)
+     */
+    public Bitmap getBitmap(String urlFrom, int targetWidth, int targetHeight, Transformation transformation) {
         if (isInvalidUri(urlFrom)) {
             return null;
         }
         //Lets check the cache
-        BitmapRef ref = cache.get(urlFrom);
+        BitmapRef ref = cache.lookup(urlFrom, targetWidth, targetHeight, transformation);
         if (ref != null) {
+            ref.expose();
             return ref.getBitmap();
         }
         return null;
     }
 
+    /**
+     * Leases the bitmap decoded for the given target size, if in memory. Unlike bitmaps got
+     * through {@link #getBitmap(String, int, int)}, a leased bitmap is never reused for
+     * another one while leased, and gets recycled once evicted and released.
+     *
+     * @param urlFrom      A valid URL pointing to a bitmap
+     * @param targetWidth  target width in pixels, 0 if it does not matter
+     * @param targetHeight target height in pixels, 0 if it does not matter
+     * @return a lease on the bitmap, to be released once not drawn anymore, or null if not in memory
+     */
+    public BitmapLease acquire(String urlFrom, int targetWidth, int targetHeight) {
+        if (isInvalidUri(urlFrom)) {
+            return null;
+        }
+        BitmapRef ref = cache.lookup(urlFrom, targetWidth, targetHeight, null);
+        return ref != null ? ref.acquire() : null;
+    }
+
+    /**
+     * Logs leases garbage collected without being released, along with where they were
+     * acquired. Off by default, meant for debug builds.
+     *
+     * @param enabled true to detect leaked leases
+     * @see BitmapLease#leakedCount()
+     */
+    public void setLeakDetection(boolean enabled) {
+        BitmapLease.setLeakDetection(enabled);
+    }
+
     /**
      * Try to get the bitmap from cache
      *
@@ -159,34 +584,58 @@ public class BitmapHelper {
      *         Note: in case of urlFrom parameter is null this method does nothing
      */
     public Bitmap getBitmapFromCacheDir(Context context, String urlFrom) {
+        return getBitmapFromCacheDir(context, urlFrom, 0, 0);
+    }
+
+    /**
+     * Try to get the bitmap from cache, decoding it no bigger than needed for the given
+     * target size if it is only in the cache directory
+     *
+     * @param context      used to get the cache directory
+     * @param urlFrom      A valid URL pointing to a bitmap
+     * @param targetWidth  target width in pixels, 0 if it does not matter
+     * @param targetHeight target height in pixels, 0 if it does not matter
+     * @return A bitmap associated to given url and size if any available
+     *         <p/>
+     *         Note: in case of urlFrom parameter is null this method does nothing
+     */
+    public Bitmap getBitmapFromCacheDir(Context context, String urlFrom, int targetWidth, int targetHeight) {
         if (isInvalidUri(urlFrom)) {
             return null;
         }
-        Bitmap bitmap = getBitmap(urlFrom);
+        Bitmap bitmap = getBitmap(urlFrom, targetWidth, targetHeight);
         if (BitmapUtils.isBitmapValid(bitmap)) {
             // bitmap was already cached, just return it
             return bitmap;
         }
         // bitmap is not cached, let's see if it is persisted in the cache directory
-        File file = getCacheFileFromUri(context, urlFrom);
-        if (file.exists()) {
+        DiskCache files = getDiskCache(context);
+        String diskKey = diskKey(urlFrom);
+        File file = getVerifiedFile(files, diskKey, urlFrom);
+        if (file != null) {
             // file is there... let's try to decode it
             try {
-                bitmap = BitmapUtils.loadBitmapFile(file.getCanonicalPath());
+                bitmap = BitmapUtils.loadBitmapFile(file, pool, targetWidth, targetHeight, loader.scaleExactly);
             } catch (IOException e) {
                 e.printStackTrace();
             }
             if (BitmapUtils.isBitmapValid(bitmap)) {
-                return putMapInCache(urlFrom, bitmap);
+                return putMapInCache(new BitmapRef(urlFrom, targetWidth, targetHeight), bitmap);
             }
+            // deleted behind our back or not an image, forget about it
+            files.remove(diskKey);
         }
         return null;
     }
 
     private Bitmap putMapInCache(String cacheId, Bitmap bitmap) {
-        BitmapRef bitmapRef = new BitmapRef(cacheId);
+        return putMapInCache(new BitmapRef(cacheId), bitmap);
+    }
+
+    private Bitmap putMapInCache(BitmapRef bitmapRef, Bitmap bitmap) {
         bitmapRef.loaded(bitmap);
-        cache.put(cacheId, bitmapRef);
+        bitmapRef.expose();
+        cache.put(bitmapRef.getCacheKey(), bitmapRef);
         return bitmap;
     }
 
@@ -245,37 +694,44 @@ public class BitmapHelper {
                 return bitmap;
             }
         }
-        // let's get the file size
-        int fileSize;
+        // read the header first, to make room for exactly what the bitmap will take
+        PushbackInputStream input = new PushbackInputStream(inputStream, BitmapUtils.STREAM_MARK_LIMIT);
+        BitmapFactory.Options options;
         try {
-            fileSize = inputStream.available();
-        } catch (Exception e) {
+            options = BitmapUtils.readBounds(input);
+        } catch (IOException e) {
+            Log.w(BitmapHelper.class.getSimpleName(), "Unable to read " + id, e);
             return null;
         }
-
-        // Images are usually in PNG  format which is actually a compressed bitmap.
-        // When Android decodes the image, its size can increase up to 20 times.
-        // It could be much less, but we are being pessimistic in order to avoid
-        // OutOfMemory crashes.
-        int tentativeNewFileSize = fileSize * 20;
-        // if the current cache plus the file that is going to
-        // be added surpasses the maximum cache size, we will have to evict
-        // some files until we have enough space
-        if (cache.size() + tentativeNewFileSize > cache.maxSize()) {
-            cache.trimToSize(cache.maxSize() - tentativeNewFileSize);
+        if (options == null) {
+            // not an image or headers too far to tell its size, e.g. after a large EXIF
+            // thumbnail, decoded as it comes then
+            try {
+                Bitmap bitmap = BitmapFactory.decodeStream(input);
+                return BitmapUtils.isBitmapValid(bitmap) ? putMapInCache(id, bitmap) : bitmap;
+            } catch (OutOfMemoryError error) {
+                return null;
+            }
         }
-
-        // now that we have the bitmap, let's cache it right away
-        Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-        if (BitmapUtils.isBitmapValid(bitmap)) {
-            return putMapInCache(id, bitmap);
+        int bitmapSize = BitmapUtils.getBitmapSize(options.outWidth, options.outHeight, options.inPreferredConfig);
+        cache.reserve(bitmapSize);
+        try {
+            Bitmap bitmap = BitmapFactory.decodeStream(input, null, options);
+            if (BitmapUtils.isBitmapValid(bitmap)) {
+                return putMapInCache(id, bitmap);
+            }
+            return bitmap;
+        } catch (OutOfMemoryError error) {
+            return null;
+        } finally {
+            cache.release(bitmapSize);
         }
-        return bitmap;
     }
 
     /**
      * Safely returns a mutable bitmap with the specified width and height. Its
-     * initial density is as per {@link Bitmap#getDensity}.
+     * initial density is as per {@link Bitmap#getDensity}. A pooled bitmap is
+     * cleared and returned when one matches, a new one is allocated otherwise.
      *
      * @param width  The width of the bitmap
      * @param height The height of the bitmap
@@ -290,22 +746,24 @@ public class BitmapHelper {
             throw new IllegalArgumentException("Width and height must be > 0");
         }
 
-        // let's calculate the bitmap byte size
-        int bitmapSize = calculateBitmapSize(width, height, config);
-
-        // if the current cache plus the file that is going to
-        // be added surpasses the maximum cache size, we will have to evict
-        // some files until we have enough space
-        if (cache.size() + bitmapSize > cache.maxSize()) {
-            cache.trimToSize(cache.maxSize() - bitmapSize);
-        }
-
-        // now that we have the bitmap, let's cache it right away
-        Bitmap bitmap = Bitmap.createBitmap(width, height, config);
-        if (BitmapUtils.isBitmapValid(bitmap)) {
-            return putMapInCache(generateCacheId(), bitmap);
+        // let's make room for the bitmap byte size
+        int bitmapSize = BitmapUtils.getBitmapSize(width, height, config);
+        cache.reserve(bitmapSize);
+        try {
+            // now that we have the bitmap, let's cache it right away
+            Bitmap bitmap = pool.get(width, height, config);
+            if (bitmap != null) {
+                bitmap.eraseColor(0); // fully transparent, as a new one
+            } else {
+                bitmap = Bitmap.createBitmap(width, height, config);
+            }
+            if (BitmapUtils.isBitmapValid(bitmap)) {
+                return putMapInCache(generateCacheId(), bitmap);
+            }
+            return bitmap;
+        } finally {
+            cache.release(bitmapSize);
         }
-        return bitmap;
     }
 
     /**
@@ -364,20 +822,17 @@ public class BitmapHelper {
             throw new IllegalStateException("Bitmap source cannot be null");
         }
         int bitmapByteSize = BitmapUtils.getBitmapSize(source);
-
-        // if the current cache plus the file that is going to
-        // be added surpasses the maximum cache size, we will have to evict
-        // some files until we have enough space
-        if (cache.size() + bitmapByteSize > cache.maxSize()) {
-            cache.trimToSize(cache.maxSize() - bitmapByteSize);
-        }
-
-        // now that we have the bitmap, let's cache it right away
-        Bitmap bitmap = Bitmap.createBitmap(source, x, y, width, height, m, filter);
-        if (BitmapUtils.isBitmapValid(bitmap)) {
-            return putMapInCache(generateCacheId(), bitmap);
+        cache.reserve(bitmapByteSize);
+        try {
+            // now that we have the bitmap, let's cache it right away
+            Bitmap bitmap = Bitmap.createBitmap(source, x, y, width, height, m, filter);
+            if (BitmapUtils.isBitmapValid(bitmap)) {
+                return putMapInCache(generateCacheId(), bitmap);
+            }
+            return bitmap;
+        } finally {
+            cache.release(bitmapByteSize);
         }
-        return bitmap;
     }
 
     /**
@@ -395,41 +850,46 @@ public class BitmapHelper {
         if (src == null) {
             throw new IllegalStateException("Bitmap source cannot be null");
         }
-        Bitmap.Config config = src.getConfig();
-        int bitmapByteSize = calculateBitmapSize(dstWidth, dstHeight, config);
-
-        // if the current cache plus the file that is going to
-        // be added surpasses the maximum cache size, we will have to evict
-        // some files until we have enough space
-        if (cache.size() + bitmapByteSize > cache.maxSize()) {
-            cache.trimToSize(cache.maxSize() - bitmapByteSize);
+        int bitmapByteSize = BitmapUtils.getBitmapSize(dstWidth, dstHeight, src.getConfig());
+        cache.reserve(bitmapByteSize);
+        try {
+            // now that we have the bitmap, let's cache it right away
+            Bitmap bitmap = Bitmap.createScaledBitmap(src, dstWidth, dstHeight, filter);
+            if (BitmapUtils.isBitmapValid(bitmap)) {
+                return putMapInCache(generateCacheId(), bitmap);
+            }
+            return bitmap;
+        } finally {
+            cache.release(bitmapByteSize);
         }
+    }
 
-        // now that we have the bitmap, let's cache it right away
-        Bitmap bitmap = Bitmap.createScaledBitmap(src, dstWidth, dstHeight, filter);
+    /**
+     * Transforms a bitmap of the app, unless it was already. Unlike bitmaps created by the
+     * methods above, the result is cached by the given id and the key of the
+     * transformation, so transforming the same bitmap again is a cache hit.
+     *
+     * @param id             unique identifier of the source bitmap
+     * @param source         bitmap to transform, left as it is
+     * @param transformation transformation to apply
+     * @return the transformed bitmap, or the source if there was nothing to do
+     */
+    public Bitmap transform(String id, Bitmap source, Transformation transformation) {
+        if (isInvalidUri(id) || transformation == null) {
+            throw new IllegalArgumentException("Invalid id or transformation");
+        }
+        BitmapRef ref = cache.lookup(id, 0, 0, transformation);
+        if (ref != null && BitmapUtils.isBitmapValid(ref.getBitmap())) {
+            ref.expose();
+            return ref.getBitmap();
+        }
+        Bitmap bitmap = transformation.transform(source, pool);
         if (BitmapUtils.isBitmapValid(bitmap)) {
-            return putMapInCache(generateCacheId(), bitmap);
+            return putMapInCache(new BitmapRef(id, 0, 0, transformation), bitmap);
         }
         return bitmap;
     }
 
-    private int calculateBitmapSize(int width, int height, Bitmap.Config config) {
-        int bitmapSize = 0;
-        switch (config) {
-            case ARGB_8888:
-                bitmapSize = width * height * 4;
-                break;
-            case ARGB_4444:
-            case RGB_565:
-                bitmapSize = width * height * 2;
-                break;
-            case ALPHA_8:
-                bitmapSize = width * height * 1;
-                break;
-        }
-        return bitmapSize;
-    }
-
     /**
      * @return number of bitmaps currently cached
      */
@@ -439,48 +899,82 @@ public class BitmapHelper {
 
     /**
      * Register a bitmap in the cache system.
+     * <p/>
+     * Persisted bitmaps are written behind, see {@link #getWriteBehindQueue()}, as JPEG
+     * of {@link #setPersistQuality(int) given quality}, or as WebP or PNG if they have alpha.
      *
      * @param context used to get the cache directory
-     * @param bitmap  the bitmap to save to cache
+     * @param bitmap  the bitmap to save to cache, it must not be recycled while persisted
      * @param uri     the unique resource identifier to this cache
      * @param persist true if the bitmap should be persisted to file system
      */
-    public void cacheBitmap(final Context context, final Bitmap bitmap, final String uri, boolean persist) {
+    public void cacheBitmap(Context context, Bitmap bitmap, String uri, boolean persist) {
         if (!BitmapUtils.isBitmapValid(bitmap)) {
             return;
         }
 
+        encodedCache.remove(diskKey(uri)); // bytes of what it replaces
         if (persist) {
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    File file = getCacheFileFromUri(context, uri);
-                    try {
-                        FileOutputStream stream = new FileOutputStream(file);
-                        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, stream);
-                        stream.close();
-                    } catch (Exception ignored) {
-                    }
-                }
-            }).start();
+            writeBehind.enqueue(context, uri, bitmap);
         }
 
         BitmapRef bitmapRef = new BitmapRef(uri);
         bitmapRef.bitmapRef = bitmap;
+        bitmapRef.expose(); // owned by the caller
         cache.put(uri, bitmapRef);
     }
 
     /**
-     * Try to get a list of Bitmaps, if any of them is already on cache given observer will be
-     * notified about right away, those not in cache will be loaded later and observer will get it
-     *
-     * @param context  Context to use
-     * @param urls     List of URL to download/load from
-     * @param observer Will be notified on bitmap loaded
+     * Writes a bitmap cached by the app to the disk cache, on the write behind thread
      */
-    public void bulkBitmaps(Context context, List<String> urls, BaseBitmapObserver observer) {
-        if (observer == null || urls == null || urls.size() < 1) {
-            return;
+    private void persist(WriteBehindQueue.Write write) throws IOException {
+        Bitmap bitmap = write.bitmap;
+        if (!BitmapUtils.isBitmapValid(bitmap)) {
+            return; // recycled by the app meanwhile
+        }
+        DiskCache.Editor editor = getDiskCache(write.context).edit(diskKey(write.uri));
+        if (editor == null) {
+            // being written already, maybe downloaded again, so this one did not make it
+            throw new IOException("Unable to persist " + write.uri + ", being written already");
+        }
+        try {
+            OutputStream stream = new BufferedOutputStream(new FileOutputStream(editor.getFile()));
+            try {
+                if (!bitmap.compress(persistFormat(bitmap), persistQuality, stream)) {
+                    throw new IOException("Unable to compress " + write.uri);
+                }
+            } finally {
+                stream.close();
+            }
+            editor.commit(write.uri);
+        } finally {
+            editor.abort();
+        }
+    }
+
+    /**
+     * @return a format keeping alpha for bitmaps having some, JPEG otherwise
+     */
+    private static Bitmap.CompressFormat persistFormat(Bitmap bitmap) {
+        if (!bitmap.hasAlpha()) {
+            return Bitmap.CompressFormat.JPEG;
+        }
+        // WebP encodes alpha from Jelly Bean MR2 on, far smaller than PNG
+        return AppUtils.isJellyBeanMR2Plus() ? Bitmap.CompressFormat.WEBP : Bitmap.CompressFormat.PNG;
+    }
+
+    /**
+     * Try to get a list of Bitmaps, if any of them is already on cache given observer will be
+     * notified about right away, those not in cache will be loaded later and observer will get it
+     *
+     * @param context  Context to use
+     * @param urls     List of URL to download/load from
+     * @param observer Will be notified on bitmap loaded
+     * @see #prefetch(Context, List, int, int, Prefetcher.Mode) to load bitmaps not needed yet
+     */
+    public void bulkBitmaps(Context context, List<String> urls, BaseBitmapObserver observer) {
+        if (observer == null || urls == null || urls.size() < 1) {
+            return;
         }
         for (String url : urls) {
             observer.setTakeUriIntoAccount(false);// since the same observer will be used for all urls
@@ -489,34 +983,68 @@ public class BitmapHelper {
     }
 
     /**
-     * Download and put in cache a bitmap
+     * Prefetches bitmaps likely to be needed soon, e.g. the next page of a feed. Unlike
+     * {@link #bulkBitmaps(Context, List, BaseBitmapObserver)} they only load while no other
+     * load is waiting, within the budget of the prefetcher, and never evict bitmaps in use.
+     * A new batch replaces the prefetches of the previous one not started yet.
+     *
+     * @param context      Context to use
+     * @param urls         URLs to prefetch, in order
+     * @param targetWidth  target width in pixels observers will ask for, 0 if it does not matter
+     * @param targetHeight target height in pixels observers will ask for, 0 if it does not matter
+     * @param mode         whether to just download them or decode them too
+     * @see Prefetcher#setBudget(long, int)
+     */
+    public void prefetch(Context context, List<String> urls, int targetWidth, int targetHeight, Prefetcher.Mode mode) {
+        if (context == null) {
+            throw new IllegalArgumentException("Context shall not be null");
+        }
+        prefetcher.prefetch(context, urls, targetWidth, targetHeight, mode);
+    }
+
+    private boolean dispatchPrefetch(Prefetcher.Request request) {
+        String key = cacheKey(request.uri, request.targetWidth, request.targetHeight);
+        if (request.mode == Prefetcher.Mode.DECODE) {
+            BitmapRef ref = cache.peek(key);
+            if ((ref != null && BitmapUtils.isBitmapValid(ref.getBitmap())) || weakCache.contains(key)) {
+                return false;
+            }
+        }
+        return loader.prefetch(request, getDiskCache(request.context));
+    }
+
+    /**
+     * Download and put in cache a bitmap, decoded for the target size of the observer and
+     * transformed as it asks
      *
      * @param context  Context to use
      * @param urlFrom  A valid URL pointing to a bitmap
      * @param observer Will be notified on bitmap loaded
+     * @see BaseBitmapObserver#setTargetSize(int, int)
+     * @see BaseBitmapObserver#setTransformation(Transformation)
      */
     public void registerBitmapObserver(Context context, String urlFrom, BaseBitmapObserver observer, com.telly.wasp.BitmapLoader fileLoader) {
         if (isInvalidUri(urlFrom)) {
             return;
         }
-        //Lets check the cache
-        BitmapRef ref = cache.get(urlFrom);
-        Bitmap bitmap = null;
-        if (ref == null) {
-            //Hummm nothing in cache lets try to put it in cache
-            ref = new BitmapRef(urlFrom);
-            cache.putAndObserve(urlFrom, ref);
-        } else {
-            bitmap = ref.getBitmap();
-        }
-
-        if (!BitmapUtils.isBitmapValid(bitmap)) { //humm garbage collected or not already loaded lest try to load it anyway
-            ref.addObserver(observer);
-            if (fileLoader != null) {
-                ref.setLoader(fileLoader);
+        int targetWidth = observer.getTargetWidth();
+        int targetHeight = observer.getTargetHeight();
+        Transformation transformation = observer.getTransformation();
+        String key = cacheKey(urlFrom, targetWidth, targetHeight, transformation);
+        //Lets check the cache, it only holds loaded bitmaps
+        long lookupStart = metrics.start();
+        BitmapRef ref = cache.lookup(urlFrom, targetWidth, targetHeight, transformation);
+        metrics.record(Metrics.Stage.MEMORY_LOOKUP, lookupStart);
+        Bitmap bitmap = ref != null ? ref.getBitmap() : null;
+
+        if (!BitmapUtils.isBitmapValid(bitmap)) { //humm not loaded yet or recycled behind our back, lets load it
+            if (ref != null) {
+                cache.remove(key);
             }
-            loader.load(context, ref);
+            loader.load(context, urlFrom, targetWidth, targetHeight, transformation, observer, fileLoader,
+                    getDiskCache(context));
         } else {
+            ref.delivered(observer);
             observer.update(ref, null); // We got a valid ref and bitmap let's the observer know
         }
     }
@@ -535,18 +1063,124 @@ public class BitmapHelper {
         registerBitmapObserver(context, observer.getUrl(), observer, fileLoader);
     }
 
+    /**
+     * Stops notifying given observer about the bitmaps it is waiting for. Loads no other
+     * observer needs are dropped if still queued or given up before decoding if running.
+     * <p/>
+     * There is no need to call it for observers that already know they are stale, see
+     * {@link BaseBitmapObserver#isStillNeeded(String)}, their loads get cancelled anyway.
+     *
+     * @param observer observer previously registered
+     */
+    public void cancel(BaseBitmapObserver observer) {
+        if (observer != null) {
+            loader.cancel(observer);
+        }
+    }
+
+    /**
+     * Cancels pending loads of given url, for any target size. Their observers are not
+     * notified.
+     *
+     * @param url url of the bitmap no longer wanted
+     */
+    public void cancel(String url) {
+        if (!isInvalidUri(url)) {
+            loader.cancel(url);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return cache.toString();
+    }
+
     private static boolean isInvalidUri(String url) {
         return url == null || url.length() == 0;
     }
 
-    private static File getCacheFileFromUri(Context context, String urlFrom) {
-        File cacheDirectory = IOUtils.getCacheDirectory(context);
-        return getCacheFileFromUri(cacheDirectory, urlFrom);
+    /**
+     * @return key of the in memory cache for a bitmap decoded from given uri for given target size
+     */
+    static String cacheKey(String uri, int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 && targetHeight <= 0) {
+            return uri;
+        }
+        return uri + '#' + Math.max(0, targetWidth) + 'x' + Math.max(0, targetHeight);
+    }
+
+    /**
+     * @return key of the in memory cache for a bitmap decoded from given uri for given
+     *         target size then transformed, also the origin of its file when persisted
+     */
+    static String cacheKey(String uri, int targetWidth, int targetHeight, Transformation transformation) {
+        String key = cacheKey(uri, targetWidth, targetHeight);
+        return transformation != null ? key + '|' + transformation.getKey() : key;
+    }
+
+    /**
+     * @return key of the disk cache entry holding the file downloaded from given uri,
+     *         the hex SHA-256 digest of the uri
+     */
+    static String diskKey(String uri) {
+        MessageDigest digest = DIGEST.get();
+        byte[] hash;
+        try {
+            hash = digest.digest(uri.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Looks up the file of given uri, checking it was actually downloaded from that uri
+     *
+     * @return the file or null if not cached or cached for another uri, which is then dropped
+     */
+    static File getVerifiedFile(DiskCache diskCache, String diskKey, String uri) {
+        return getVerifiedMetadata(diskCache, diskKey, uri) != null ? diskCache.fileFor(diskKey) : null;
+    }
+
+    /**
+     * Looks up the file of given uri like {@link #getVerifiedFile(DiskCache, String, String)},
+     * handing over the footer read to verify it
+     *
+     * @return the footer of the file or null if not cached or cached for another uri
+     */
+    static DiskCache.Metadata getVerifiedMetadata(DiskCache diskCache, String diskKey, String uri) {
+        File file = diskCache.get(diskKey);
+        if (file == null) {
+            return null;
+        }
+        DiskCache.Metadata metadata = DiskCache.readMetadata(file);
+        if (metadata == null || !uri.equals(metadata.getOrigin())) {
+            Log.w(BitmapHelper.class.getSimpleName(), "Dropping cached file not matching " + uri);
+            diskCache.remove(diskKey);
+            return null;
+        }
+        return metadata;
     }
 
-    private static File getCacheFileFromUri(File cacheDir, String urlFrom) {
-        String filename = WASP_PREFIX + String.valueOf(urlFrom.hashCode());
-        return new File(cacheDir, filename);
+    /**
+     * Eviction strategies for the in memory bitmap cache
+     */
+    public enum CachePolicy {
+        /**
+         * Evicts the least recently used bitmap
+         */
+        LRU,
+        /**
+         * Keeps a small window of recent bitmaps, beyond that a bitmap is only kept if it
+         * has been requested more often than the one it would replace. Protects often
+         * reused bitmaps from long scrolls through one-off ones. This is the default.
+         */
+        WINDOW_TINY_LFU
     }
 
     /**
@@ -559,10 +1193,45 @@ public class BitmapHelper {
     static class BitmapRef extends Observable {
         Bitmap bitmapRef;
         String from;
+        final String key;
+        final int targetWidth;
+        final int targetHeight;
+        /**
+         * Applied to the bitmap once decoded, may be null
+         */
+        final Transformation transformation;
         Observer stickyObserver;
         int currentSize;
-        int previousSize;
         private com.telly.wasp.BitmapLoader mFileLoader;
+        /**
+         * Same observers {@link Observable} keeps, it does not let us go through them
+         */
+        private final List<Observer> observers = new ArrayList<Observer>();
+        /**
+         * Orders notifications, so no preview comes after the loaded bitmap
+         */
+        private final Object notificationLock = new Object();
+        private boolean loaded;
+        /**
+         * Observers the bitmap was handed to, weakly, to tell whether it is still shown.
+         * Those leasing it are told by {@link #leaseCount}.
+         */
+        private final List<WeakReference<BaseBitmapObserver>> viewers = new ArrayList<WeakReference<BaseBitmapObserver>>();
+        /**
+         * Guards {@link #bitmapRef} changes, {@link #leaseCount}, {@link #evictedBitmap}
+         * and {@link #evictedFrom}
+         */
+        private final Object leaseLock = new Object();
+        private int leaseCount;
+        /**
+         * Bitmap evicted while leased, given up on the last release
+         */
+        private Bitmap evictedBitmap;
+        private BitmapRefCache evictedFrom;
+        /**
+         * Whether the bitmap was handed out without a lease, so it can not be recycled
+         */
+        private volatile boolean exposed;
 
         /**
          * Creates a new instance with given uri
@@ -570,11 +1239,38 @@ public class BitmapHelper {
          * @param uri a bitmap url
          */
         public BitmapRef(String uri) {
+            this(uri, 0, 0);
+        }
+
+        /**
+         * Creates a new instance with given uri and target size
+         *
+         * @param uri          a bitmap url
+         * @param targetWidth  target width in pixels, 0 if it does not matter
+         * @param targetHeight target height in pixels, 0 if it does not matter
+         */
+        public BitmapRef(String uri, int targetWidth, int targetHeight) {
+            this(uri, targetWidth, targetHeight, null);
+        }
+
+        /**
+         * Creates a new instance with given uri, target size and transformation
+         *
+         * @param uri            a bitmap url
+         * @param targetWidth    target width in pixels, 0 if it does not matter
+         * @param targetHeight   target height in pixels, 0 if it does not matter
+         * @param transformation applied to the bitmap once decoded, may be null
+         */
+        public BitmapRef(String uri, int targetWidth, int targetHeight, Transformation transformation) {
             if (isInvalidUri(uri)) {
                 throw new IllegalArgumentException("Invalid URL");
             }
             from = uri;
-            currentSize = previousSize = 0;
+            this.targetWidth = Math.max(0, targetWidth);
+            this.targetHeight = Math.max(0, targetHeight);
+            this.transformation = transformation;
+            key = cacheKey(uri, targetWidth, targetHeight, transformation);
+            currentSize = 0;
         }
 
         /**
@@ -591,12 +1287,15 @@ public class BitmapHelper {
             return from;
         }
 
-        public int getCurrentSize() {
-            return currentSize;
+        /**
+         * @return key of this ref in the in memory cache, the URL plus the target size if any
+         */
+        public String getCacheKey() {
+            return key;
         }
 
-        public int getPreviousSize() {
-            return previousSize;
+        public int getCurrentSize() {
+            return currentSize;
         }
 
         public void setLoader(com.telly.wasp.BitmapLoader fileLoader) {
@@ -611,22 +1310,90 @@ public class BitmapHelper {
         public boolean equals(Object obj) {
             if (obj instanceof BitmapRef) {
                 BitmapRef otherRef = (BitmapRef) obj;
-                return from.equals(otherRef.getUri());
+                return key.equals(otherRef.getCacheKey());
             }
             return false;
         }
 
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+
         /**
          * @param bmp Bitmap to associate
          */
         public void loaded(Bitmap bmp) {
-            previousSize = currentSize;
-            currentSize = BitmapUtils.getBitmapSize(bmp);
-            bitmapRef = bmp;
+            synchronized (notificationLock) {
+                loaded = true;
+                currentSize = BitmapUtils.getBitmapSize(bmp);
+                synchronized (leaseLock) {
+                    bitmapRef = bmp;
+                }
 
-            setChanged();
-            notifyObservers();
-            deleteObservers();
+                setChanged();
+                notifyObservers();
+                if (BitmapUtils.isBitmapValid(bmp)) {
+                    Observer[] current;
+                    synchronized (this) {
+                        current = observers.toArray(new Observer[observers.size()]);
+                    }
+                    for (Observer observer : current) {
+                        if (observer instanceof BaseBitmapObserver) {
+                            delivered((BaseBitmapObserver) observer);
+                        }
+                    }
+                }
+                deleteObservers();
+            }
+        }
+
+        /**
+         * Hands a low resolution preview to observers, passed as the notification data.
+         * Unlike loaded bitmaps previews are neither kept nor cached.
+         *
+         * @param preview preview of the bitmap being loaded
+         * @return false if the bitmap is already loaded and so the preview is of no use
+         */
+        boolean previewLoaded(Bitmap preview) {
+            synchronized (notificationLock) {
+                if (loaded) {
+                    return false;
+                }
+                setChanged();
+                notifyObservers(preview);
+                return true;
+            }
+        }
+
+        /**
+         * @return true once loaded, successfully or not
+         */
+        boolean isLoaded() {
+            synchronized (notificationLock) {
+                return loaded;
+            }
+        }
+
+        /**
+         * @return true if any observer wants previews while the bitmap loads, never for
+         *         transformed bitmaps as previews would not be
+         * @see BaseBitmapObserver#setProgressive(boolean)
+         */
+        boolean wantsPreviews() {
+            if (transformation != null) {
+                return false;
+            }
+            Observer[] current;
+            synchronized (this) {
+                current = observers.toArray(new Observer[observers.size()]);
+            }
+            for (Observer observer : current) {
+                if (observer instanceof BaseBitmapObserver && ((BaseBitmapObserver) observer).isProgressive()) {
+                    return true;
+                }
+            }
+            return false;
         }
 
         @Override
@@ -651,162 +1418,1398 @@ public class BitmapHelper {
             }
         }
 
+        @Override
+        public synchronized void addObserver(Observer observer) {
+            super.addObserver(observer);
+            if (!observers.contains(observer)) {
+                observers.add(observer);
+            }
+        }
+
+        @Override
+        public synchronized void deleteObserver(Observer observer) {
+            super.deleteObserver(observer);
+            observers.remove(observer);
+        }
+
         @Override
         public void deleteObservers() {
-            super.deleteObservers();
+            synchronized (this) {
+                super.deleteObservers();
+                observers.clear();
+            }
             if (stickyObserver != null) {
                 addObserver(stickyObserver);
             }
         }
 
         /**
-         * Removes any reference to hard referenced bitmap and observers
+         * @return true if any observer, but the sticky one, still needs the bitmap
+         * @see BaseBitmapObserver#isStillNeeded(String)
          */
-        public void recycle() {
-            stickyObserver = null;
-            deleteObservers();
-            bitmapRef = null;
+        boolean isNeeded() {
+            Observer[] current;
+            synchronized (this) {
+                current = observers.toArray(new Observer[observers.size()]);
+            }
+            for (Observer observer : current) {
+                if (observer == stickyObserver) {
+                    continue;
+                }
+                if (!(observer instanceof BaseBitmapObserver) || ((BaseBitmapObserver) observer).isStillNeeded(from)) {
+                    return true;
+                }
+            }
+            return false;
         }
-    }
 
-    /**
-     * Calls that makes the dirty work
-     *
-     * @author evelio
-     */
-    private static class BitmapLoader {
-
-        private final ExecutorService executor;
         /**
-         * reference to those already queued
+         * Records the bitmap was handed to given observer
          */
-        private final Set<BitmapRef> queued;
+        void delivered(BaseBitmapObserver observer) {
+            if (observer instanceof BaseBitmapObserver.NoOpObserver || observer.leasesBitmaps()) {
+                return; // nothing is shown by it or it tells by its lease
+            }
+            exposed = true;
+            synchronized (viewers) {
+                Iterator<WeakReference<BaseBitmapObserver>> iterator = viewers.iterator();
+                while (iterator.hasNext()) {
+                    BaseBitmapObserver viewer = iterator.next().get();
+                    if (viewer == observer) {
+                        return;
+                    }
+                    if (viewer == null || !viewer.isStillNeeded(from)) {
+                        iterator.remove();
+                    }
+                }
+                viewers.add(new WeakReference<BaseBitmapObserver>(observer));
+            }
+        }
+
         /**
-         * Directory to use as a file cache
+         * Records the bitmap was handed out without a lease, e.g. returned by a getter
          */
-        private File cacheDir;
+        void expose() {
+            exposed = true;
+        }
 
         /**
-         * Default constructor
+         * @return true if the bitmap was only ever handed out through leases, it can be
+         *         recycled once the last one is released
          */
-        private BitmapLoader() {
-            executor = Executors.newCachedThreadPool();
-            queued = Collections.synchronizedSet(new HashSet<BitmapRef>());
+        boolean isRecyclable() {
+            return !exposed;
         }
 
         /**
-         * Loads a Bitmap into the given ref
+         * Leases the bitmap
          *
-         * @param context context needed to get app cache directory
-         * @param ref     Reference to use
+         * @return the lease or null if there is no bitmap to lease, e.g. evicted already
          */
-        private void load(Context context, BitmapRef ref) {
-            if (ref == null || BitmapUtils.isBitmapValid(ref.getBitmap())) {
-                return;
-            }
-
-            if (cacheDir == null) {
-                cacheDir = IOUtils.getCacheDirectory(context);
+        BitmapLease acquire() {
+            BitmapLease.expungeLeaked();
+            synchronized (leaseLock) {
+                Bitmap bitmap = bitmapRef;
+                if (!BitmapUtils.isBitmapValid(bitmap)) {
+                    return null;
+                }
+                leaseCount++;
+                return new BitmapLease(this, bitmap);
             }
+        }
 
-            if (queued.add(ref)) {
-                executor.execute(new LoadTask(context, ref, cacheDir));
+        /**
+         * Called by released leases, the last one gives up the bitmap if evicted meanwhile
+         */
+        void releaseLease() {
+            Bitmap bitmap;
+            BitmapRefCache cache;
+            synchronized (leaseLock) {
+                if (--leaseCount > 0 || evictedBitmap == null) {
+                    return;
+                }
+                bitmap = evictedBitmap;
+                cache = evictedFrom;
+                evictedBitmap = null;
+                evictedFrom = null;
             }
+            cache.reclaim(this, bitmap);
         }
 
-
-        private class LoadTask implements Runnable {
-            private static final String TAG = "BitmapHelper.LoadTask";
-            private final Context mContext;
-            private final BitmapRef reference;
-            private final File cacheDir;
-
-            private LoadTask(Context context, BitmapRef ref, File cacheDir) {
-                mContext = context;
-                reference = ref;
-                this.cacheDir = cacheDir;
+        /**
+         * @return number of leases not released yet
+         */
+        int leaseCount() {
+            synchronized (leaseLock) {
+                return leaseCount;
             }
+        }
 
-            @Override
-            public void run() {
-                try {
-                    //load it
-                    Bitmap bmp = doLoad();
-                    reference.loaded(bmp);
-                } catch (Exception e) {
-                    if (e != null) {
-                        Log.e(TAG, "Unable to load bitmap", e);
-                    }
+        /**
+         * Recycles this ref once evicted from given cache, handing its bitmap back to it
+         * right away or, if leased, on the last release
+         */
+        void evict(BitmapRefCache cache) {
+            Bitmap bitmap;
+            synchronized (leaseLock) {
+                bitmap = bitmapRef;
+                if (leaseCount > 0) {
+                    evictedBitmap = bitmap;
+                    evictedFrom = cache;
+                    bitmap = null;
                 }
-                queued.remove(reference);
+                bitmapRef = null;
             }
-
-            private Bitmap doLoad() throws IOException {
-                Bitmap image = null;
-                File file = BitmapHelper.getCacheFileFromUri(cacheDir, reference.from);
-
-                if (file.exists()) {//Something is stored
-                    image = BitmapUtils.loadBitmapFile(file.getCanonicalPath());
-                }
-
-                if (image == null) {//So far nothing is cached, lets download it
-                    if (reference.getLoader() != null) {
-                        reference.getLoader().load(mContext, reference.getUri(), file);
-                    } else {
-                        IOUtils.downloadFile(mContext, reference.getUri(), file);
-                    }
-                    if (file.exists()) {
-                        image = BitmapUtils.loadBitmapFile(file.getCanonicalPath());
-                    }
-                }
-                return image;
+            recycle();
+            if (bitmap != null) {
+                cache.reclaim(this, bitmap);
             }
         }
-    }
-
-    private static class BitmapRefCache extends UpdateableLruCache<String, BitmapRef> {
-        private static final float DESIRED_PERCENTAGE_OF_MEMORY = 0.25f;
-        private static final int BYTES_IN_A_MEGABYTE = 1048576;
-        private static final int MINIMAL_MAX_SIZE = BYTES_IN_A_MEGABYTE * 4; // We want at least 4 MB
-        private static final int MAX_SIZE;
-
-        static {
-            final long maxMemory = AppUtils.isHoneycombPlus() ? Runtime.getRuntime().maxMemory() : Debug.getNativeHeapSize();
-            final long maxSizeLong = Math.max(MINIMAL_MAX_SIZE, (long) (maxMemory * DESIRED_PERCENTAGE_OF_MEMORY));
-            // We limit it to a value as some implementations return Long.MAX_VALUE
-            MAX_SIZE = (int) Math.min(((long) Integer.MAX_VALUE), Math.abs(maxSizeLong));
-        }
 
-        private final Observer cacheObserver = new Observer() {
-            @Override
-            public void update(Observable observable, Object data) {
-                if (observable instanceof BitmapRef) {
-                    updateRef((BitmapRef) observable);
+        /**
+         * @return true if the bitmap is leased or any observer it was handed to still shows
+         *         it, as far as {@link BaseBitmapObserver#isStillNeeded(String)} tells
+         */
+        boolean isVisible() {
+            if (leaseCount() > 0) {
+                return true;
+            }
+            synchronized (viewers) {
+                for (WeakReference<BaseBitmapObserver> reference : viewers) {
+                    BaseBitmapObserver viewer = reference.get();
+                    if (viewer != null && viewer.isStillNeeded(from)) {
+                        return true;
+                    }
                 }
+                return false;
             }
-        };
-
-        private void updateRef(BitmapRef ref) {
-            final String uri = ref.getUri();
-            put(uri, ref);
         }
 
-        public BitmapRefCache() {
-            super(MAX_SIZE);
-        }
-
-        @Override
-        protected int sizeOf(String key, BitmapRef value) {
-            if (value != null) {
-                return value.getCurrentSize();
+        /**
+         * Removes any reference to hard referenced bitmap and observers
+         */
+        public void recycle() {
+            stickyObserver = null;
+            deleteObservers();
+            synchronized (leaseLock) {
+                bitmapRef = null;
             }
-            return 0;
         }
+    }
 
-        @Override
-        protected int previousSizeOf(String key, BitmapRef value) {
-            if (value != null) {
-                return value.getPreviousSize();
+    /**
+     * Calls that makes the dirty work
+     *
+     * @author evelio
+     */
+    private static class BitmapLoader {
+
+        /**
+         * Default bound of {@link #pending}, well over what a screen needs
+         */
+        private static final int MAX_PENDING = 512;
+        /**
+         * Responses shorter than this are just downloaded again rather than resumed
+         */
+        private static final int MIN_RESUMABLE_LENGTH = 64 * 1024;
+        /**
+         * Bytes read between two checks of whether a download is still needed
+         */
+        private static final int CANCEL_CHECK_INTERVAL = 16 * 1024;
+
+        private final LoadScheduler scheduler;
+        /**
+         * Told when prefetches are done
+         */
+        private final Prefetcher prefetcher;
+        /**
+         * Tasks queued or running by cache key of their reference, also the lock for
+         * everything about pending tasks
+         */
+        private final InFlightTable<LoadTask> pending;
+        /**
+         * Tasks downloading by disk key, others needing the same uri wait for them
+         */
+        private final Map<String, LoadTask> downloads;
+
+        /**
+         * Where loaded refs go
+         */
+        private final BitmapRefCache cache;
+        /**
+         * Pool to reuse bitmaps from when decoding
+         */
+        private final BitmapPool pool;
+        /**
+         * Encoded bytes decoded before looking on disk
+         */
+        private final EncodedBitmapCache encodedCache;
+        /**
+         * Whether target sized bitmaps get scaled exactly to their size
+         */
+        private volatile boolean scaleExactly;
+        /**
+         * Persists transformed bitmaps
+         */
+        private final WriteBehindQueue writeBehind;
+        /**
+         * Whether transformed bitmaps get persisted
+         */
+        private volatile boolean persistTransformations;
+        private final Metrics metrics;
+
+        /**
+         * Default constructor
+         */
+        private BitmapLoader(BitmapRefCache cache, BitmapPool pool, EncodedBitmapCache encodedCache, Prefetcher prefetcher,
+                             WriteBehindQueue writeBehind, Metrics metrics) {
+            scheduler = new LoadScheduler();
+            this.prefetcher = prefetcher;
+            pending = new InFlightTable<LoadTask>(MAX_PENDING, new InFlightTable.Pinning<LoadTask>() {
+                @Override
+                public boolean isPinned(LoadTask task) {
+                    // dropping a running load would start a duplicate once asked for again
+                    return task.started;
+                }
+            });
+            downloads = new HashMap<String, LoadTask>();
+            this.cache = cache;
+            this.pool = pool;
+            this.encodedCache = encodedCache;
+            this.writeBehind = writeBehind;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Loads a bitmap for given observer. If a load for the same uri, target size and
+         * transformation is pending the observer joins it, and it is moved ahead of the
+         * other queued loads as someone just asked for it again. Once loaded its ref goes
+         * to the cache.
+         *
+         * @param context    context needed to download
+         * @param uri        uri to load from
+         * @param targetWidth  target width in pixels, 0 if it does not matter
+         * @param targetHeight target height in pixels, 0 if it does not matter
+         * @param transformation applied once decoded, may be null
+         * @param observer   to notify once loaded
+         * @param fileLoader loader to use instead of downloading, may be null
+         * @param diskCache  where downloaded files are kept
+         */
+        private void load(Context context, String uri, int targetWidth, int targetHeight, Transformation transformation,
+                          Observer observer, com.telly.wasp.BitmapLoader fileLoader, DiskCache diskCache) {
+            String key = cacheKey(uri, targetWidth, targetHeight, transformation);
+            synchronized (pending) {
+                LoadTask task = pending.join(key);
+                if (task != null) {
+                    task.reference.addObserver(observer);
+                    if (fileLoader != null) {
+                        task.reference.setLoader(fileLoader);
+                    }
+                    if (task.prefetchMode != null) {
+                        // someone needs it now, it is not a prefetch anymore
+                        task.prefetchMode = null;
+                        prefetcher.finished(task.downloaded);
+                    }
+                    scheduler.bump(task);
+                    return;
+                }
+                BitmapRef ref = new BitmapRef(uri, targetWidth, targetHeight, transformation);
+                ref.addObserver(observer);
+                ref.setLoader(fileLoader);
+                task = new LoadTask(context, ref, diskCache);
+                List<LoadTask> dropped = pending.put(key, task);
+                scheduler.executeOnDisk(task);
+                if (dropped != null) {
+                    for (LoadTask eldest : dropped) {
+                        eldest.dropped = true;
+                        scheduler.cancel(eldest);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Starts a background load for the prefetcher, to be told once done
+         *
+         * @return false if a load of the same uri and target size is pending already
+         */
+        private boolean prefetch(Prefetcher.Request request, DiskCache diskCache) {
+            String key = cacheKey(request.uri, request.targetWidth, request.targetHeight);
+            synchronized (pending) {
+                if (pending.get(key) != null) {
+                    return false;
+                }
+                BitmapRef ref = new BitmapRef(request.uri, request.targetWidth, request.targetHeight);
+                ref.addObserver(new BaseBitmapObserver.NoOpObserver());
+                LoadTask task = new LoadTask(request.context, ref, diskCache);
+                task.prefetchMode = request.mode;
+                List<LoadTask> dropped = pending.put(key, task);
+                scheduler.executeOnDisk(task);
+                if (dropped != null) {
+                    for (LoadTask eldest : dropped) {
+                        eldest.dropped = true;
+                        scheduler.cancel(eldest);
+                    }
+                }
+                return true;
+            }
+        }
+
+        /**
+         * Stops notifying given observer about pending loads, loads no one else needs
+         * are cancelled
+         */
+        private void cancel(BaseBitmapObserver observer) {
+            synchronized (pending) {
+                for (LoadTask task : pending.values()) {
+                    task.reference.deleteObserver(observer);
+                    scheduler.cancel(task);
+                }
+            }
+        }
+
+        /**
+         * Cancels pending loads of given uri whatever their observers or target size
+         */
+        private void cancel(String uri) {
+            synchronized (pending) {
+                for (LoadTask task : pending.values()) {
+                    if (task.reference.from.equals(uri)) {
+                        task.reference.deleteObservers();
+                        scheduler.cancel(task);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Decodes a preview from the part of a file downloaded so far, while the download
+         * goes on. Previews are best effort, they are given up on any issue.
+         */
+        private class PreviewTask extends LoadScheduler.Task {
+            /**
+             * Previews of longer content are not worth the memory
+             */
+            private static final int MAX_PREVIEW_LENGTH = 4 * 1024 * 1024;
+
+            private final BitmapRef reference;
+            private final File file;
+            private final long length;
+            private final boolean jpeg;
+
+            /**
+             * @param reference reference being loaded
+             * @param file      file being downloaded to
+             * @param length    number of bytes to decode from the start of the file
+             * @param jpeg      true if a JPEG end marker must be appended to what was downloaded
+             */
+            private PreviewTask(BitmapRef reference, File file, long length, boolean jpeg) {
+                this.reference = reference;
+                this.file = file;
+                this.length = length;
+                this.jpeg = jpeg;
+            }
+
+            @Override
+            public void run() {
+                if (length > MAX_PREVIEW_LENGTH || reference.isLoaded() || !reference.isNeeded()) {
+                    return;
+                }
+                byte[] data = new byte[(int) length + (jpeg ? 2 : 0)];
+                try {
+                    RandomAccessFile input = new RandomAccessFile(file, "r");
+                    try {
+                        input.readFully(data, 0, (int) length);
+                    } finally {
+                        input.close();
+                    }
+                } catch (IOException e) {
+                    return; // already committed or given up
+                }
+                if (jpeg) {
+                    data[data.length - 2] = (byte) 0xff;
+                    data[data.length - 1] = (byte) 0xd9;
+                }
+                Bitmap preview = BitmapUtils.loadPreview(data, data.length, reference.targetWidth, reference.targetHeight);
+                if (preview != null && !reference.previewLoaded(preview)) {
+                    preview.recycle(); // too late, no one got it
+                }
+            }
+        }
+
+        /**
+         * Looks for the bitmap on disk first, if not there the same task is queued again
+         * to fetch it from network. Only one task downloads a given uri, others with a
+         * different target size wait for it and decode what it stored.
+         */
+        private class LoadTask extends LoadScheduler.Task {
+            private static final String TAG = "BitmapHelper.LoadTask";
+            private final Context mContext;
+            private final BitmapRef reference;
+            private final DiskCache diskCache;
+            private final String diskKey;
+            private volatile boolean fromNetwork;
+            private volatile boolean started;
+            /**
+             * Footer of the expired file on disk to revalidate, if any
+             */
+            private volatile DiskCache.Metadata stale;
+            /**
+             * Set once no longer tracked as pending, before it started, it is not run then
+             * and its observers are told it failed
+             */
+            private volatile boolean dropped;
+            /**
+             * Tasks waiting for the download of this one, guarded by {@link #pending}
+             */
+            private final List<LoadTask> followers = new ArrayList<LoadTask>();
+            /**
+             * How far this prefetch goes, null if not a prefetch, guarded by {@link #pending}
+             */
+            private Prefetcher.Mode prefetchMode;
+            /**
+             * Bytes downloaded so far
+             */
+            private volatile long downloaded;
+            /**
+             * Set once a prefetch to disk stored the file, without decoding it
+             */
+            private volatile boolean storedOnly;
+            /**
+             * When it was last queued, to record how long it waited
+             */
+            private volatile long queuedAt;
+
+            private LoadTask(Context context, BitmapRef ref, DiskCache diskCache) {
+                mContext = context;
+                reference = ref;
+                this.diskCache = diskCache;
+                diskKey = diskKey(ref.from);
+            }
+
+            @Override
+            boolean isCancelled() {
+                return (dropped && !started) || !reference.isNeeded();
+            }
+
+            @Override
+            boolean isBackground() {
+                synchronized (pending) {
+                    return prefetchMode != null;
+                }
+            }
+
+            @Override
+            void onQueued() {
+                queuedAt = metrics.start();
+            }
+
+            @Override
+            void onCancel() {
+                pending.remove(reference.getCacheKey(), this);
+                if (endPrefetch() != null) {
+                    prefetcher.finished(downloaded);
+                }
+                if (dropped) {
+                    // still needed, but dropped to keep the table bounded
+                    reference.loaded(null);
+                }
+            }
+
+            /**
+             * @return true if this is a prefetch that only needs the file on disk
+             */
+            private boolean isDiskOnly() {
+                synchronized (pending) {
+                    return prefetchMode == Prefetcher.Mode.DISK;
+                }
+            }
+
+            /**
+             * Stops being a prefetch, as it is done
+             *
+             * @return how far this prefetch was to go, null if it was not one (anymore)
+             */
+            private Prefetcher.Mode endPrefetch() {
+                synchronized (pending) {
+                    Prefetcher.Mode mode = prefetchMode;
+                    prefetchMode = null;
+                    return mode;
+                }
+            }
+
+            /**
+             * Completes a prefetch to disk once the file is there
+             *
+             * @return false if someone asked for the bitmap meanwhile, so it must be decoded
+             */
+            private boolean completeOnDisk() {
+                synchronized (pending) {
+                    if (prefetchMode == null) {
+                        return false;
+                    }
+                    prefetchMode = null;
+                    pending.remove(reference.getCacheKey(), this);
+                }
+                scheduler.finished(false);
+                reference.loaded(null);
+                prefetcher.finished(downloaded);
+                return true;
+            }
+
+            /**
+             * Gives up if nobody needs this load anymore
+             *
+             * @return true if cancelled
+             */
+            private boolean cancelIfNotNeeded() {
+                synchronized (pending) {
+                    // checked holding the lock, so any observer coming later starts a new task
+                    if (!isCancelled()) {
+                        return false;
+                    }
+                    onCancel();
+                }
+                scheduler.finished(true);
+                return true;
+            }
+
+            /**
+             * Starts running unless nobody needs this load anymore, holding the lock so
+             * the table does not drop it meanwhile
+             *
+             * @return false if cancelled
+             */
+            private boolean start() {
+                synchronized (pending) {
+                    if (cancelIfNotNeeded()) {
+                        return false;
+                    }
+                    started = true;
+                    return true;
+                }
+            }
+
+            @Override
+            public void run() {
+                metrics.record(Metrics.Stage.QUEUE_WAIT, queuedAt);
+                if (!start()) {
+                    return;
+                }
+                if (!fromNetwork) {
+                    if (isDiskOnly() && getVerifiedFile(diskCache, diskKey, reference.from) != null && completeOnDisk()) {
+                        return;
+                    }
+                    Bitmap bmp = null;
+                    boolean transformed = false;
+                    try {
+                        if (!isDiskOnly()) {
+                            bmp = loadTransformedFromDisk();
+                            transformed = bmp != null;
+                            if (bmp == null) {
+                                bmp = loadFromMemory();
+                            }
+                        }
+                        if (bmp == null) {
+                            bmp = loadFromDisk();
+                        }
+                    } catch (Exception e) {
+                        Log.e(TAG, "Unable to load bitmap", e);
+                    }
+                    if (transformed) {
+                        complete(bmp, false);
+                    } else if (bmp != null) {
+                        transform(bmp);
+                    } else {
+                        fromNetwork = true;
+                        scheduler.executeOnNetwork(this);
+                    }
+                    return;
+                }
+
+                if (!claimDownload()) {
+                    return; // will run again once the download in flight is done
+                }
+                Bitmap bmp = null;
+                boolean cancelled = false;
+                long fetchStart = metrics.start();
+                long downloadedBefore = downloaded;
+                try {
+                    //load it
+                    bmp = loadFromNetwork();
+                } catch (InterruptedIOException e) {
+                    cancelled = true;
+                } catch (Exception e) {
+                    if (e != null) {
+                        Log.e(TAG, "Unable to load bitmap", e);
+                    }
+                }
+                metrics.record(Metrics.Stage.FETCH, fetchStart);
+                metrics.count(Metrics.Counter.DOWNLOADED_BYTES, downloaded - downloadedBefore);
+                releaseDownload(bmp == null && !cancelled && !storedOnly);
+                if (storedOnly) {
+                    storedOnly = false;
+                    if (!completeOnDisk()) { // asked for meanwhile, decode what was stored
+                        fromNetwork = false;
+                        scheduler.executeOnDisk(this);
+                    }
+                } else if (!cancelled) {
+                    transform(bmp);
+                } else if (!cancelIfNotNeeded()) {
+                    // needed again while giving up, start over
+                    scheduler.executeOnNetwork(this);
+                }
+            }
+
+            private void complete(Bitmap bmp) {
+                complete(bmp, false);
+            }
+
+            /**
+             * @param persist true to persist the bitmap once loaded, it was just transformed
+             */
+            private void complete(Bitmap bmp, boolean persist) {
+                pending.remove(reference.getCacheKey(), this);
+                scheduler.finished(false);
+                Prefetcher.Mode prefetched = endPrefetch();
+                if (prefetched == null) {
+                    long deliveryStart = metrics.start();
+                    reference.loaded(bmp);
+                    metrics.record(Metrics.Stage.DELIVERY, deliveryStart);
+                    // only once loaded, a ref without bitmap found in the cache gets removed
+                    if (BitmapUtils.isBitmapValid(bmp)) {
+                        cache.putAndObserve(reference.getCacheKey(), reference);
+                    } else {
+                        metrics.count(Metrics.Counter.FAILED_LOADS, 1);
+                    }
+                    BitmapLease lease = persist ? reference.acquire() : null;
+                    if (lease != null) {
+                        writeBehind.enqueueLeased(mContext, reference.getCacheKey(), lease);
+                    }
+                    return;
+                }
+                reference.loaded(bmp);
+                if (BitmapUtils.isBitmapValid(bmp)) {
+                    // once loaded, so putting it does not count as a use
+                    cache.putProbationaryAndObserve(reference.getCacheKey(), reference);
+                }
+                prefetcher.finished(downloaded);
+            }
+
+            /**
+             * Takes over the download of the uri, unless another task has it already
+             *
+             * @return false if this task got parked until that download is done
+             */
+            private boolean claimDownload() {
+                synchronized (pending) {
+                    LoadTask owner = downloads.get(diskKey);
+                    if (owner != null) {
+                        owner.followers.add(this);
+                        return false;
+                    }
+                    downloads.put(diskKey, this);
+                    return true;
+                }
+            }
+
+            /**
+             * Lets tasks waiting for this download go on: they fail as well if it failed,
+             * otherwise they look for it on disk, or download it themselves if it was
+             * cancelled or not stored.
+             */
+            private void releaseDownload(boolean failed) {
+                List<LoadTask> waiting;
+                synchronized (pending) {
+                    downloads.remove(diskKey);
+                    waiting = new ArrayList<LoadTask>(followers);
+                    followers.clear();
+                }
+                for (LoadTask follower : waiting) {
+                    if (failed) {
+                        follower.complete(null);
+                    } else {
+                        follower.fromNetwork = false;
+                        scheduler.executeOnDisk(follower);
+                    }
+                }
+            }
+
+            /**
+             * Applies the transformation of the reference, if any, to the decoded bitmap
+             * and completes with the result
+             *
+             * @param bmp decoded bitmap, null if it could not be loaded
+             */
+            private void transform(Bitmap bmp) {
+                Transformation transformation = reference.transformation;
+                if (transformation == null || bmp == null) {
+                    complete(bmp);
+                    return;
+                }
+                Bitmap transformed = null;
+                long transformStart = metrics.start();
+                try {
+                    transformed = transformation.transform(bmp, pool);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unable to transform bitmap with " + transformation.getKey(), e);
+                } catch (OutOfMemoryError error) {
+                    Log.e(TAG, "Out of memory transforming bitmap with " + transformation.getKey());
+                }
+                metrics.record(Metrics.Stage.TRANSFORM, transformStart);
+                if (transformed != bmp) {
+                    pool.put(bmp); // decoded for this load only
+                }
+                complete(transformed, transformed != bmp && persistTransformations);
+            }
+
+            /**
+             * Decodes the transformed bitmap persisted earlier, if any
+             */
+            private Bitmap loadTransformedFromDisk() throws IOException {
+                if (reference.transformation == null || !persistTransformations) {
+                    return null;
+                }
+                String uri = reference.getCacheKey();
+                String key = diskKey(uri);
+                long lookupStart = metrics.start();
+                File file = getVerifiedFile(diskCache, key, uri);
+                metrics.record(Metrics.Stage.DISK_LOOKUP, lookupStart);
+                if (file == null) {
+                    return null;
+                }
+                long decodeStart = metrics.start();
+                Bitmap image = BitmapUtils.loadBitmapFile(file, pool, 0, 0, false);
+                metrics.record(Metrics.Stage.DECODE, decodeStart);
+                if (image == null) {
+                    diskCache.remove(key);
+                }
+                return image;
+            }
+
+            /**
+             * Decodes the encoded bytes kept in memory, if any
+             */
+            private Bitmap loadFromMemory() {
+                byte[] bytes = encodedCache.get(diskKey, System.currentTimeMillis());
+                if (bytes == null) {
+                    return null;
+                }
+                long decodeStart = metrics.start();
+                Bitmap image = BitmapUtils.loadBitmapBytes(bytes, pool,
+                        reference.targetWidth, reference.targetHeight, scaleExactly);
+                metrics.record(Metrics.Stage.DECODE, decodeStart);
+                if (image == null) {
+                    encodedCache.remove(diskKey);
+                }
+                return image;
+            }
+
+            /**
+             * Keeps the content of given file in memory, it was just decoded fine
+             *
+             * @param content  mapping of the whole file, footer included
+             * @param metadata footer of the file if read already, null to read it
+             */
+            private void keepEncoded(File file, ByteBuffer content, DiskCache.Metadata metadata) {
+                if (metadata == null) {
+                    metadata = DiskCache.readMetadata(file);
+                }
+                int length = content.remaining() - (metadata != null ? metadata.footerLength : 0);
+                long expiresAt = metadata != null && metadata.hasValidators() ? metadata.getExpiresAt() : 0;
+                if (length > 0) {
+                    content.limit(content.position() + length);
+                    encodedCache.put(diskKey, content, expiresAt);
+                }
+            }
+
+            private Bitmap loadFromDisk() throws IOException {
+                Bitmap image = null;
+                String key = diskKey;
+                long lookupStart = metrics.start();
+                DiskCache.Metadata metadata = getVerifiedMetadata(diskCache, key, reference.from);
+
+                if (metadata != null) {//Something is stored
+                    metrics.record(Metrics.Stage.DISK_LOOKUP, lookupStart);
+                    if (reference.getLoader() == null && metadata.hasValidators()
+                            && metadata.isExpired(System.currentTimeMillis())) {
+                        stale = metadata; // ask the server whether it changed
+                        return null;
+                    }
+                    image = decode(diskCache.fileFor(key), metadata);
+                    if (image == null) {// deleted behind our back or corrupt
+                        diskCache.remove(key);
+                    }
+                } else {
+                    metrics.record(Metrics.Stage.DISK_LOOKUP, lookupStart);
+                }
+                return image;
+            }
+
+            private Bitmap loadFromNetwork() throws IOException {
+                Bitmap image;
+                String key = diskKey;
+                DiskCache.Editor editor = diskCache.edit(key);
+                // if someone else is writing this entry just download to a private file
+                File target = editor != null ? editor.getFile()
+                        : File.createTempFile(WASP_PREFIX, ".tmp", IOUtils.getCacheDirectory(mContext));
+                try {
+                    if (reference.getLoader() != null) {
+                        image = loadThenDecode(key, editor, target);
+                    } else {
+                        image = downloadAndDecode(key, editor, target);
+                    }
+                } catch (IOException e) {
+                    if (stale == null || e instanceof InterruptedIOException) {
+                        throw e;
+                    }
+                    // better an expired bitmap than none, e.g. while offline
+                    Log.w(TAG, "Unable to revalidate " + reference.from + ", using cached copy", e);
+                    stale = null;
+                    File file = diskCache.get(key);
+                    image = file != null ? decode(file) : null;
+                } finally {
+                    if (editor != null) {
+                        editor.abort(); // no-op once committed
+                    } else if (target.exists() && !target.delete()) {
+                        Log.w(TAG, "Unable to delete " + target);
+                    }
+                }
+                return image;
+            }
+
+            /**
+             * Lets the reference loader write the file, then decodes it
+             */
+            private Bitmap loadThenDecode(String key, DiskCache.Editor editor, File target) throws IOException {
+                reference.getLoader().load(mContext, reference.getUri(), target);
+                checkNotCancelled();
+                File file;
+                if (editor != null) {
+                    file = editor.commit(reference.getUri());
+                } else {
+                    file = target.length() > 0 ? target : null;
+                }
+                Bitmap image = null;
+                if (file != null) {
+                    image = decode(file);
+                    if (image == null && editor != null) {// not an image, do not keep it
+                        diskCache.remove(key);
+                    }
+                }
+                return image;
+            }
+
+            /**
+             * Decodes the response while it is downloaded, copying it to the target file on
+             * the way. The disk entry is only committed once the whole response arrived and
+             * decoded fine.
+             * <p/>
+             * Long responses with a validator are written resumably, so if the download is
+             * interrupted the next attempt only asks for the rest of it.
+             */
+            private Bitmap downloadAndDecode(String key, DiskCache.Editor editor, final File target) throws IOException {
+                boolean decode = !isDiskOnly();
+                DiskCache.Metadata cached = stale;
+                Map<String, String> conditions = null;
+                if (cached != null) {
+                    conditions = new HashMap<String, String>();
+                    if (cached.getEtag() != null) {
+                        conditions.put("If-None-Match", cached.getEtag());
+                    }
+                    if (cached.getLastModified() != null) {
+                        conditions.put("If-Modified-Since", cached.getLastModified());
+                    }
+                }
+                DiskCache.Partial partial = cached == null && editor != null ? editor.getPartial() : null;
+                if (partial != null) {
+                    // the rest of it, or all of it if it changed since
+                    conditions = new HashMap<String, String>();
+                    conditions.put("Range", "bytes=" + partial.getLength() + "-");
+                    conditions.put("If-Range", partial.getValidator());
+                }
+                URLConnection connection = IOUtils.openConnection(mContext, reference.getUri(), conditions);
+                if (partial != null && IOUtils.isPartialContent(connection)) {
+                    return resumeDownload(key, editor, connection, partial, decode);
+                }
+                if (cached != null && IOUtils.isNotModified(connection)) {
+                    IOUtils.discard(connection);
+                    stale = null;
+                    // same content, just refresh its footer
+                    File file = editor != null ? editor.recommit(responseMetadata(connection, cached))
+                            : diskCache.get(key);
+                    if (file == null) {
+                        throw new IOException("Revalidated file of " + reference.from + " is gone");
+                    }
+                    if (!decode) {
+                        storedOnly = true;
+                        return null;
+                    }
+                    return decode(file);
+                }
+                stale = null;
+                checkPrefetchBudget(connection);
+                DiskCache.Metadata metadata = responseMetadata(connection, null);
+                InputStream input = new CancellableInputStream(IOUtils.getInputStream(connection));
+                Bitmap image = null;
+                boolean decodeFromFile = false;
+                try {
+                    String validator = rangeValidator(connection);
+                    int length = connection.getContentLength();
+                    OutputStream output = editor != null && validator != null && length >= MIN_RESUMABLE_LENGTH
+                            ? editor.openResumable(null, validator, length) : new FileOutputStream(target);
+                    if (reference.wantsPreviews()) {
+                        output = new ProgressiveScanner(output, length, new ProgressiveScanner.Listener() {
+                            @Override
+                            public void onPreviewAvailable(long prefixLength, boolean jpeg) {
+                                scheduler.executeOnDisk(new PreviewTask(reference, target, prefixLength, jpeg));
+                            }
+                        });
+                    }
+                    TeeInputStream tee = new TeeInputStream(input, output);
+                    try {
+                        if (decode) {
+                            try {
+                                image = BitmapUtils.loadBitmapStream(tee, pool,
+                                        reference.targetWidth, reference.targetHeight, scaleExactly);
+                            } catch (IOException e) {
+                                // bounds were too far into the response or the pooled bitmap
+                                // was rejected, the downloaded file will do
+                                decodeFromFile = true;
+                            }
+                        }
+                        tee.drain();
+                        int expected = connection.getContentLength();
+                        if (expected >= 0 && tee.getCount() != expected) {
+                            if (image != null) {
+                                pool.put(image);
+                            }
+                            throw new IOException("Got " + tee.getCount() + " of " + expected
+                                    + " bytes from " + reference.getUri());
+                        }
+                    } finally {
+                        downloaded += tee.getCount();
+                        output.close();
+                    }
+                } finally {
+                    input.close();
+                }
+
+                if (!decode) {
+                    storedOnly = editor != null && editor.commit(metadata) != null;
+                    return null;
+                }
+                if (image == null && !decodeFromFile) {
+                    if (editor != null) {
+                        editor.abort(false); // not an image, do not keep it, not even to resume
+                    }
+                    return null;
+                }
+                File file = editor != null ? editor.commit(metadata) : target;
+                if (decodeFromFile && file != null) {
+                    image = decode(file);
+                    if (image == null && editor != null) {
+                        diskCache.remove(key);
+                    }
+                } else if (file != null) {
+                    try {
+                        keepEncoded(file, MappedInputStream.map(file).content(), null);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to keep " + file + " in memory", e);
+                    }
+                }
+                return image;
+            }
+
+            /**
+             * Appends the rest of a partially downloaded response to what was kept, then
+             * decodes the whole file once committed, if asked to
+             */
+            private Bitmap resumeDownload(String key, DiskCache.Editor editor, URLConnection connection,
+                                          DiskCache.Partial partial, boolean decode) throws IOException {
+                long start = IOUtils.getContentRangeStart(connection);
+                if (start != partial.getLength()) {
+                    IOUtils.discard(connection);
+                    editor.abort(false);
+                    throw new IOException("Unexpected range starting at " + start + " from " + reference.getUri());
+                }
+                checkPrefetchBudget(connection);
+                DiskCache.Metadata metadata = responseMetadata(connection, null);
+                InputStream input = new CancellableInputStream(IOUtils.getInputStream(connection));
+                try {
+                    OutputStream output = editor.openResumable(partial, partial.getValidator(), partial.getTotalLength());
+                    TeeInputStream tee = new TeeInputStream(input, output);
+                    try {
+                        tee.drain();
+                    } finally {
+                        downloaded += tee.getCount();
+                        output.close();
+                    }
+                } finally {
+                    input.close();
+                }
+                File file = editor.commit(metadata); // checks length and checksum
+                if (file == null) {
+                    throw new IOException("Resumed download of " + reference.getUri() + " is incomplete");
+                }
+                if (!decode) {
+                    storedOnly = true;
+                    return null;
+                }
+                Bitmap image = decode(file);
+                if (image == null) {
+                    diskCache.remove(key);
+                }
+                return image;
+            }
+
+            /**
+             * Gives up a prefetch whose response is longer than what is left of its budget
+             */
+            private void checkPrefetchBudget(URLConnection connection) throws IOException {
+                if (!isBackground()) {
+                    return;
+                }
+                long remaining = prefetcher.remainingBytes();
+                int length = connection.getContentLength();
+                if (length > remaining) {
+                    if (connection instanceof HttpURLConnection) {
+                        ((HttpURLConnection) connection).disconnect();
+                    }
+                    throw new IOException("Prefetch of " + reference.getUri() + " is " + length
+                            + " bytes, over the " + remaining + " bytes left of its budget");
+                }
+            }
+
+            /**
+             * @return what identifies the content of the response in an <code>If-Range</code>
+             *         header: a strong ETag or else its last modification date, null if none
+             */
+            private String rangeValidator(URLConnection connection) {
+                String etag = connection.getHeaderField("ETag");
+                if (etag != null && !etag.startsWith("W/")) {
+                    return etag;
+                }
+                return connection.getHeaderField("Last-Modified");
+            }
+
+            /**
+             * @param revalidated metadata of the cached copy the response revalidated, to keep
+             *                    its validators unless new ones came, may be null
+             * @return metadata to store with the response
+             */
+            private DiskCache.Metadata responseMetadata(URLConnection connection, DiskCache.Metadata revalidated) {
+                String etag = connection.getHeaderField("ETag");
+                String lastModified = connection.getHeaderField("Last-Modified");
+                if (revalidated != null) {
+                    etag = etag != null ? etag : revalidated.getEtag();
+                    lastModified = lastModified != null ? lastModified : revalidated.getLastModified();
+                }
+                return new DiskCache.Metadata(reference.from, etag, lastModified,
+                        IOUtils.getExpiration(connection, System.currentTimeMillis()));
+            }
+
+            private void checkNotCancelled() throws InterruptedIOException {
+                if (isCancelled()) {
+                    throw new InterruptedIOException("Load of " + reference.from + " cancelled");
+                }
+            }
+
+            /**
+             * Stops reading, and so decoding, soon after the load gets cancelled. Checked
+             * every {@link #CANCEL_CHECK_INTERVAL} bytes rather than on every read, as it
+             * walks the observers.
+             */
+            private class CancellableInputStream extends FilterInputStream {
+                // checked on the first read already
+                private int uncheckedCount = CANCEL_CHECK_INTERVAL;
+
+                private CancellableInputStream(InputStream input) {
+                    super(input);
+                }
+
+                @Override
+                public int read() throws IOException {
+                    maybeCheckNotCancelled();
+                    int read = super.read();
+                    if (read >= 0) {
+                        uncheckedCount++;
+                    }
+                    return read;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    maybeCheckNotCancelled();
+                    int read = super.read(buffer, offset, length);
+                    if (read > 0) {
+                        uncheckedCount += read;
+                    }
+                    return read;
+                }
+
+                private void maybeCheckNotCancelled() throws InterruptedIOException {
+                    if (uncheckedCount >= CANCEL_CHECK_INTERVAL) {
+                        uncheckedCount = 0;
+                        checkNotCancelled();
+                    }
+                }
+            }
+
+            private Bitmap decode(File file) throws IOException {
+                return decode(file, null);
+            }
+
+            /**
+             * @param metadata footer of the file if read already, null to read it
+             */
+            private Bitmap decode(File file, DiskCache.Metadata metadata) throws IOException {
+                long decodeStart = metrics.start();
+                MappedInputStream input = MappedInputStream.map(file);
+                Bitmap image = BitmapUtils.loadMapped(input, pool,
+                        reference.targetWidth, reference.targetHeight, scaleExactly);
+                metrics.record(Metrics.Stage.DECODE, decodeStart);
+                if (image != null) {
+                    keepEncoded(file, input.content(), metadata);
+                }
+                return image;
+            }
+        }
+    }
+
+    static class BitmapRefCache extends UpdateableLruCache<String, BitmapRef> {
+        /**
+         * Minimum time between two adaptations of the budget
+         */
+        private static final long ADAPT_INTERVAL_MILLIS = 2000;
+        /**
+         * Time the budget does not grow back after the system asked to trim while running
+         */
+        private static final long PRESSURE_HOLD_MILLIS = 60 * 1000;
+        /**
+         * Bytes of a typical cached bitmap, a 128x128 ARGB_8888 thumbnail, to tell how many
+         * entries the budget can hold
+         */
+        private static final int EXPECTED_BITMAP_SIZE = 128 * 128 * 4;
+
+        private final Observer cacheObserver = new Observer() {
+            @Override
+            public void update(Observable observable, Object data) {
+                if (observable instanceof BitmapRef && !(data instanceof Bitmap)) { // previews are not cached
+                    updateRef((BitmapRef) observable);
+                }
+            }
+        };
+
+        private void updateRef(BitmapRef ref) {
+            put(ref.getCacheKey(), ref);
+            adaptBudget();
+        }
+
+        private final BitmapPool pool;
+        private final WeakBitmapCache weakCache;
+        /**
+         * Guarded by itself
+         */
+        private final MemoryBudget budget;
+        private long nextAdaptation;
+        private long pressureUntil;
+        /**
+         * Bytes of the bitmaps being decoded or created, room was made for them already
+         */
+        private final AtomicInteger reserved = new AtomicInteger();
+        private final Metrics metrics;
+        /**
+         * Why entries are evicted on the current thread, if not to make room
+         */
+        private final ThreadLocal<Metrics.EvictionReason> evictionReason = new ThreadLocal<Metrics.EvictionReason>();
+
+        public BitmapRefCache(BitmapPool pool, WeakBitmapCache weakCache, MemoryBudget budget, Metrics metrics) {
+            super(budget.getInitialSize(), createPolicy(CachePolicy.WINDOW_TINY_LFU, budget));
+            this.pool = pool;
+            this.weakCache = weakCache;
+            this.budget = budget;
+            this.metrics = metrics;
+        }
+
+        /**
+         * @param reason why entries evicted from now on by the current thread are, null once
+         *               they are to make room again
+         */
+        void setEvictionReason(Metrics.EvictionReason reason) {
+            if (reason != null) {
+                evictionReason.set(reason);
+            } else {
+                evictionReason.remove();
+            }
+        }
+
+        /**
+         * Evicts every entry for given reason
+         */
+        void evictFor(Metrics.EvictionReason reason) {
+            setEvictionReason(reason);
+            try {
+                evictAll();
+            } finally {
+                setEvictionReason(null);
+            }
+        }
+
+        /**
+         * Gets the ref of given uri, target size and transformation, promoting it back from
+         * the weak cache if it was evicted while still shown
+         *
+         * @return the ref or null if in neither
+         */
+        BitmapRef lookup(String uri, int targetWidth, int targetHeight, Transformation transformation) {
+            String key = cacheKey(uri, targetWidth, targetHeight, transformation);
+            BitmapRef ref = get(key);
+            if (ref != null) {
+                return ref;
+            }
+            Bitmap bitmap = weakCache.take(key);
+            if (bitmap == null) {
+                return null;
+            }
+            ref = new BitmapRef(uri, targetWidth, targetHeight, transformation);
+            ref.loaded(bitmap);
+            ref.expose(); // drawn by whoever kept it alive
+            putAndObserve(key, ref);
+            return ref;
+        }
+
+        static MemoryBudget createBudget() {
+            // bitmaps only live in the managed heap since Honeycomb
+            boolean managed = AppUtils.isHoneycombPlus();
+            return new MemoryBudget(managed ? Runtime.getRuntime().maxMemory() : Debug.getNativeHeapSize(), managed);
+        }
+
+        /**
+         * Adapts the budget to the heap headroom, at most once every {@link #ADAPT_INTERVAL_MILLIS}
+         */
+        void adaptBudget() {
+            if (!budget.isAdaptive()) {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            int adapted;
+            synchronized (budget) {
+                if (now < nextAdaptation) {
+                    return;
+                }
+                nextAdaptation = now + ADAPT_INTERVAL_MILLIS;
+                Runtime runtime = Runtime.getRuntime();
+                adapted = budget.adapt(maxSize(), size(), runtime.totalMemory() - runtime.freeMemory(), now >= pressureUntil);
+            }
+            if (adapted != maxSize()) {
+                setBudget(adapted);
+            }
+        }
+
+        /**
+         * Shrinks the budget to given fraction of it, it does not grow back for a while
+         */
+        void shrinkBudget(float fraction) {
+            int shrunk;
+            synchronized (budget) {
+                pressureUntil = SystemClock.uptimeMillis() + PRESSURE_HOLD_MILLIS;
+                shrunk = budget.bound((long) (maxSize() * fraction));
+            }
+            setBudget(shrunk);
+        }
+
+        private void setBudget(int maxSize) {
+            resize(maxSize);
+            pool.setMaxSize(maxSize / POOL_SIZE_DIVIDER);
+        }
+
+        /**
+         * Evicts entries, least valuable first, until given fraction of the budget is used
+         */
+        void trimToFraction(float fraction) {
+            trimToSize((int) (maxSize() * fraction));
+        }
+
+        /**
+         * Makes room for a bitmap about to be decoded or created, evicting entries until
+         * it and those reserved before it fit the budget. The reservation holds until
+         * released, which must be done whether the bitmap could be made or not.
+         *
+         * @param bytes exact size of the bitmap
+         */
+        void reserve(int bytes) {
+            int room = maxSize() - reserved.addAndGet(bytes);
+            if (size() > room) {
+                trimToSize(Math.max(0, room));
+            }
+        }
+
+        /**
+         * Ends a reservation, once the bitmap is cached or could not be made
+         */
+        void release(int bytes) {
+            reserved.addAndGet(-bytes);
+        }
+
+        /**
+         * Takes back the bitmap of an evicted ref once no lease holds it anymore: kept weakly
+         * if still shown by an observer, otherwise pooled or recycled if it was only ever
+         * leased. A bitmap handed out without a lease may still be held by the app, it is
+         * left to the garbage collector as its pixels must not be reused.
+         */
+        void reclaim(BitmapRef ref, Bitmap bitmap) {
+            if (!BitmapUtils.isBitmapValid(bitmap)) {
+                return;
+            }
+            if (ref.isVisible()) {
+                weakCache.put(ref.getCacheKey(), bitmap); // still shown, its pixels must be left as they are
+            } else if (ref.isRecyclable()) {
+                if (!pool.put(bitmap)) {
+                    bitmap.recycle();
+                }
+            }
+            // otherwise exposed and maybe still held by the app, left alone
+        }
+
+        /**
+         * Evicts every entry whose bitmap is not shown anymore
+         *
+         * @see BitmapRef#isVisible()
+         */
+        void trimToVisible() {
+            for (Map.Entry<String, BitmapRef> entry : snapshot().entrySet()) {
+                if (!entry.getValue().isVisible()) {
+                    remove(entry.getKey());
+                }
+            }
+        }
+
+        /**
+         * Replaces the eviction policy, cached bitmaps are kept
+         */
+        void setPolicy(CachePolicy policy) {
+            setPolicy(createPolicy(policy, budget));
+        }
+
+        /**
+         * @param budget the frequency sketch is sized by the most bitmaps it can ever hold,
+         *               so growing the budget never drops what was recorded
+         */
+        static EvictionPolicy<String, BitmapRef> createPolicy(CachePolicy policy, MemoryBudget budget) {
+            switch (policy) {
+                case LRU:
+                    return new LruPolicy<String, BitmapRef>();
+                default:
+                    return new WindowTinyLfuPolicy<String, BitmapRef>(WindowTinyLfuPolicy.DEFAULT_WINDOW_PERCENTAGE,
+                            Math.max(1, budget.getMaxSize() / EXPECTED_BITMAP_SIZE));
+            }
+        }
+
+        @Override
+        protected int sizeOf(String key, BitmapRef value) {
+            if (value != null) {
+                return value.getCurrentSize();
             }
             return 0;
         }
@@ -814,18 +2817,46 @@ public class BitmapHelper {
         @Override
         protected void entryRemoved(boolean evicted, String key, BitmapRef oldValue, BitmapRef newValue) {
             super.entryRemoved(evicted, key, oldValue, newValue);
+            if (metrics.isEnabled()) {
+                Metrics.EvictionReason reason = evictionReason.get();
+                if (reason == null) {
+                    reason = evicted ? Metrics.EvictionReason.SIZE
+                            : newValue != null ? Metrics.EvictionReason.REPLACED : Metrics.EvictionReason.REMOVED;
+                }
+                metrics.evicted(reason);
+            }
             if (oldValue != null && !oldValue.equals(newValue)) {
                 // We now just recycle the ref by removing observers and nulling the bitmap ref
-                oldValue.recycle();
+                // and give its pixels a second life unless the new entry holds the very same bitmap
+                if (newValue == null || newValue.getBitmap() != oldValue.getBitmap()) {
+                    oldValue.evict(this);
+                } else {
+                    oldValue.recycle();
+                }
             }
         }
 
-        public void putAndObserve(String urlFrom, BitmapRef ref) {
-            if (urlFrom == null || ref == null) {
+        public void putAndObserve(String key, BitmapRef ref) {
+            if (key == null || ref == null) {
                 return;
             }
-            put(urlFrom, ref);
+            put(key, ref);
+            weakCache.remove(key);
             ref.setStickyObserver(cacheObserver);
+            adaptBudget();
+        }
+
+        /**
+         * Same as {@link #putAndObserve(String, BitmapRef)} for a speculatively loaded ref,
+         * see {@link UpdateableLruCache#putProbationary(Object, Object)}
+         */
+        public void putProbationaryAndObserve(String key, BitmapRef ref) {
+            if (key == null || ref == null) {
+                return;
+            }
+            if (putProbationary(key, ref)) {
+                ref.setStickyObserver(cacheObserver);
+            }
         }
     }
 }
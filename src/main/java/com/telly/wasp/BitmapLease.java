@@ -0,0 +1,133 @@
+package com.telly.wasp;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Claim on a cached bitmap. While any lease on it is held the bitmap is neither recycled
+ * nor handed to the {@link BitmapPool}, even once evicted from the cache; it is the last
+ * release that gives it up.
+ * <p/>
+ * Leases must be released once the bitmap is not drawn anymore. Those garbage collected
+ * unreleased are released then and counted as leaked, with leak detection on they are
+ * also logged along with where they were acquired.
+ *
+ * @see BitmapHelper#acquire(String, int, int)
+ * @see BitmapHelper#setLeakDetection(boolean)
+ */
+public final class BitmapLease {
+    private static final String TAG = BitmapLease.class.getSimpleName();
+    private static final ReferenceQueue<BitmapLease> UNREACHABLE = new ReferenceQueue<BitmapLease>();
+    /**
+     * Keeps trackers reachable until their lease is released
+     */
+    private static final Set<Tracker> TRACKERS = Collections.synchronizedSet(new HashSet<Tracker>());
+    private static volatile boolean leakDetection;
+    private static int leakedCount;
+
+    private final BitmapHelper.BitmapRef ref;
+    private final Bitmap bitmap;
+    private final Tracker tracker;
+
+    BitmapLease(BitmapHelper.BitmapRef ref, Bitmap bitmap) {
+        this.ref = ref;
+        this.bitmap = bitmap;
+        tracker = new Tracker(this, ref, leakDetection ? new Throwable("Lease acquired here") : null);
+        TRACKERS.add(tracker);
+    }
+
+    /**
+     * @return the leased bitmap or null once released
+     */
+    public Bitmap getBitmap() {
+        return tracker.released ? null : bitmap;
+    }
+
+    /**
+     * @return url of the leased bitmap
+     */
+    public String getUri() {
+        return ref.getUri();
+    }
+
+    /**
+     * @return true once released
+     */
+    public boolean isReleased() {
+        return tracker.released;
+    }
+
+    /**
+     * Gives the bitmap up, it must not be drawn anymore. Releasing twice does nothing.
+     */
+    public void release() {
+        if (tracker.release()) {
+            ref.releaseLease();
+        }
+    }
+
+    /**
+     * @param enabled true to log leases garbage collected without being released, along
+     *                with where they were acquired. Meant for debug builds, as it records
+     *                a stack trace per lease.
+     */
+    static void setLeakDetection(boolean enabled) {
+        leakDetection = enabled;
+    }
+
+    /**
+     * @return number of leases garbage collected without being released
+     */
+    public static synchronized int leakedCount() {
+        return leakedCount;
+    }
+
+    /**
+     * Releases leases garbage collected unreleased. Takes the lease lock of their refs, so
+     * it must not be called holding the one of another ref.
+     */
+    static void expungeLeaked() {
+        Tracker tracker;
+        while ((tracker = (Tracker) UNREACHABLE.poll()) != null) {
+            if (tracker.release()) {
+                synchronized (BitmapLease.class) {
+                    leakedCount++;
+                }
+                if (tracker.acquiredAt != null) {
+                    Log.w(TAG, "Lease of " + tracker.ref.getUri() + " was never released", tracker.acquiredAt);
+                }
+                tracker.ref.releaseLease();
+            }
+        }
+    }
+
+    private static final class Tracker extends WeakReference<BitmapLease> {
+        final BitmapHelper.BitmapRef ref;
+        final Throwable acquiredAt;
+        volatile boolean released;
+
+        Tracker(BitmapLease lease, BitmapHelper.BitmapRef ref, Throwable acquiredAt) {
+            super(lease, UNREACHABLE);
+            this.ref = ref;
+            this.acquiredAt = acquiredAt;
+        }
+
+        /**
+         * @return true if it was not released yet
+         */
+        synchronized boolean release() {
+            if (released) {
+                return false;
+            }
+            released = true;
+            TRACKERS.remove(this);
+            return true;
+        }
+    }
+}
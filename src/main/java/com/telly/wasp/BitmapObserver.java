@@ -1,22 +1,51 @@
 package com.telly.wasp;
 
 import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
 import android.os.Handler;
+import android.view.View;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * Observer used to set the bitmap in given ImageView
+ * <p/>
+ * The bitmap set is leased, see {@link BitmapLease}, until the view gets associated to
+ * another url or, since Honeycomb MR1, detached from its window. The view is cleared
+ * then if still showing it, and it gets loaded again once the view is attached back.
+ * Observers must be created and leases are handled on the UI thread.
  *
  * @author evelio
  * @version 1.0
  */
 public class BitmapObserver extends BaseBitmapObserver {
+    /**
+     * What each view shows, only touched from the UI thread
+     */
+    private static final Map<ImageView, Shown> SHOWN = new WeakHashMap<ImageView, Shown>();
+    /**
+     * Observers of views detached from their window, to load their bitmap again once
+     * attached back. Only touched from the UI thread.
+     */
+    private static final Map<ImageView, BitmapObserver> DETACHED = new WeakHashMap<ImageView, BitmapObserver>();
+    /**
+     * Whether each observer class leases bitmaps, see {@link #leasesBitmaps()}
+     */
+    private static final Map<Class<?>, Boolean> LEASING_CLASSES = new HashMap<Class<?>, Boolean>();
+
     private final WeakReference<ImageView> viewRef;
+    private final boolean leasesBitmaps;
 
     /**
-     * Creates an observer by associating a given imgView with given URL.
+     * Creates an observer by associating a given imgView with given URL. The bitmap
+     * will be decoded to fit the view size, if known, either as laid out or as set in
+     * its layout params.
      * <p/>
      * Note: this will change image's tag using {@link ImageView#setTag(Object)}.
      *
@@ -28,6 +57,56 @@ public class BitmapObserver extends BaseBitmapObserver {
         super(url, uiThreadHandler);
         viewRef = new WeakReference<ImageView>(imgView);
         imgView.setTag(url);
+        leasesBitmaps = isLeasing(getClass());
+        releaseStale(imgView, url);
+        ViewGroup.LayoutParams params = imgView.getLayoutParams();
+        setTargetSize(targetDimension(imgView.getWidth(), params != null ? params.width : 0),
+                targetDimension(imgView.getHeight(), params != null ? params.height : 0));
+    }
+
+    /**
+     * Creates an observer by associating a given imgView with given URL and decoding the
+     * bitmap to fit the given size.
+     * <p/>
+     * Note: this will change image's tag using {@link ImageView#setTag(Object)}.
+     *
+     * @param imgView         View to assign bitmap to
+     * @param url             URL to associate
+     * @param uiThreadHandler Handler created in UI Thread
+     * @param targetWidth     target width in pixels, 0 if it does not matter
+     * @param targetHeight    target height in pixels, 0 if it does not matter
+     */
+    public BitmapObserver(ImageView imgView, String url, Handler uiThreadHandler, int targetWidth, int targetHeight) {
+        super(url, uiThreadHandler);
+        viewRef = new WeakReference<ImageView>(imgView);
+        imgView.setTag(url);
+        leasesBitmaps = isLeasing(getClass());
+        releaseStale(imgView, url);
+        setTargetSize(targetWidth, targetHeight);
+    }
+
+    /**
+     * @return the laid out size if any, otherwise the layout param if it is a fixed size
+     */
+    private static int targetDimension(int laidOut, int layoutParam) {
+        if (laidOut > 0) {
+            return laidOut;
+        }
+        return layoutParam > 0 ? layoutParam : 0;
+    }
+
+    /**
+     * @return false once the view is gone or got associated to another url
+     */
+    @Override
+    public boolean isStillNeeded(String uri) {
+        ImageView actualView = viewRef.get();
+        return actualView != null && uri != null && uri.equals(actualView.getTag()) && super.isStillNeeded(uri);
+    }
+
+    @Override
+    boolean leasesBitmaps() {
+        return leasesBitmaps;
     }
 
     @Override
@@ -36,6 +115,19 @@ public class BitmapObserver extends BaseBitmapObserver {
         if (actualView == null || !BitmapUtils.isBitmapValid(bitmap)) {
             return;
         }
+        BitmapLease acquired = null;
+        if (leasesBitmaps && ref.isLoaded()) { // previews are not leased
+            acquired = ref.acquire();
+            if (acquired == null || acquired.getBitmap() != bitmap) {
+                if (acquired != null) {
+                    acquired.release();
+                }
+                // evicted meanwhile, its pixels may be reused already
+                BitmapHelper.getInstance().registerBitmapObserver(actualView.getContext(), this);
+                return;
+            }
+        }
+        final BitmapLease lease = acquired;
         final String refUri = ref.getUri();
         getHandler().post(new Runnable() {
             @Override
@@ -45,8 +137,120 @@ public class BitmapObserver extends BaseBitmapObserver {
                 // sure the bitmap that is shown is the correct one
                 if (refUri.equals(actualView.getTag())) {
                     actualView.setImageBitmap(bitmap);
+                    if (lease != null) {
+                        show(actualView, new Shown(lease, BitmapObserver.this));
+                    }
+                } else if (lease != null) {
+                    lease.release();
                 }
             }
         });
     }
+
+    /**
+     * Records the lease of the bitmap a view now shows, releasing that of the previous one
+     */
+    private static void show(ImageView view, Shown shown) {
+        Shown previous = SHOWN.put(view, shown);
+        if (previous != null) {
+            previous.lease.release();
+        } else if (AppUtils.isHoneycombMR1Plus()) {
+            view.removeOnAttachStateChangeListener(AttachListener.INSTANCE);
+            view.addOnAttachStateChangeListener(AttachListener.INSTANCE);
+        }
+        DETACHED.remove(view);
+    }
+
+    /**
+     * Releases the bitmap a view shows if it is not that of given url
+     */
+    private static void releaseStale(ImageView view, String url) {
+        DETACHED.remove(view);
+        Shown shown = SHOWN.get(view);
+        if (shown != null && (url == null || !url.equals(shown.lease.getUri()))) {
+            SHOWN.remove(view);
+            release(view, shown.lease);
+        }
+    }
+
+    /**
+     * Releases a lease, clearing the view first if it still shows the leased bitmap
+     */
+    private static void release(ImageView view, BitmapLease lease) {
+        Drawable drawable = view.getDrawable();
+        if (drawable instanceof BitmapDrawable && ((BitmapDrawable) drawable).getBitmap() == lease.getBitmap()) {
+            view.setImageDrawable(null);
+        }
+        lease.release();
+    }
+
+    /**
+     * @return true unless given class changes how bitmaps are delivered, it would not know
+     *         about leases
+     */
+    private static boolean isLeasing(Class<?> type) {
+        synchronized (LEASING_CLASSES) {
+            Boolean leasing = LEASING_CLASSES.get(type);
+            if (leasing == null) {
+                leasing = true;
+                for (Class<?> current = type; current != BitmapObserver.class; current = current.getSuperclass()) {
+                    if (declares(current, "doLoad", BitmapHelper.BitmapRef.class, Bitmap.class)
+                            || declares(current, "doLoad", BitmapHelper.BitmapRef.class, Bitmap.class, boolean.class)) {
+                        leasing = false;
+                        break;
+                    }
+                }
+                LEASING_CLASSES.put(type, leasing);
+            }
+            return leasing;
+        }
+    }
+
+    private static boolean declares(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            type.getDeclaredMethod(name, parameterTypes);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Lease of the bitmap a view shows and the observer that set it
+     */
+    private static final class Shown {
+        final BitmapLease lease;
+        final BitmapObserver observer;
+
+        Shown(BitmapLease lease, BitmapObserver observer) {
+            this.lease = lease;
+            this.observer = observer;
+        }
+    }
+
+    /**
+     * Releases the bitmaps of detached views and loads them again once attached back,
+     * only loaded where attach state listeners exist
+     */
+    private static final class AttachListener implements View.OnAttachStateChangeListener {
+        static final AttachListener INSTANCE = new AttachListener();
+
+        @Override
+        public void onViewAttachedToWindow(View v) {
+            BitmapObserver observer = DETACHED.remove(v);
+            if (observer != null && observer.isStillNeeded(observer.getUrl())) {
+                BitmapHelper.getInstance().registerBitmapObserver(v.getContext(), observer);
+            }
+        }
+
+        @Override
+        public void onViewDetachedFromWindow(View v) {
+            Shown shown = SHOWN.remove(v);
+            if (shown != null) {
+                ImageView view = (ImageView) v;
+                release(view, shown.lease);
+                DETACHED.put(view, shown.observer);
+            }
+        }
+    }
 }
@@ -0,0 +1,193 @@
+package com.telly.wasp;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Pool of mutable bitmaps no longer in use, grouped by width, height and config so their
+ * pixel buffers can be reused instead of allocating new ones. Bounded by a byte budget,
+ * the least recently used group loses a bitmap first when it is exceeded.
+ *
+ * @see BitmapHelper#getBitmapPool()
+ */
+public final class BitmapPool {
+    private final LinkedHashMap<Key, LinkedList<Bitmap>> groups = new LinkedHashMap<Key, LinkedList<Bitmap>>(16, 0.75f, true);
+    private int size;
+    private int maxSize;
+
+    private int hitCount;
+    private int missCount;
+    private int putCount;
+    private int evictionCount;
+
+    /**
+     * @param maxSize maximum sum in bytes of the pooled bitmaps, 0 disables the pool
+     */
+    BitmapPool(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Offers a bitmap to the pool, it must not be used by anyone else from now on.
+     *
+     * @return true if the bitmap was pooled
+     */
+    synchronized boolean put(Bitmap bitmap) {
+        if (!BitmapUtils.isBitmapValid(bitmap) || !bitmap.isMutable() || bitmap.getConfig() == null) {
+            return false;
+        }
+        int bitmapSize = BitmapUtils.getBitmapSize(bitmap);
+        if (bitmapSize > maxSize) {
+            return false;
+        }
+        Key key = new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        LinkedList<Bitmap> group = groups.get(key);
+        if (group == null) {
+            group = new LinkedList<Bitmap>();
+            groups.put(key, group);
+        }
+        group.addLast(bitmap);
+        size += bitmapSize;
+        putCount++;
+        trimToSize(maxSize);
+        return true;
+    }
+
+    /**
+     * Takes a pooled bitmap out of the pool, its pixels are left as they are.
+     *
+     * @return a mutable bitmap with exactly the given dimensions and config or null if none is pooled
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (config == null) {
+            return null;
+        }
+        LinkedList<Bitmap> group = groups.get(new Key(width, height, config));
+        while (group != null && !group.isEmpty()) {
+            Bitmap bitmap = group.removeLast();
+            size -= BitmapUtils.getBitmapSize(bitmap);
+            if (group.isEmpty()) {
+                groups.remove(new Key(width, height, config));
+            }
+            if (BitmapUtils.isBitmapValid(bitmap)) {
+                hitCount++;
+                return bitmap;
+            }
+        }
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Drops pooled bitmaps until the pool uses at most {@code maxSize} bytes
+     */
+    synchronized void trimToSize(int maxSize) {
+        Iterator<Map.Entry<Key, LinkedList<Bitmap>>> iterator = groups.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            LinkedList<Bitmap> group = iterator.next().getValue();
+            while (size > maxSize && !group.isEmpty()) {
+                // bitmaps are not recycled as pixels could still be drawn somewhere, GC will get them
+                size -= BitmapUtils.getBitmapSize(group.removeFirst());
+                evictionCount++;
+            }
+            if (group.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        if (groups.isEmpty()) {
+            size = 0; // recycled bitmaps report 0 bytes, do not carry that error
+        }
+    }
+
+    /**
+     * Drops every pooled bitmap
+     */
+    public void clear() {
+        trimToSize(-1);
+    }
+
+    /**
+     * @param maxSize new maximum sum in bytes of the pooled bitmaps, 0 disables the pool
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * @return sum in bytes of the pooled bitmaps
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return number of times a pooled bitmap was handed out
+     */
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of times no pooled bitmap matched the request
+     */
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    public synchronized int putCount() {
+        return putCount;
+    }
+
+    public synchronized int evictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = hitCount + missCount;
+        int hitPercent = accesses != 0 ? (int) (100L * hitCount / accesses) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                size, maxSize, hitCount, missCount, hitPercent);
+    }
+
+    private static final class Key {
+        private final int width;
+        private final int height;
+        private final Bitmap.Config config;
+
+        Key(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return width == other.width && height == other.height && config == other.config;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * width + height) * 31 + config.hashCode();
+        }
+    }
+}
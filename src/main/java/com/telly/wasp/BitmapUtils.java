@@ -3,26 +3,404 @@ package com.telly.wasp;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
 /**
  * @author evelio
  * @version 1.0
  */
 public class BitmapUtils {
-    private static final BitmapFactory.Options normalOptions = new BitmapFactory.Options();
+    private static final Bitmap.Config DEFAULT_CONFIG = Bitmap.Config.ARGB_8888;
+    /**
+     * How much of a stream is kept to read it again after its bounds, image headers are
+     * usually found well within it
+     */
+    static final int STREAM_MARK_LIMIT = 128 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+    /**
+     * How much smaller than the final bitmap previews are decoded, they are short lived
+     */
+    private static final int PREVIEW_SUBSAMPLING = 4;
 
-    static {
-        normalOptions.inDither = true;
-        normalOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
-        normalOptions.inPurgeable = true;
-        normalOptions.inScaled = true;
+    private static BitmapFactory.Options newDecodeOptions() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inDither = true;
+        options.inPreferredConfig = DEFAULT_CONFIG;
+        options.inPurgeable = true;
+        options.inScaled = true;
+        return options;
     }
 
     public static Bitmap loadBitmapFile(String path) {
+        return loadBitmapFile(path, null);
+    }
+
+    /**
+     * Decodes a file reusing the pixels of a pooled bitmap when one with the same
+     * dimensions is available. Decoded bitmaps are mutable so they can be pooled later.
+     *
+     * @param path file to decode
+     * @param pool pool to take a bitmap from, may be null
+     * @return decoded bitmap or null if it could not be decoded
+     */
+    public static Bitmap loadBitmapFile(String path, BitmapPool pool) {
+        return loadBitmapFile(path, pool, 0, 0, false);
+    }
+
+    /**
+     * Decodes a file no bigger than needed to cover the given target size. Bounds are
+     * read first and the image is subsampled by the largest power of two that keeps it
+     * at least as big as the target, so the result can be up to twice the target size
+     * unless {@code scaleExactly} is set.
+     *
+     * @param path         file to decode
+     * @param pool         pool to take a bitmap from, may be null
+     * @param reqWidth     target width in pixels, 0 if it does not matter
+     * @param reqHeight    target height in pixels, 0 if it does not matter
+     * @param scaleExactly true to scale the subsampled bitmap down to just cover the target size
+     * @return decoded bitmap or null if it could not be decoded
+     */
+    public static Bitmap loadBitmapFile(String path, BitmapPool pool, int reqWidth, int reqHeight, boolean scaleExactly) {
+        BitmapFactory.Options options = newDecodeOptions();
+        boolean sized = reqWidth > 0 || reqHeight > 0;
+        boolean reuse = pool != null && AppUtils.isHoneycombPlus();
+        if (sized || reuse) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, options);
+            if (!prepareDecode(options, pool, reqWidth, reqHeight, reuse)) {
+                return null;
+            }
+        }
+        Bitmap bitmap = decodeFile(path, options, pool);
+        if (scaleExactly && sized && bitmap != null) {
+            bitmap = scaleToCover(bitmap, reqWidth, reqHeight, pool);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Same as {@link #loadBitmapFile(String, BitmapPool, int, int, boolean)} reading a
+     * memory mapping of the file, bytes go from the page cache to the decoder with no copy
+     * in between and bounds are read without buffering anything
+     *
+     * @param file         file to decode
+     * @param pool         pool to take a bitmap from, may be null
+     * @param reqWidth     target width in pixels, 0 if it does not matter
+     * @param reqHeight    target height in pixels, 0 if it does not matter
+     * @param scaleExactly true to scale the subsampled bitmap down to just cover the target size
+     * @return decoded bitmap or null if it could not be decoded
+     * @throws IOException if the file could not be mapped
+     */
+    public static Bitmap loadBitmapFile(File file, BitmapPool pool, int reqWidth, int reqHeight, boolean scaleExactly)
+            throws IOException {
+        return loadMapped(MappedInputStream.map(file), pool, reqWidth, reqHeight, scaleExactly);
+    }
+
+    /**
+     * Decodes a mapped file from its start
+     *
+     * @see #loadBitmapFile(File, BitmapPool, int, int, boolean)
+     */
+    static Bitmap loadMapped(MappedInputStream input, BitmapPool pool, int reqWidth, int reqHeight,
+                             boolean scaleExactly) {
+        BitmapFactory.Options options = newDecodeOptions();
+        boolean sized = reqWidth > 0 || reqHeight > 0;
+        boolean reuse = pool != null && AppUtils.isHoneycombPlus();
+        input.mark(0);
+        if (sized || reuse) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(input, null, options);
+            input.reset();
+            if (!prepareDecode(options, pool, reqWidth, reqHeight, reuse)) {
+                return null;
+            }
+        }
+        Bitmap bitmap = decodeMapped(input, options, pool);
+        if (scaleExactly && sized && bitmap != null) {
+            bitmap = scaleToCover(bitmap, reqWidth, reqHeight, pool);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Same as {@link #loadBitmapFile(String, BitmapPool, int, int, boolean)} for content
+     * already in memory
+     *
+     * @param data         encoded image
+     * @param pool         pool to take a bitmap from, may be null
+     * @param reqWidth     target width in pixels, 0 if it does not matter
+     * @param reqHeight    target height in pixels, 0 if it does not matter
+     * @param scaleExactly true to scale the subsampled bitmap down to just cover the target size
+     * @return decoded bitmap or null if it could not be decoded
+     */
+    public static Bitmap loadBitmapBytes(byte[] data, BitmapPool pool, int reqWidth, int reqHeight, boolean scaleExactly) {
+        BitmapFactory.Options options = newDecodeOptions();
+        boolean sized = reqWidth > 0 || reqHeight > 0;
+        boolean reuse = pool != null && AppUtils.isHoneycombPlus();
+        if (sized || reuse) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            if (!prepareDecode(options, pool, reqWidth, reqHeight, reuse)) {
+                return null;
+            }
+        }
+        Bitmap bitmap = decodeByteArray(data, options, pool);
+        if (scaleExactly && sized && bitmap != null) {
+            bitmap = scaleToCover(bitmap, reqWidth, reqHeight, pool);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Same as {@link #loadBitmapFile(String, BitmapPool, int, int, boolean)} but decoding
+     * content as it is read, e.g. straight from the network. When bounds are needed the
+     * stream is buffered and read again after them, which only works if they are found
+     * within the first {@link #STREAM_MARK_LIMIT} bytes.
+     *
+     * @param input        stream to decode, it is not closed
+     * @param pool         pool to take a bitmap from, may be null
+     * @param reqWidth     target width in pixels, 0 if it does not matter
+     * @param reqHeight    target height in pixels, 0 if it does not matter
+     * @param scaleExactly true to scale the subsampled bitmap down to just cover the target size
+     * @return decoded bitmap or null if it could not be decoded
+     * @throws IOException if the stream could not be read again after its bounds or the
+     *                     pooled bitmap was rejected, part of it was consumed so the caller
+     *                     must decode its content some other way
+     */
+    public static Bitmap loadBitmapStream(InputStream input, BitmapPool pool, int reqWidth, int reqHeight,
+                                          boolean scaleExactly) throws IOException {
+        BitmapFactory.Options options = newDecodeOptions();
+        boolean sized = reqWidth > 0 || reqHeight > 0;
+        boolean reuse = pool != null && AppUtils.isHoneycombPlus();
+        if (sized || reuse) {
+            if (!input.markSupported()) {
+                input = new BufferedInputStream(input, STREAM_BUFFER_SIZE);
+            }
+            input.mark(STREAM_MARK_LIMIT);
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(input, null, options);
+            input.reset();
+            if (!prepareDecode(options, pool, reqWidth, reqHeight, reuse)) {
+                return null;
+            }
+        }
+        Bitmap bitmap = decodeStream(input, options, pool);
+        if (scaleExactly && sized && bitmap != null) {
+            bitmap = scaleToCover(bitmap, reqWidth, reqHeight, pool);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Reads the bounds of the image a stream starts with from its first
+     * {@link #STREAM_MARK_LIMIT} bytes, then pushes them back so the stream can be decoded
+     * with the returned options to get a full size bitmap of the bounds read
+     *
+     * @param input stream able to push back {@link #STREAM_MARK_LIMIT} bytes
+     * @return options to decode the stream with or null if there are no bounds within its
+     *         first bytes, e.g. not an image or headers past them
+     * @throws IOException if the stream could not be read
+     */
+    static BitmapFactory.Options readBounds(PushbackInputStream input) throws IOException {
+        byte[] head = new byte[STREAM_MARK_LIMIT];
+        int length = 0;
+        int read;
+        while (length < head.length && (read = input.read(head, length, head.length - length)) != -1) {
+            length += read;
+        }
+        input.unread(head, 0, length);
+        BitmapFactory.Options options = newDecodeOptions();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(head, 0, length, options);
+        options.inJustDecodeBounds = false;
+        return options.outWidth > 0 && options.outHeight > 0 ? options : null;
+    }
+
+    /**
+     * Decodes a low resolution preview from the first part of an image, e.g. the first
+     * scans of a progressive JPEG. Previews are not pooled.
+     *
+     * @param data      content of the image received so far
+     * @param length    number of bytes of data to decode
+     * @param reqWidth  target width in pixels of the final bitmap, 0 if it does not matter
+     * @param reqHeight target height in pixels of the final bitmap, 0 if it does not matter
+     * @return decoded preview or null if the platform could not decode such a partial image
+     */
+    public static Bitmap loadPreview(byte[] data, int length, int reqWidth, int reqHeight) {
+        BitmapFactory.Options options = newDecodeOptions();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight)
+                * PREVIEW_SUBSAMPLING;
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, length, options);
+        } catch (OutOfMemoryError error) {
+            return null;
+        }
+    }
+
+    /**
+     * Turns options holding decoded bounds into options for the actual decode
+     *
+     * @return false if bounds could not be read, i.e. not an image we can decode
+     */
+    private static boolean prepareDecode(BitmapFactory.Options options, BitmapPool pool,
+                                         int reqWidth, int reqHeight, boolean reuse) {
+        options.inJustDecodeBounds = false;
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return false;
+        }
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        if (reuse) {
+            options.inMutable = true;
+            // subsampled dimensions are decoder specific, only reuse when they are known
+            if (options.inSampleSize == 1) {
+                options.inBitmap = pool.get(options.outWidth, options.outHeight, options.inPreferredConfig);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return largest power of two sample size that keeps the image at least as big
+     *         as the requested dimensions, 1 if no dimension was requested
+     */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 && reqHeight <= 0) {
+            return sampleSize;
+        }
+        while ((reqWidth <= 0 || width / (sampleSize * 2) >= reqWidth)
+                && (reqHeight <= 0 || height / (sampleSize * 2) >= reqHeight)) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Scales a bitmap down, keeping its aspect ratio, to the smallest size covering the
+     * requested dimensions. Given bitmap is handed to the pool if a new one was created.
+     */
+    private static Bitmap scaleToCover(Bitmap bitmap, int reqWidth, int reqHeight, BitmapPool pool) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        float scale = Math.max(reqWidth > 0 ? reqWidth / (float) width : 0f,
+                reqHeight > 0 ? reqHeight / (float) height : 0f);
+        if (scale <= 0f || scale >= 1f) {
+            return bitmap;
+        }
+        Bitmap scaled;
+        try {
+            scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)), true);
+        } catch (OutOfMemoryError error) {
+            return bitmap;
+        }
+        if (scaled != bitmap && pool != null) {
+            pool.put(bitmap);
+        }
+        return scaled;
+    }
+
+    private static Bitmap decodeFile(String path, BitmapFactory.Options options, BitmapPool pool) {
         try {
-            return BitmapFactory.decodeFile(path, normalOptions);
+            return BitmapFactory.decodeFile(path, options);
         } catch (OutOfMemoryError error) {
             return null;
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            // pooled bitmap could not be reused for this image, e.g. unsupported format
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            try {
+                return BitmapFactory.decodeFile(path, options);
+            } catch (OutOfMemoryError error) {
+                return null;
+            }
+        }
+    }
+
+    private static Bitmap decodeByteArray(byte[] data, BitmapFactory.Options options, BitmapPool pool) {
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (OutOfMemoryError error) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            // pooled bitmap could not be reused for this image, e.g. unsupported format
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            try {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            } catch (OutOfMemoryError error) {
+                return null;
+            }
+        }
+    }
+
+    private static Bitmap decodeMapped(MappedInputStream input, BitmapFactory.Options options, BitmapPool pool) {
+        try {
+            return BitmapFactory.decodeStream(input, null, options);
+        } catch (OutOfMemoryError error) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            // pooled bitmap could not be reused for this image, the mapping can be read again
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            input.reset();
+            try {
+                return BitmapFactory.decodeStream(input, null, options);
+            } catch (OutOfMemoryError error) {
+                return null;
+            }
+        }
+    }
+
+    private static Bitmap decodeStream(InputStream input, BitmapFactory.Options options, BitmapPool pool)
+            throws IOException {
+        try {
+            return BitmapFactory.decodeStream(input, null, options);
+        } catch (OutOfMemoryError error) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            // unlike files a stream cannot be decoded again, keep the pooled bitmap and let
+            // the caller decode the content some other way, it is an image
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            throw new IOException("Pooled bitmap rejected once the stream was read");
+        }
+    }
+
+    /**
+     * @return bytes a bitmap of given dimensions and config takes, as if ARGB_8888 when the
+     *         config is unknown
+     */
+    static int getBitmapSize(int width, int height, Bitmap.Config config) {
+        int bytesPerPixel = 4;
+        if (config == Bitmap.Config.ALPHA_8) {
+            bytesPerPixel = 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            bytesPerPixel = 2;
         }
+        return width * height * bytesPerPixel;
     }
 
     public static int getBitmapSize(Bitmap bitmap) {
@@ -0,0 +1,62 @@
+package com.telly.wasp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream failing as soon as more than a given number of bytes is read from it, so
+ * an oversized response of unknown length is abandoned early instead of read to the end.
+ */
+final class BoundedInputStream extends FilterInputStream {
+    private final long limit;
+    private long count;
+
+    /**
+     * @param input stream to read from
+     * @param limit maximum number of bytes to read
+     */
+    BoundedInputStream(InputStream input, long limit) {
+        super(input);
+        this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = in.read(buffer, offset, length);
+        if (read > 0) {
+            count(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(n);
+        if (skipped > 0) {
+            count(skipped);
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(long read) throws IOException {
+        count += read;
+        if (count > limit) {
+            throw new IOException("Content over the limit of " + limit + " bytes");
+        }
+    }
+}
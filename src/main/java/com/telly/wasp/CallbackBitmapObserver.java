@@ -37,6 +37,15 @@ public class CallbackBitmapObserver extends BaseBitmapObserver {
         mCallbackRef = callback;
     }
 
+    /**
+     * @return false once the callback does not need the url anymore
+     * @see BitmapCallback#stillNeedsUrl(String)
+     */
+    @Override
+    public boolean isStillNeeded(String uri) {
+        return mCallbackRef != null && mCallbackRef.stillNeedsUrl(uri) && super.isStillNeeded(uri);
+    }
+
     @Override
     protected void doLoad(BitmapHelper.BitmapRef reference, final Bitmap bitmap) {
         final String refUri = reference.getUri();
@@ -0,0 +1,1113 @@
+package com.telly.wasp;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.FilterOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Size bounded cache of files in a dedicated directory, evicting the least recently used ones.
+ * <p/>
+ * Entries are tracked by an in memory index rebuilt at open time from an append only
+ * journal, so lookups never touch the file system. New content is written to a temporary
+ * file and only becomes visible once {@link Editor#commit()} renames it in place.
+ * Evictions, journal compaction and bulk deletes happen in a background thread.
+ * <p/>
+ * Journal lines are {@code CLEAN <key> <length>}, {@code READ <key>} or {@code REMOVE <key>}.
+ * If the journal is missing or unreadable the index is rebuilt from the directory contents.
+ * <p/>
+ * Files are spread in subdirectories named after the first two characters of their key,
+ * which should be uniformly distributed (e.g. a hex digest), to keep directories small.
+ * An entry may carry a footer naming its origin and HTTP validators, see
+ * {@link Editor#commit(Metadata)}; footers go after the content so image decoders, which
+ * stop at the end of the image, ignore them.
+ * <p/>
+ * Long content can be written resumably, see {@link Editor#openResumable(Partial, String, long)}:
+ * if the edit is aborted or the process dies what was written is kept, next to a sidecar
+ * with checksummed checkpoints, so a later edit of the same key picks it up from there.
+ */
+public final class DiskCache {
+    private static final String TAG = "DiskCache";
+    private static final String JOURNAL_FILE = "wasp.journal";
+    private static final int SHARD_LENGTH = 2;
+    /**
+     * Last bytes of a file having a footer with just its origin, "WSP1"
+     */
+    private static final int ORIGIN_FOOTER_MAGIC = 0x57535031;
+    /**
+     * Last bytes of a file having a {@link Metadata} footer, "WSP2"
+     */
+    private static final int METADATA_FOOTER_MAGIC = 0x57535032;
+    private static final int FOOTER_TRAILER_LENGTH = 8;
+    private static final int MAX_FOOTER_PAYLOAD_LENGTH = 64 * 1024;
+    private static final String MAGIC = "com.telly.wasp.DiskCache";
+    private static final String VERSION = "1";
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final String TEMP_SUFFIX = ".tmp";
+    /**
+     * Suffix of the sidecar of a resumable temporary file, also a temporary file
+     */
+    private static final String PARTIAL_SUFFIX = ".partial" + TEMP_SUFFIX;
+    /**
+     * Bytes written to a resumable file between checkpoints
+     */
+    private static final int CHECKPOINT_INTERVAL = 256 * 1024;
+    /**
+     * Temporary files left behind are deleted after this long without being touched
+     */
+    private static final long STALE_TEMP_MILLIS = 2L * 24L * 60L * 60L * 1000L; // 2 days
+    /**
+     * Journal lines not describing the current state tolerated before compacting it
+     */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private final File directory;
+    private final File journalFile;
+    private final File journalFileTmp;
+    /**
+     * Length of every committed entry, in access order
+     */
+    private final LinkedHashMap<String, Long> lengths = new LinkedHashMap<String, Long>(0, 0.75f, true);
+    private final Set<String> editing = new HashSet<String>();
+    private final ExecutorService cleanupExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "wasp-disk-cache");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private Writer journalWriter;
+    private long size;
+    private long maxSize;
+    private int redundantOpCount;
+    private boolean cleanupScheduled;
+
+    private int hitCount;
+    private int missCount;
+
+    /**
+     * Opens the cache in given directory, reading its journal
+     *
+     * @param directory directory to keep the files and journal in, created if needed and
+     *                  not to be shared with anything else
+     * @param maxSize   maximum sum in bytes of the cached files
+     */
+    DiskCache(File directory, long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + directory);
+        }
+        this.directory = directory;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.journalFileTmp = new File(directory, JOURNAL_FILE + TEMP_SUFFIX);
+        this.maxSize = maxSize;
+        synchronized (this) {
+            open();
+        }
+    }
+
+    /**
+     * Looks up an entry and marks it as recently used, only the index is checked
+     *
+     * @return the committed file for given key or null if none
+     */
+    public synchronized File get(String key) {
+        if (!lengths.containsKey(key)) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        lengths.get(key); // access order
+        redundantOpCount++;
+        appendToJournal(READ + ' ' + key, false);
+        scheduleCleanupIfNeeded();
+        return fileFor(key);
+    }
+
+    /**
+     * @return true if there is a committed entry for given key, does not count as a use
+     */
+    public synchronized boolean contains(String key) {
+        return lengths.containsKey(key);
+    }
+
+    /**
+     * Starts writing an entry
+     *
+     * @param key at least two characters long and safe to use as a file name
+     * @return an editor or null if another edit of the same key is in progress
+     */
+    public synchronized Editor edit(String key) {
+        if (key.length() < SHARD_LENGTH) {
+            throw new IllegalArgumentException("Key too short: " + key);
+        }
+        if (!editing.add(key)) {
+            return null;
+        }
+        return new Editor(key);
+    }
+
+    /**
+     * Removes an entry and deletes its file
+     *
+     * @return true if there was such entry
+     */
+    public boolean remove(String key) {
+        File file;
+        synchronized (this) {
+            if (!removeLocked(key)) {
+                return false;
+            }
+            file = fileFor(key);
+        }
+        delete(file);
+        return true;
+    }
+
+    /**
+     * Forgets every entry right away and deletes their files in background
+     */
+    public void clear() {
+        final List<File> files = new ArrayList<File>();
+        synchronized (this) {
+            for (String key : lengths.keySet()) {
+                files.add(fileFor(key));
+            }
+            lengths.clear();
+            size = 0;
+            rebuildJournal();
+        }
+        cleanupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (File file : files) {
+                    delete(file);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param maxSize new maximum sum in bytes of the cached files, exceeding files are
+     *                evicted in background
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        scheduleCleanupIfNeeded();
+    }
+
+    /**
+     * @return sum in bytes of the cached files
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return number of cached files
+     */
+    public synchronized int count() {
+        return lengths.size();
+    }
+
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    /**
+     * Writes pending journal lines to disk
+     */
+    public synchronized void flush() {
+        if (journalWriter != null) {
+            try {
+                journalWriter.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to flush journal", e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DiskCache[size=%d,maxSize=%d,count=%d,hits=%d,misses=%d]",
+                size, maxSize, lengths.size(), hitCount, missCount);
+    }
+
+    /**
+     * Runs given task on the low priority thread files of this cache are deleted on
+     */
+    void executeInBackground(Runnable task) {
+        cleanupExecutor.execute(task);
+    }
+
+    File fileFor(String key) {
+        return new File(new File(directory, key.substring(0, SHARD_LENGTH)), key);
+    }
+
+    /**
+     * Reads the origin written by {@link Editor#commit(String)}
+     *
+     * @return the origin or null if the file has none or could not be read
+     */
+    public static String readOrigin(File file) {
+        Metadata metadata = readMetadata(file);
+        return metadata != null ? metadata.getOrigin() : null;
+    }
+
+    /**
+     * Reads the footer written by {@link Editor#commit(Metadata)}
+     *
+     * @return the metadata or null if the file has none or could not be read
+     */
+    public static Metadata readMetadata(File file) {
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(file, "r");
+            long length = input.length();
+            if (length < FOOTER_TRAILER_LENGTH) {
+                return null;
+            }
+            input.seek(length - FOOTER_TRAILER_LENGTH);
+            int payloadLength = input.readInt();
+            int magic = input.readInt();
+            if ((magic != ORIGIN_FOOTER_MAGIC && magic != METADATA_FOOTER_MAGIC)
+                    || payloadLength < 0 || payloadLength > MAX_FOOTER_PAYLOAD_LENGTH
+                    || payloadLength > length - FOOTER_TRAILER_LENGTH) {
+                return null;
+            }
+            byte[] payload = new byte[payloadLength];
+            input.seek(length - FOOTER_TRAILER_LENGTH - payloadLength);
+            input.readFully(payload);
+            String text = new String(payload, "UTF-8");
+            int footerLength = payloadLength + FOOTER_TRAILER_LENGTH;
+            if (magic == ORIGIN_FOOTER_MAGIC) {
+                return new Metadata(text, null, null, 0, footerLength);
+            }
+            String[] lines = text.split("\n", -1);
+            if (lines.length != 4) {
+                return null;
+            }
+            return new Metadata(lines[0], emptyToNull(lines[1]), emptyToNull(lines[2]),
+                    Long.parseLong(lines[3]), footerLength);
+        } catch (IOException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value.length() != 0 ? value : null;
+    }
+
+    private static void writeMetadata(File file, Metadata metadata) throws IOException {
+        String text = metadata.getOrigin() + '\n'
+                + (metadata.getEtag() != null ? metadata.getEtag() : "") + '\n'
+                + (metadata.getLastModified() != null ? metadata.getLastModified() : "") + '\n'
+                + metadata.getExpiresAt();
+        byte[] bytes = text.getBytes("UTF-8");
+        if (bytes.length > MAX_FOOTER_PAYLOAD_LENGTH) {
+            throw new IOException("Metadata too long");
+        }
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.seek(output.length());
+            output.write(bytes);
+            output.writeInt(bytes.length);
+            output.writeInt(METADATA_FOOTER_MAGIC);
+        } finally {
+            output.close();
+        }
+    }
+
+    private void open() {
+        File journal = journalFile;
+        boolean read = false;
+        if (journal.exists()) {
+            try {
+                readJournal(journal);
+                read = true;
+            } catch (IOException e) {
+                Log.w(TAG, "Journal unreadable, rebuilding it", e);
+                lengths.clear();
+                size = 0;
+            }
+        }
+        if (read) {
+            try {
+                journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal, true), "US-ASCII"));
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to append to journal", e);
+            }
+        } else {
+            scanDirectory();
+            rebuildJournal();
+        }
+        scheduleCleanupIfNeeded();
+        cleanupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteStaleTempFiles();
+            }
+        });
+    }
+
+    /**
+     * Deletes temporary files, e.g. partial downloads, not touched for a while and not
+     * being edited. Runs in background.
+     */
+    private void deleteStaleTempFiles() {
+        File[] shards = directory.listFiles();
+        if (shards == null) {
+            return;
+        }
+        long staleBefore = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+        for (File shard : shards) {
+            File[] files = shard.getName().length() == SHARD_LENGTH ? shard.listFiles() : null;
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(TEMP_SUFFIX) || file.lastModified() >= staleBefore) {
+                    continue;
+                }
+                String key = name.substring(0, name.indexOf('.') > 0 ? name.indexOf('.') : name.length());
+                synchronized (this) {
+                    if (editing.contains(key)) {
+                        continue;
+                    }
+                }
+                delete(file);
+            }
+        }
+    }
+
+    private void readJournal(File journal) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "US-ASCII"));
+        try {
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                throw new IOException("Unexpected journal header");
+            }
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                readJournalLine(line);
+            }
+            redundantOpCount = lineCount - lengths.size();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readJournalLine(String line) {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            return; // most likely a line cut short by a crash
+        }
+        String key = parts[1];
+        if (CLEAN.equals(parts[0]) && parts.length == 3) {
+            long length;
+            try {
+                length = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            Long previous = lengths.put(key, length);
+            size += length - (previous != null ? previous : 0L);
+        } else if (REMOVE.equals(parts[0])) {
+            Long previous = lengths.remove(key);
+            if (previous != null) {
+                size -= previous;
+            }
+        } else if (READ.equals(parts[0])) {
+            lengths.get(key);
+        }
+    }
+
+    /**
+     * Adopts files found in the shards, oldest first, and drops temporary leftovers
+     */
+    private void scanDirectory() {
+        File[] shards = directory.listFiles();
+        if (shards == null) {
+            return;
+        }
+        List<File> found = new ArrayList<File>();
+        for (File shard : shards) {
+            File[] shardFiles = shard.getName().length() == SHARD_LENGTH ? shard.listFiles() : null;
+            if (shardFiles != null) {
+                found.addAll(Arrays.asList(shardFiles));
+            }
+        }
+        File[] files = found.toArray(new File[found.size()]);
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (!file.isFile()) {
+                continue;
+            }
+            if (name.endsWith(TEMP_SUFFIX)) {
+                delete(file);
+                continue;
+            }
+            long length = file.length();
+            lengths.put(name, length);
+            size += length;
+        }
+    }
+
+    /**
+     * Writes a journal with just the current entries and swaps it in, must hold the lock
+     */
+    private void rebuildJournal() {
+        closeJournal();
+        File journal = journalFile;
+        File journalTmp = journalFileTmp;
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalTmp), "US-ASCII"));
+            try {
+                writer.write(MAGIC + '\n' + VERSION + '\n');
+                for (Map.Entry<String, Long> entry : lengths.entrySet()) {
+                    writer.write(CLEAN + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+                }
+            } finally {
+                writer.close();
+            }
+            if (!journalTmp.renameTo(journal)) {
+                throw new IOException("Unable to rename " + journalTmp);
+            }
+            journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal, true), "US-ASCII"));
+            redundantOpCount = 0;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to rebuild journal", e);
+        }
+    }
+
+    private void closeJournal() {
+        if (journalWriter != null) {
+            try {
+                journalWriter.close();
+            } catch (IOException ignored) {
+            }
+            journalWriter = null;
+        }
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private void appendToJournal(String line, boolean flush) {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.write(line);
+            journalWriter.write('\n');
+            if (flush) {
+                journalWriter.flush();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write journal, it will be rebuilt", e);
+            closeJournal();
+            redundantOpCount = Integer.MAX_VALUE / 2; // forces a rebuild
+        }
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private boolean removeLocked(String key) {
+        Long length = lengths.remove(key);
+        if (length == null) {
+            return false;
+        }
+        size -= length;
+        redundantOpCount++;
+        appendToJournal(REMOVE + ' ' + key, true);
+        return true;
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private void scheduleCleanupIfNeeded() {
+        if (cleanupScheduled || (size <= maxSize && !journalRebuildRequired())) {
+            return;
+        }
+        cleanupScheduled = true;
+        cleanupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                cleanup();
+            }
+        });
+    }
+
+    private boolean journalRebuildRequired() {
+        return journalWriter == null
+                || (redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOpCount >= lengths.size());
+    }
+
+    /**
+     * Evicts exceeding entries and compacts the journal, runs in background
+     */
+    private void cleanup() {
+        List<File> evicted = new ArrayList<File>();
+        synchronized (this) {
+            cleanupScheduled = false;
+            String key;
+            while (size > maxSize && (key = eldestEvictable()) != null) {
+                evicted.add(fileFor(key));
+                removeLocked(key);
+            }
+            if (journalRebuildRequired()) {
+                rebuildJournal();
+            }
+        }
+        for (File file : evicted) {
+            delete(file);
+        }
+    }
+
+    /**
+     * Must hold the lock
+     *
+     * @return least recently used key not being edited
+     */
+    private String eldestEvictable() {
+        for (String key : lengths.keySet()) {
+            if (!editing.contains(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+
+    /**
+     * Writes one entry. Content goes to {@link #getFile()} and is published by
+     * {@link #commit()}, one of commit or {@link #abort()} must be called.
+     */
+    public final class Editor {
+        private final String key;
+        private final File tempFile;
+        private final File partialFile;
+        private ResumableOutputStream resumable;
+        private boolean done;
+
+        private Editor(String key) {
+            this.key = key;
+            File file = fileFor(key);
+            this.tempFile = new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+            this.partialFile = new File(file.getParentFile(), file.getName() + PARTIAL_SUFFIX);
+        }
+
+        /**
+         * @return the temporary file to write the content to
+         */
+        public File getFile() {
+            File shard = tempFile.getParentFile();
+            if (!shard.isDirectory() && !shard.mkdirs()) {
+                Log.w(TAG, "Unable to create " + shard);
+            }
+            return tempFile;
+        }
+
+        /**
+         * Publishes the written content, replacing the previous one if any. Empty content
+         * is discarded.
+         *
+         * @return the committed file or null if nothing was written or it could not be published
+         */
+        public File commit() {
+            return commit((Metadata) null);
+        }
+
+        /**
+         * Appends a footer naming where the content came from, so readers can verify it
+         * with {@link DiskCache#readOrigin(File)}, and publishes the written content.
+         *
+         * @param origin where the content came from, e.g. its URL, may be null
+         * @return the committed file or null if nothing was written or it could not be published
+         */
+        public File commit(String origin) {
+            return commit(origin != null ? new Metadata(origin, null, null, 0) : null);
+        }
+
+        /**
+         * Appends a footer with given metadata, readable with
+         * {@link DiskCache#readMetadata(File)}, and publishes the written content.
+         *
+         * @param metadata where the content came from and how to revalidate it, may be null
+         * @return the committed file or null if nothing was written or it could not be published
+         */
+        public File commit(Metadata metadata) {
+            File file = fileFor(key);
+            if (tempFile.length() <= 0) {
+                abort(false);
+                return null;
+            }
+            if (resumable != null && !resumable.isComplete()) {
+                // incomplete or corrupt, returning null tells so
+                abort(false);
+                return null;
+            }
+            if (metadata != null) {
+                try {
+                    writeMetadata(tempFile, metadata);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to write metadata of " + key, e);
+                    abort();
+                    return null;
+                }
+            }
+            long length = tempFile.length();
+            if (!rename(tempFile, file)) {
+                abort(false);
+                return null;
+            }
+            delete(partialFile);
+            synchronized (DiskCache.this) {
+                done = true;
+                editing.remove(key);
+                Long previous = lengths.put(key, length);
+                size += length - (previous != null ? previous : 0L);
+                if (previous != null) {
+                    redundantOpCount++;
+                }
+                appendToJournal(CLEAN + ' ' + key + ' ' + length, true);
+                scheduleCleanupIfNeeded();
+            }
+            return file;
+        }
+
+        /**
+         * Publishes the content already committed for this key again with a new footer,
+         * e.g. once revalidated. Whatever was written to {@link #getFile()} is discarded.
+         *
+         * @param metadata new metadata
+         * @return the committed file or null if there is no committed content or it could
+         *         not be copied
+         */
+        public File recommit(Metadata metadata) {
+            File current = fileFor(key);
+            Metadata previous = readMetadata(current);
+            long contentLength = current.length() - (previous != null ? previous.footerLength : 0);
+            if (!contains(key) || contentLength <= 0) {
+                abort();
+                return null;
+            }
+            try {
+                copy(current, getFile(), contentLength);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to copy " + current, e);
+                abort();
+                return null;
+            }
+            return commit(metadata);
+        }
+
+        /**
+         * Discards the written content, does nothing if already committed. Content written
+         * resumably is kept for a later edit to resume.
+         */
+        public void abort() {
+            abort(true);
+        }
+
+        /**
+         * Discards the written content, does nothing if already committed
+         *
+         * @param keepPartial false to discard content written resumably as well, e.g. because
+         *                    it is not worth resuming
+         */
+        public void abort(boolean keepPartial) {
+            synchronized (DiskCache.this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                editing.remove(key);
+            }
+            if (!keepPartial || resumable == null || resumable.length == 0) {
+                delete(tempFile);
+                delete(partialFile);
+            }
+        }
+
+        /**
+         * Looks for content kept by a previous resumable edit of this key. Its last
+         * checkpoint is verified and anything written after it dropped.
+         *
+         * @return the content that can be resumed or null if none, leftovers are then deleted
+         */
+        public Partial getPartial() {
+            Partial partial = readPartial();
+            if (partial == null) {
+                delete(tempFile);
+                delete(partialFile);
+            }
+            return partial;
+        }
+
+        private Partial readPartial() {
+            if (!partialFile.exists() || !tempFile.exists()) {
+                return null;
+            }
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(partialFile), "UTF-8"));
+                String validator;
+                long totalLength;
+                long length;
+                long checksum;
+                try {
+                    validator = reader.readLine();
+                    totalLength = Long.parseLong(reader.readLine());
+                    length = Long.parseLong(reader.readLine());
+                    checksum = Long.parseLong(reader.readLine());
+                } finally {
+                    reader.close();
+                }
+                if (validator == null || length <= 0 || length > tempFile.length()) {
+                    return null;
+                }
+                CRC32 crc = checksum(tempFile, length);
+                if (crc.getValue() != checksum) {
+                    return null;
+                }
+                RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+                try {
+                    file.setLength(length); // whatever came after the checkpoint is not verified
+                } finally {
+                    file.close();
+                }
+                return new Partial(validator, totalLength, length, crc);
+            } catch (IOException e) {
+                return null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Opens {@link #getFile()} to write content resumably. If this edit is aborted, or the
+         * process dies, what was written is kept for a later edit to resume, see
+         * {@link #getPartial()}. {@link #commit(Metadata)} then only publishes the content if
+         * it got to the given total length and reads back with the same checksum.
+         *
+         * @param from        content to append to, from {@link #getPartial()}, or null to start over
+         * @param validator   identifies the version of the content being written, e.g. its ETag,
+         *                    so a later edit only resumes the same version
+         * @param totalLength length the content must reach, -1 if unknown
+         * @return the stream to write to, must be closed before committing
+         */
+        public OutputStream openResumable(Partial from, String validator, long totalLength) throws IOException {
+            if (validator == null || validator.indexOf('\n') >= 0) {
+                throw new IllegalArgumentException("Invalid validator: " + validator);
+            }
+            if (from == null) {
+                delete(tempFile);
+            }
+            FileOutputStream output = new FileOutputStream(getFile(), from != null);
+            resumable = new ResumableOutputStream(output, validator, totalLength,
+                    from != null ? from.length : 0, from != null ? from.crc : new CRC32());
+            resumable.checkpoint();
+            return resumable;
+        }
+
+        /**
+         * Keeps a running checksum of what is written and saves a checkpoint to the sidecar
+         * every {@link #CHECKPOINT_INTERVAL} bytes
+         */
+        private final class ResumableOutputStream extends FilterOutputStream {
+            private final String validator;
+            private final long totalLength;
+            private final CRC32 crc;
+            private long length;
+            private long checkpointLength;
+
+            private ResumableOutputStream(OutputStream output, String validator, long totalLength, long length, CRC32 crc) {
+                super(output);
+                this.validator = validator;
+                this.totalLength = totalLength;
+                this.length = length;
+                this.checkpointLength = length;
+                this.crc = crc;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                crc.update(b);
+                length++;
+                checkpointIfNeeded();
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                out.write(buffer, offset, count);
+                crc.update(buffer, offset, count);
+                length += count;
+                checkpointIfNeeded();
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                checkpoint();
+            }
+
+            private void checkpointIfNeeded() throws IOException {
+                if (length - checkpointLength >= CHECKPOINT_INTERVAL) {
+                    checkpoint();
+                }
+            }
+
+            private void checkpoint() throws IOException {
+                out.flush();
+                Writer writer = new OutputStreamWriter(new FileOutputStream(partialFile), "UTF-8");
+                try {
+                    writer.write(validator + '\n' + totalLength + '\n' + length + '\n' + crc.getValue() + '\n');
+                } finally {
+                    writer.close();
+                }
+                checkpointLength = length;
+            }
+
+            /**
+             * @return true if the whole content was written and the file reads back the same
+             */
+            private boolean isComplete() {
+                if ((totalLength >= 0 && length != totalLength) || tempFile.length() != length) {
+                    return false;
+                }
+                try {
+                    return checksum(tempFile, length).getValue() == crc.getValue();
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+        }
+
+        private CRC32 checksum(File file, long length) throws IOException {
+            CRC32 crc = new CRC32();
+            FileInputStream input = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                long remaining = length;
+                while (remaining > 0) {
+                    int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of " + file);
+                    }
+                    crc.update(buffer, 0, read);
+                    remaining -= read;
+                }
+            } finally {
+                input.close();
+            }
+            return crc;
+        }
+
+        private void copy(File from, File to, long length) throws IOException {
+            FileInputStream input = new FileInputStream(from);
+            try {
+                FileOutputStream output = new FileOutputStream(to);
+                try {
+                    byte[] buffer = new byte[8192];
+                    long remaining = length;
+                    while (remaining > 0) {
+                        int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read < 0) {
+                            throw new IOException("Unexpected end of " + from);
+                        }
+                        output.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                } finally {
+                    output.close();
+                }
+            } finally {
+                input.close();
+            }
+        }
+
+        private boolean rename(File from, File to) {
+            if (from.renameTo(to)) {
+                return true;
+            }
+            // some file systems refuse to replace an existing file
+            delete(to);
+            return from.renameTo(to);
+        }
+    }
+
+    /**
+     * Content kept by an aborted resumable edit, see {@link Editor#getPartial()}
+     */
+    public static final class Partial {
+        private final String validator;
+        private final long totalLength;
+        private final long length;
+        /**
+         * Checksum of the content so far, to go on with
+         */
+        private final CRC32 crc;
+
+        private Partial(String validator, long totalLength, long length, CRC32 crc) {
+            this.validator = validator;
+            this.totalLength = totalLength;
+            this.length = length;
+            this.crc = crc;
+        }
+
+        /**
+         * @return what identifies the version of the content, e.g. its ETag
+         */
+        public String getValidator() {
+            return validator;
+        }
+
+        /**
+         * @return length the content must reach, -1 if unknown
+         */
+        public long getTotalLength() {
+            return totalLength;
+        }
+
+        /**
+         * @return number of bytes kept
+         */
+        public long getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Footer of an entry: where its content came from and what is needed to revalidate it
+     * with its origin
+     */
+    public static final class Metadata {
+        private final String origin;
+        private final String etag;
+        private final String lastModified;
+        private final long expiresAt;
+        /**
+         * Bytes taken by the footer when read from a file, 0 otherwise
+         */
+        final int footerLength;
+
+        /**
+         * @param origin       where the content came from, e.g. its URL
+         * @param etag         ETag of the content, may be null
+         * @param lastModified Last-Modified date of the content as sent, may be null
+         * @param expiresAt    time in milliseconds since epoch after which the content must be
+         *                     revalidated, 0 if it never expires
+         */
+        public Metadata(String origin, String etag, String lastModified, long expiresAt) {
+            this(origin, etag, lastModified, expiresAt, 0);
+        }
+
+        private Metadata(String origin, String etag, String lastModified, long expiresAt, int footerLength) {
+            if (origin == null) {
+                throw new IllegalArgumentException("origin cannot be null");
+            }
+            this.origin = origin;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+            this.footerLength = footerLength;
+        }
+
+        public String getOrigin() {
+            return origin;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        /**
+         * @return true if the content must be revalidated at given time
+         */
+        public boolean isExpired(long now) {
+            return expiresAt > 0 && now >= expiresAt;
+        }
+
+        /**
+         * @return true if there is an ETag or Last-Modified to revalidate the content with
+         */
+        public boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.telly.wasp;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Tier between the in memory cache and the disk cache keeping the encoded bytes of
+ * recently loaded bitmaps, a fraction of their decoded size, so they can be decoded again
+ * without any file I/O.
+ * <p/>
+ * Bytes are kept outside of the Java heap, in direct buffers allocated in slabs as needed
+ * up to the byte budget. Slabs are split in fixed size pages, an entry takes as many pages
+ * as its length needs, so freeing an entry leaves no hole another one can not use. Entries
+ * are evicted in least recently used order once the budget is exhausted.
+ *
+ * @see BitmapHelper#getEncodedCache()
+ */
+public final class EncodedBitmapCache {
+    static final int DEFAULT_MAX_SIZE = 8 * 1024 * 1024; // 8 MiB
+    static final int SLAB_SIZE = 1024 * 1024;
+    static final int PAGE_SIZE = 8 * 1024;
+    private static final int PAGES_PER_SLAB = SLAB_SIZE / PAGE_SIZE;
+
+    private final Entries entries = new Entries();
+    private ByteBuffer[] slabs = new ByteBuffer[0];
+    /**
+     * Stack of free pages, as {@code slab * PAGES_PER_SLAB + page}
+     */
+    private int[] freePages = new int[0];
+    private int freeCount;
+    private int maxSize;
+
+    private int hitCount;
+    private int missCount;
+    private int putCount;
+
+    /**
+     * @param maxSize maximum sum in bytes of the slabs, 0 disables this cache
+     */
+    EncodedBitmapCache(int maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * Keeps given content, replacing what was kept for given key
+     *
+     * @param key       disk key of the content
+     * @param content   content to keep, from its position to its limit, e.g. a mapped file
+     * @param expiresAt time the content must be revalidated at, 0 if it never must
+     * @return true if kept
+     */
+    synchronized boolean put(String key, ByteBuffer content, long expiresAt) {
+        entries.remove(key);
+        int length = content.remaining();
+        int pageCount = (length + PAGE_SIZE - 1) / PAGE_SIZE;
+        if (length <= 0 || pageCount * PAGE_SIZE > maxSize) {
+            return false;
+        }
+        int[] pages = reserve(pageCount);
+        ByteBuffer source = content.duplicate();
+        for (int page : pages) {
+            source.limit(source.position() + Math.min(PAGE_SIZE, source.remaining()));
+            page(page).put(source);
+            source.limit(content.limit());
+        }
+        entries.put(key, new Entry(pages, length, expiresAt));
+        putCount++;
+        return true;
+    }
+
+    /**
+     * Copies the bytes kept for given key
+     *
+     * @param now current time, expired content is dropped
+     * @return the bytes or null if not kept or expired
+     */
+    synchronized byte[] get(String key, long now) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        if (entry.expiresAt > 0 && now >= entry.expiresAt) {
+            entries.remove(key); // to be revalidated from disk
+            missCount++;
+            return null;
+        }
+        byte[] bytes = new byte[entry.length];
+        int position = 0;
+        for (int page : entry.pages) {
+            int count = Math.min(PAGE_SIZE, entry.length - position);
+            page(page).get(bytes, position, count);
+            position += count;
+        }
+        hitCount++;
+        return bytes;
+    }
+
+    /**
+     * Drops what was kept for given key, if anything
+     */
+    synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Drops every entry and releases the slabs
+     */
+    public synchronized void clear() {
+        entries.evictAll();
+        dropSlabs(0);
+    }
+
+    /**
+     * Keeps entries up to given fraction of the budget, least recently used ones go first
+     */
+    synchronized void trimToFraction(float fraction) {
+        entries.trimToSize((int) (maxSize * fraction));
+    }
+
+    /**
+     * @param maxSize new maximum sum in bytes of the slabs, 0 disables this cache. Slabs
+     *                beyond it are released along with their entries.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        this.maxSize = maxSize / SLAB_SIZE * SLAB_SIZE;
+        int slabCount = this.maxSize / SLAB_SIZE;
+        if (slabCount < slabs.length) {
+            for (Map.Entry<String, Entry> entry : entries.snapshot().entrySet()) {
+                for (int page : entry.getValue().pages) {
+                    if (page / PAGES_PER_SLAB >= slabCount) {
+                        entries.remove(entry.getKey());
+                        break;
+                    }
+                }
+            }
+            dropSlabs(slabCount);
+        }
+    }
+
+    /**
+     * Takes free pages, allocating slabs or evicting entries as needed. Must hold the lock.
+     */
+    private int[] reserve(int pageCount) {
+        while (freeCount < pageCount && slabs.length * SLAB_SIZE < maxSize) {
+            addSlab();
+        }
+        if (freeCount < pageCount) {
+            entries.trimToSize(entries.size() - (pageCount - freeCount) * PAGE_SIZE);
+        }
+        int[] pages = new int[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            pages[i] = freePages[--freeCount];
+        }
+        return pages;
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private void free(int[] pages) {
+        for (int page : pages) {
+            freePages[freeCount++] = page;
+        }
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private void addSlab() {
+        int index = slabs.length;
+        ByteBuffer[] grown = new ByteBuffer[index + 1];
+        System.arraycopy(slabs, 0, grown, 0, index);
+        grown[index] = ByteBuffer.allocateDirect(SLAB_SIZE);
+        slabs = grown;
+        int[] grownFree = new int[grown.length * PAGES_PER_SLAB];
+        System.arraycopy(freePages, 0, grownFree, 0, freeCount);
+        freePages = grownFree;
+        for (int page = PAGES_PER_SLAB - 1; page >= 0; page--) {
+            freePages[freeCount++] = index * PAGES_PER_SLAB + page;
+        }
+    }
+
+    /**
+     * Releases the slabs from given one on, they must hold no entry. Must hold the lock.
+     */
+    private void dropSlabs(int slabCount) {
+        ByteBuffer[] kept = new ByteBuffer[slabCount];
+        System.arraycopy(slabs, 0, kept, 0, slabCount);
+        slabs = kept;
+        int keptFree = 0;
+        for (int i = 0; i < freeCount; i++) {
+            if (freePages[i] / PAGES_PER_SLAB < slabCount) {
+                freePages[keptFree++] = freePages[i];
+            }
+        }
+        freeCount = keptFree;
+    }
+
+    /**
+     * Must hold the lock
+     */
+    private ByteBuffer page(int page) {
+        ByteBuffer buffer = slabs[page / PAGES_PER_SLAB].duplicate();
+        int offset = (page % PAGES_PER_SLAB) * PAGE_SIZE;
+        buffer.limit(offset + PAGE_SIZE);
+        buffer.position(offset);
+        return buffer;
+    }
+
+    /**
+     * @return sum in bytes of the pages taken by entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return number of entries kept
+     */
+    public synchronized int count() {
+        return entries.cacheSize();
+    }
+
+    /**
+     * @return number of times bytes were found
+     */
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of times no bytes were found, or only expired ones
+     */
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    /**
+     * @return number of entries kept, replaced ones included
+     */
+    public synchronized int putCount() {
+        return putCount;
+    }
+
+    /**
+     * @return number of entries evicted to make room
+     */
+    public synchronized int evictionCount() {
+        return entries.evictionCount();
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = hitCount + missCount;
+        int hitPercent = accesses != 0 ? (int) (100L * hitCount / accesses) : 0;
+        return String.format("EncodedBitmapCache[size=%d/%d,slabs=%d,entries=%d,hits=%d,misses=%d,hitRate=%d%%,evictions=%d]",
+                entries.size(), maxSize, slabs.length, entries.cacheSize(), hitCount, missCount, hitPercent,
+                entries.evictionCount());
+    }
+
+    private static final class Entry {
+        final int[] pages;
+        final int length;
+        final long expiresAt;
+
+        Entry(int[] pages, int length, long expiresAt) {
+            this.pages = pages;
+            this.length = length;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Least recently used entries, weighted by their pages, the lock of the enclosing
+     * cache is held whenever it is used so freed pages go straight back to the free list
+     */
+    private final class Entries extends UpdateableLruCache<String, Entry> {
+        Entries() {
+            super(Integer.MAX_VALUE); // bounded by the pages available
+        }
+
+        @Override
+        protected int sizeOf(String key, Entry value) {
+            return value.pages.length * PAGE_SIZE;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+            free(oldValue.pages);
+        }
+    }
+}
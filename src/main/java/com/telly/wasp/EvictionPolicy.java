@@ -0,0 +1,55 @@
+package com.telly.wasp;
+
+import java.util.List;
+
+/**
+ * Decides the order in which {@link UpdateableLruCache} evicts its entries.
+ * <p/>
+ * All methods are called with the cache policy lock held, implementations need no
+ * synchronization of their own.
+ *
+ * @see LruPolicy
+ * @see WindowTinyLfuPolicy
+ */
+interface EvictionPolicy<K, V> {
+    /**
+     * @param maximum maximum size of the owning cache, in the units of {@link UpdateableLruCache#sizeOf}
+     */
+    void setMaximum(int maximum);
+
+    /**
+     * Called once a new entry was added to the cache
+     */
+    void onAdd(UpdateableLruCache.Node<K, V> node);
+
+    /**
+     * Called once a new entry was added speculatively, e.g. prefetched. Until read it must
+     * be evicted before any other entry, but other speculative entries added before it.
+     */
+    void onAddProbationary(UpdateableLruCache.Node<K, V> node);
+
+    /**
+     * Called when an entry was read, possibly a while after the actual read
+     */
+    void onAccess(UpdateableLruCache.Node<K, V> node);
+
+    /**
+     * Called when an entry was put again, {@code node.weight} already holds the new size
+     */
+    void onUpdate(UpdateableLruCache.Node<K, V> node, int oldWeight);
+
+    /**
+     * Called when an entry is leaving the cache
+     */
+    void onRemove(UpdateableLruCache.Node<K, V> node);
+
+    /**
+     * @return next entry to evict or null if there are no entries
+     */
+    UpdateableLruCache.Node<K, V> victim();
+
+    /**
+     * @return every entry, from the first to be evicted to the last
+     */
+    List<UpdateableLruCache.Node<K, V>> ascending();
+}
@@ -0,0 +1,108 @@
+package com.telly.wasp;
+
+/**
+ * A count-min sketch with 4-bit counters used to estimate how often a key has been seen
+ * recently. All counters are halved once enough increments have been recorded, so the
+ * estimate reflects recent popularity rather than all time popularity.
+ * <p/>
+ * Not thread safe, callers must guard it. Based on TinyLFU by Einziger and Friedman.
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    /**
+     * Increments per expected entry before counters get halved
+     */
+    private static final int SAMPLE_FACTOR = 10;
+    private static final int MAXIMUM_CAPACITY = 1 << 24;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int size;
+
+    FrequencySketch() {
+        ensureCapacity(16);
+    }
+
+    /**
+     * Grows the sketch so it stays accurate for up to {@code expectedEntries} distinct
+     * keys. Growing drops all the recorded frequencies.
+     */
+    void ensureCapacity(int expectedEntries) {
+        int maximum = Math.min(Math.max(expectedEntries, 16), MAXIMUM_CAPACITY);
+        if (table != null && table.length >= maximum) {
+            return;
+        }
+        table = new long[StripedCounter.ceilingPowerOfTwo(maximum)];
+        tableMask = table.length - 1;
+        sampleSize = SAMPLE_FACTOR * maximum;
+        size = 0;
+    }
+
+    /**
+     * @return the estimated number of occurrences of given key, up to 15
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an occurrence of given key, periodically ages all counters
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves every counter, compensating for the truncation of odd counters
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long index = (hash + SEEDS[i]) * SEEDS[i];
+        index += index >>> 32;
+        return ((int) index) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -7,8 +7,10 @@ import android.content.pm.PackageManager;
 import android.util.Log;
 
 import java.io.*;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Map;
 
 /**
  * IO useful methods
@@ -18,6 +20,26 @@ import java.net.URLConnection;
  */
 public class IOUtils {
     private static boolean alreadyCheckedInternetPermission = false;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 15000; // 15 seconds
+    private static final int DEFAULT_READ_TIMEOUT = 20000; // 20 seconds
+    private static volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private static volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+    private static volatile long maxContentLength = 0; // no limit
+
+    static {
+        if (isKeepAliveBroken(AppUtils.isFroyoPlus(), System.getProperty("java.vm.name"))) {
+            System.setProperty("http.keepAlive", "false");
+        }
+    }
+
+    /**
+     * @return true if reusing connections is broken, as it is on Android before Froyo, see
+     *         HttpURLConnection docs. Off Android, e.g. tests on a plain JVM, the SDK level
+     *         reads 0 yet reusing connections works.
+     */
+    static boolean isKeepAliveBroken(boolean froyoPlus, String vmName) {
+        return !froyoPlus && "Dalvik".equals(vmName);
+    }
 
     /**
      * Non instance constants class
@@ -68,7 +90,196 @@ public class IOUtils {
      * @throws java.io.IOException If fromUrl is invalid or there is any IO issue.
      */
     public static void downloadFile(Context context, String fromUrl, File toFile) throws IOException {
-        downloadFileHandleRedirect(context, fromUrl, toFile, 0);
+        URLConnection urlConnection = openConnection(context, fromUrl);
+        InputStream input = getInputStream(urlConnection);
+        try {
+            OutputStream output = new FileOutputStream(toFile);
+            try {
+                IOUtils.copy(input, output);
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Connects to <code>fromUrl</code> following redirects, so the content can be read
+     * from the returned connection while it is downloaded
+     *
+     * @param fromUrl An url pointing to a file to download
+     * @return a connected connection
+     * @throws java.io.IOException If fromUrl is invalid or there is any IO issue.
+     */
+    public static URLConnection openConnection(Context context, String fromUrl) throws IOException {
+        return openConnection(context, fromUrl, null);
+    }
+
+    /**
+     * Same as {@link #openConnection(Context, String)} sending extra request headers, e.g.
+     * <code>If-None-Match</code> to revalidate cached content. Such a request may get a
+     * <code>304 Not Modified</code> response, check {@link #isNotModified(URLConnection)}.
+     * <p/>
+     * Connections are kept alive and reused per host by the platform, as long as their
+     * content is read to the end and closed.
+     *
+     * @param fromUrl        An url pointing to a file to download
+     * @param requestHeaders headers to send on every hop, may be null
+     * @return a connected connection
+     * @throws java.io.IOException If fromUrl is invalid or there is any IO issue.
+     */
+    public static URLConnection openConnection(Context context, String fromUrl, Map<String, String> requestHeaders)
+            throws IOException {
+        checkInternetPermission(context);
+        return openConnectionHandleRedirect(fromUrl, requestHeaders, 0);
+    }
+
+    /**
+     * Sets the timeouts of connections opened from now on. Defaults to 15 seconds to
+     * connect and 20 seconds between reads.
+     *
+     * @param connectTimeoutMillis timeout to connect in milliseconds, 0 waits forever
+     * @param readTimeoutMillis    timeout waiting for data in milliseconds, 0 waits forever
+     */
+    public static void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        if (connectTimeoutMillis < 0 || readTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Timeouts cannot be negative");
+        }
+        connectTimeout = connectTimeoutMillis;
+        readTimeout = readTimeoutMillis;
+    }
+
+    /**
+     * Sets a limit to the content downloaded per response, so an oversized one fails early.
+     * Responses declaring a longer content fail as soon as connected, others once they go
+     * over the limit while read through {@link #getInputStream(URLConnection)}.
+     *
+     * @param maxBytes maximum number of bytes per response, 0 for no limit
+     */
+    public static void setMaxContentLength(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes < 0");
+        }
+        maxContentLength = maxBytes;
+    }
+
+    /**
+     * Opens the content of a response, bounded by {@link #setMaxContentLength(long)}. Its
+     * length does not need to be known, e.g. chunked responses are streamed as they come.
+     */
+    public static InputStream getInputStream(URLConnection connection) throws IOException {
+        InputStream input = connection.getInputStream();
+        long limit = maxContentLength;
+        return limit > 0 ? new BoundedInputStream(input, limit) : input;
+    }
+
+    /**
+     * @return true if the response says the content did not change since the one cached
+     */
+    public static boolean isNotModified(URLConnection connection) throws IOException {
+        return connection instanceof HttpURLConnection
+                && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    /**
+     * @return true if the response only has the part of the content requested with a
+     *         <code>Range</code> header, see {@link #getContentRangeStart(URLConnection)}
+     */
+    public static boolean isPartialContent(URLConnection connection) throws IOException {
+        return connection instanceof HttpURLConnection
+                && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+    }
+
+    /**
+     * @return offset of the first byte of a partial response in the whole content, from its
+     *         <code>Content-Range</code> header, -1 if missing or unreadable
+     */
+    public static long getContentRangeStart(URLConnection connection) {
+        long[] range = parseContentRange(connection);
+        return range != null ? range[0] : -1;
+    }
+
+    /**
+     * @return length of the whole content a partial response is part of, from its
+     *         <code>Content-Range</code> header, -1 if unknown
+     */
+    public static long getContentRangeTotal(URLConnection connection) {
+        long[] range = parseContentRange(connection);
+        return range != null ? range[1] : -1;
+    }
+
+    /**
+     * Parses <code>bytes first-last/total</code>, total can be <code>*</code>
+     *
+     * @return first and total, total is -1 if unknown, or null if unreadable
+     */
+    private static long[] parseContentRange(URLConnection connection) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return null;
+        }
+        int dash = contentRange.indexOf('-');
+        int slash = contentRange.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+        try {
+            long first = Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+            String total = contentRange.substring(slash + 1).trim();
+            return new long[]{first, total.equals("*") ? -1 : Long.parseLong(total)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Works out until when a response can be used without revalidating it, from its
+     * <code>Cache-Control</code> or <code>Expires</code> headers.
+     *
+     * @param now time the response was received in milliseconds since epoch
+     * @return time in milliseconds since epoch when the response expires, 0 if it does not say
+     */
+    public static long getExpiration(URLConnection connection, long now) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase();
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return now;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return now + Math.max(0L, Long.parseLong(directive.substring("max-age=".length()).trim())) * 1000L;
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        return Math.max(0L, connection.getExpiration());
+    }
+
+    /**
+     * Reads what is left of a response so its connection can be reused, and closes it
+     */
+    static void discard(URLConnection connection) {
+        try {
+            InputStream input = connection.getInputStream();
+            try {
+                copy(input, new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                    }
+
+                    @Override
+                    public void write(byte[] buffer, int offset, int length) {
+                    }
+                });
+            } finally {
+                input.close();
+            }
+        } catch (IOException ignored) {
+        }
     }
 
     /**
@@ -77,16 +288,10 @@ public class IOUtils {
      * http://www.google.com/support/forum/p/Webmasters/thread?tid=3760b68fb305088a&hl=en
      */
     private static final int MAX_REDIRECTS = 5;
+    private static final int HTTP_TEMPORARY_REDIRECT = 307;
+    private static final int HTTP_PERMANENT_REDIRECT = 308;
 
-    /**
-     * Internal version of {@link #downloadFile(Context, String, java.io.File)}
-     *
-     * @param fromUrl  the url to download from
-     * @param toFile   the file to download to
-     * @param redirect true if it should accept redirects
-     * @throws java.io.IOException
-     */
-    private static void downloadFileHandleRedirect(Context context, String fromUrl, File toFile, int redirect) throws IOException {
+    private static void checkInternetPermission(Context context) {
         if (context == null) {
             throw new RuntimeException("Context shall not be null");
         }
@@ -112,27 +317,70 @@ public class IOUtils {
             } catch (PackageManager.NameNotFoundException ignored) {
             }
         }
+    }
 
+    /**
+     * Internal version of {@link #openConnection(Context, String, Map)}
+     *
+     * @param fromUrl        the url to download from
+     * @param requestHeaders headers to send, may be null
+     * @param redirect       number of redirects followed so far
+     * @throws java.io.IOException
+     */
+    static URLConnection openConnectionHandleRedirect(String fromUrl, Map<String, String> requestHeaders, int redirect)
+            throws IOException {
         if (redirect > MAX_REDIRECTS) {
             throw new IOException("Too many redirects for " + fromUrl);
         }
 
         URL url = new URL(fromUrl);
         URLConnection urlConnection = url.openConnection();
+        if (urlConnection instanceof HttpURLConnection) {
+            // followed here instead, so redirects across protocols are followed as well
+            ((HttpURLConnection) urlConnection).setInstanceFollowRedirects(false);
+        }
+        urlConnection.setConnectTimeout(connectTimeout);
+        urlConnection.setReadTimeout(readTimeout);
+        if (requestHeaders != null) {
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                urlConnection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
         urlConnection.connect();
+        if (isRedirect(urlConnection)) {
+            String location = urlConnection.getHeaderField("Location");
+            if (location == null) {
+                discard(urlConnection);
+                throw new IOException("Redirect without location from " + url + " after " + redirect + " redirects");
+            }
+            discard(urlConnection);
+            return openConnectionHandleRedirect(new URL(url, location).toString(), requestHeaders, redirect + 1);
+        }
+        long limit = maxContentLength;
         int contentLength = urlConnection.getContentLength();
-        if (contentLength == -1) {
-            fromUrl = urlConnection.getHeaderField("Location");
-            if (fromUrl == null) { /* I'd love to leave it as "Que Dios se apiade de nosotros" XD */
-                throw new IOException("No content or redirect found for URL " + url + " with " + redirect + " redirects.");
+        if (limit > 0 && contentLength > limit) {
+            if (urlConnection instanceof HttpURLConnection) {
+                ((HttpURLConnection) urlConnection).disconnect(); // not worth reading to reuse it
             }
-            downloadFileHandleRedirect(context, fromUrl, toFile, redirect + 1);
-            return;
-        }
-        InputStream input = urlConnection.getInputStream();
-        OutputStream output = new FileOutputStream(toFile);
-        IOUtils.copy(input, output);
-        output.close();
-        input.close();
+            throw new IOException("Content of " + url + " is " + contentLength + " bytes, over the limit of " + limit);
+        }
+        return urlConnection;
+    }
+
+    private static boolean isRedirect(URLConnection connection) throws IOException {
+        if (!(connection instanceof HttpURLConnection)) {
+            return false;
+        }
+        switch (((HttpURLConnection) connection).getResponseCode()) {
+            case HttpURLConnection.HTTP_MULT_CHOICE:
+            case HttpURLConnection.HTTP_MOVED_PERM:
+            case HttpURLConnection.HTTP_MOVED_TEMP:
+            case HttpURLConnection.HTTP_SEE_OTHER:
+            case HTTP_TEMPORARY_REDIRECT:
+            case HTTP_PERMANENT_REDIRECT:
+                return true;
+            default:
+                return false;
+        }
     }
 }
\ No newline at end of file
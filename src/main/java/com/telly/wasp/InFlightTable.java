@@ -0,0 +1,183 @@
+package com.telly.wasp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads in flight by key, so every request for a key joins the one load already pending
+ * instead of starting another. Kept apart from the memory cache, which only holds loaded
+ * bitmaps.
+ * <p/>
+ * Bounded by a number of entries, once exceeded the least recently requested load is
+ * handed back to be dropped. Loads told pinned, e.g. already running, are never dropped
+ * so the table may exceed its bound while only those are left. Callers synchronize on
+ * the table to make a lookup and what follows atomic.
+ *
+ * @param <V> type of the pending loads
+ * @see BitmapHelper#getInFlightTable()
+ */
+public final class InFlightTable<V> {
+    private final LinkedHashMap<String, V> pending = new LinkedHashMap<String, V>(16, 0.75f, true);
+    private final Pinning<? super V> pinning;
+    private int maxSize;
+
+    private int requestCount;
+    private int coalescedCount;
+    private int droppedCount;
+
+    /**
+     * @param maxSize maximum number of pending loads
+     */
+    InFlightTable(int maxSize) {
+        this(maxSize, null);
+    }
+
+    /**
+     * @param maxSize maximum number of pending loads
+     * @param pinning tells loads that must not be dropped, null if any can be
+     */
+    InFlightTable(int maxSize, Pinning<? super V> pinning) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        this.pinning = pinning;
+    }
+
+    /**
+     * Looks for a pending load to join, counting it as a request
+     *
+     * @return the load pending for given key or null if a new one must be started
+     */
+    synchronized V join(String key) {
+        requestCount++;
+        V value = pending.get(key);
+        if (value != null) {
+            coalescedCount++;
+        }
+        return value;
+    }
+
+    /**
+     * @return the load pending for given key without counting a request, null if none
+     */
+    synchronized V get(String key) {
+        return pending.get(key);
+    }
+
+    /**
+     * Adds a new pending load
+     *
+     * @return least recently requested loads no longer tracked to keep the table bounded,
+     *         never the one just added nor pinned ones
+     */
+    synchronized List<V> put(String key, V value) {
+        pending.put(key, value);
+        List<V> dropped = null;
+        Iterator<Map.Entry<String, V>> iterator = pending.entrySet().iterator();
+        while (pending.size() > maxSize && iterator.hasNext()) {
+            V eldest = iterator.next().getValue();
+            if (eldest == value || (pinning != null && pinning.isPinned(eldest))) {
+                continue;
+            }
+            iterator.remove();
+            droppedCount++;
+            if (dropped == null) {
+                dropped = new ArrayList<V>();
+            }
+            dropped.add(eldest);
+        }
+        return dropped;
+    }
+
+    /**
+     * Forgets given pending load, only if it is still the one tracked for its key
+     *
+     * @return true if removed
+     */
+    synchronized boolean remove(String key, V value) {
+        if (pending.get(key) != value) {
+            return false;
+        }
+        pending.remove(key);
+        return true;
+    }
+
+    /**
+     * @return a copy of the pending loads
+     */
+    synchronized List<V> values() {
+        return new ArrayList<V>(pending.values());
+    }
+
+    /**
+     * @param maxSize new maximum number of pending loads, applied as new loads come
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return number of pending loads
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    public synchronized int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return number of loads requested, joined or not
+     */
+    public synchronized int requestCount() {
+        return requestCount;
+    }
+
+    /**
+     * @return number of requests that joined a pending load instead of starting one
+     */
+    public synchronized int coalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * @return number of pending loads no longer tracked to keep the table bounded
+     */
+    public synchronized int droppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return fraction of requests that joined a pending load, 0 if none was requested
+     */
+    public synchronized float coalescingRatio() {
+        return requestCount != 0 ? (float) coalescedCount / requestCount : 0f;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("InFlightTable[size=%d,maxSize=%d,requests=%d,coalesced=%d,dropped=%d,coalescingRate=%d%%]",
+                pending.size(), maxSize, requestCount, coalescedCount, droppedCount,
+                requestCount != 0 ? (int) (100L * coalescedCount / requestCount) : 0);
+    }
+
+    /**
+     * Tells pending loads that cannot be dropped to keep the table bounded
+     */
+    interface Pinning<V> {
+        /**
+         * Called holding the lock of the table
+         *
+         * @return true if given load must stay tracked
+         */
+        boolean isPinned(V value);
+    }
+}
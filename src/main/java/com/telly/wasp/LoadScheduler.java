@@ -0,0 +1,260 @@
+package com.telly.wasp;
+
+import android.os.Process;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs bitmap loads on two bounded thread pools, one reading and decoding from disk and
+ * one fetching from the network, so a burst of requests neither spawns a thread per
+ * request nor lets slow downloads hold back disk hits.
+ * <p/>
+ * Queued tasks are prioritized by recency: the most recently requested task runs first,
+ * as it is the most likely to be on screen. A queued task can be moved to the front
+ * again with {@link #bump(Task)}. Background tasks, e.g. prefetches, queue behind every
+ * other task in the order they came, so they only run while nothing else is waiting.
+ * Queued tasks no longer needed are dropped with {@link #cancel(Task)} or
+ * {@link #purge()}, running ones are expected to check {@link Task#isCancelled()}
+ * themselves and report through {@link #finished(boolean)}.
+ *
+ * @see BitmapHelper#getLoadScheduler()
+ */
+public final class LoadScheduler {
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    static final int DISK_THREADS = Math.max(1, Math.min(CPU_COUNT, 2));
+    static final int NETWORK_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor disk;
+    private final ThreadPoolExecutor network;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger completedCount = new AtomicInteger();
+    private final AtomicInteger cancelledCount = new AtomicInteger();
+
+    LoadScheduler() {
+        this(DISK_THREADS, NETWORK_THREADS);
+    }
+
+    LoadScheduler(int diskThreads, int networkThreads) {
+        disk = newExecutor(diskThreads, "wasp-disk-");
+        network = newExecutor(networkThreads, "wasp-network-");
+    }
+
+    private static ThreadPoolExecutor newExecutor(int threads, final String namePrefix) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        setBackgroundPriority();
+                        runnable.run();
+                    }
+                }, namePrefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (AppUtils.isNinePlus()) {
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Lowers the priority of the current thread below the UI one, falling back to the
+     * Java priority where Android's is unavailable, e.g. tests on a plain JVM
+     */
+    private static void setBackgroundPriority() {
+        try {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        } catch (UnsatisfiedLinkError error) {
+            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        } catch (RuntimeException e) {
+            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        }
+    }
+
+    /**
+     * Queues a task to read from disk and decode, ahead of every task already queued
+     */
+    void executeOnDisk(Task task) {
+        execute(disk, task);
+    }
+
+    /**
+     * Queues a task to fetch from network, ahead of every task already queued
+     */
+    void executeOnNetwork(Task task) {
+        execute(network, task);
+    }
+
+    private void execute(ThreadPoolExecutor executor, Task task) {
+        long sequence = this.sequence.incrementAndGet();
+        task.priority = task.isBackground() ? -sequence : sequence;
+        task.executor = executor;
+        task.onQueued();
+        executor.execute(task);
+    }
+
+    /**
+     * Moves a queued task ahead of every other task in its pool, or of every other
+     * background task if it is still one
+     *
+     * @return true if the task was waiting and got bumped, false if it is already running or done
+     */
+    boolean bump(Task task) {
+        ThreadPoolExecutor executor = task.executor;
+        if (executor == null || !executor.remove(task)) {
+            return false;
+        }
+        execute(executor, task);
+        return true;
+    }
+
+    /**
+     * Drops a queued task if it is cancelled
+     *
+     * @return true if the task was waiting and got dropped
+     */
+    boolean cancel(Task task) {
+        ThreadPoolExecutor executor = task.executor;
+        if (executor == null || !task.isCancelled() || !executor.remove(task)) {
+            return false;
+        }
+        cancelledCount.incrementAndGet();
+        task.onCancel();
+        return true;
+    }
+
+    /**
+     * Drops every queued task that is cancelled
+     *
+     * @return number of dropped tasks
+     */
+    int purge() {
+        return purge(disk) + purge(network);
+    }
+
+    private int purge(ThreadPoolExecutor executor) {
+        int purged = 0;
+        for (Object queued : executor.getQueue().toArray()) {
+            if (cancel((Task) queued)) {
+                purged++;
+            }
+        }
+        return purged;
+    }
+
+    /**
+     * Records the outcome of a task that ran
+     *
+     * @param cancelled true if it found itself cancelled and gave up
+     */
+    void finished(boolean cancelled) {
+        if (cancelled) {
+            cancelledCount.incrementAndGet();
+        } else {
+            completedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of tasks run to completion, successfully or not
+     */
+    public int completedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * @return number of tasks dropped or given up because no one needed them anymore
+     */
+    public int cancelledCount() {
+        return cancelledCount.get();
+    }
+
+    /**
+     * @return number of tasks waiting to read from disk and decode
+     */
+    public int diskQueueSize() {
+        return disk.getQueue().size();
+    }
+
+    /**
+     * @return number of tasks waiting to fetch from network
+     */
+    public int networkQueueSize() {
+        return network.getQueue().size();
+    }
+
+    /**
+     * @return approximate number of threads reading from disk and decoding
+     */
+    public int diskActiveCount() {
+        return disk.getActiveCount();
+    }
+
+    /**
+     * @return approximate number of threads fetching from network
+     */
+    public int networkActiveCount() {
+        return network.getActiveCount();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LoadScheduler[disk=%d/%d queued=%d,network=%d/%d queued=%d,completed=%d,cancelled=%d]",
+                diskActiveCount(), disk.getMaximumPoolSize(), diskQueueSize(),
+                networkActiveCount(), network.getMaximumPoolSize(), networkQueueSize(),
+                completedCount(), cancelledCount());
+    }
+
+    /**
+     * Unit of work of the scheduler, the most recently queued one runs first unless it is
+     * a background one
+     */
+    abstract static class Task implements Runnable, Comparable<Task> {
+        private volatile long priority;
+        private volatile ThreadPoolExecutor executor;
+
+        /**
+         * @return true if the outcome of this task is not needed anymore
+         */
+        boolean isCancelled() {
+            return false;
+        }
+
+        /**
+         * @return true if this task must wait for every other task to run, checked every
+         *         time it is queued
+         */
+        boolean isBackground() {
+            return false;
+        }
+
+        /**
+         * Called every time this task is queued, bumps included
+         */
+        void onQueued() {
+        }
+
+        /**
+         * Called once this task got dropped from the queue without running
+         */
+        void onCancel() {
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            return priority > other.priority ? -1 : (priority == other.priority ? 0 : 1);
+        }
+    }
+}
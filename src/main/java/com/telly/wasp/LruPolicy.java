@@ -0,0 +1,72 @@
+package com.telly.wasp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Classic least recently used eviction: a single queue ordered by access, after a queue
+ * of speculative entries not read yet.
+ */
+final class LruPolicy<K, V> implements EvictionPolicy<K, V> {
+    private static final int MAIN = 0;
+    private static final int PROBATIONARY = 1;
+
+    private final UpdateableLruCache.AccessQueue<K, V> queue = new UpdateableLruCache.AccessQueue<K, V>();
+    private final UpdateableLruCache.AccessQueue<K, V> probationary = new UpdateableLruCache.AccessQueue<K, V>();
+
+    @Override
+    public void setMaximum(int maximum) {
+        // size bound is enforced by the cache, order is all we care about
+    }
+
+    @Override
+    public void onAdd(UpdateableLruCache.Node<K, V> node) {
+        node.queue = MAIN;
+        queue.add(node);
+    }
+
+    @Override
+    public void onAddProbationary(UpdateableLruCache.Node<K, V> node) {
+        node.queue = PROBATIONARY;
+        probationary.add(node);
+    }
+
+    @Override
+    public void onAccess(UpdateableLruCache.Node<K, V> node) {
+        if (node.queue == PROBATIONARY) {
+            probationary.remove(node);
+            onAdd(node);
+        } else {
+            queue.moveToTail(node);
+        }
+    }
+
+    @Override
+    public void onUpdate(UpdateableLruCache.Node<K, V> node, int oldWeight) {
+        queueOf(node).weight += node.weight - oldWeight;
+        onAccess(node);
+    }
+
+    @Override
+    public void onRemove(UpdateableLruCache.Node<K, V> node) {
+        queueOf(node).remove(node);
+    }
+
+    @Override
+    public UpdateableLruCache.Node<K, V> victim() {
+        UpdateableLruCache.Node<K, V> victim = probationary.first();
+        return victim != null ? victim : queue.first();
+    }
+
+    @Override
+    public List<UpdateableLruCache.Node<K, V>> ascending() {
+        List<UpdateableLruCache.Node<K, V>> nodes = new ArrayList<UpdateableLruCache.Node<K, V>>();
+        probationary.addTo(nodes);
+        queue.addTo(nodes);
+        return nodes;
+    }
+
+    private UpdateableLruCache.AccessQueue<K, V> queueOf(UpdateableLruCache.Node<K, V> node) {
+        return node.queue == PROBATIONARY ? probationary : queue;
+    }
+}
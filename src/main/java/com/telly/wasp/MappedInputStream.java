@@ -0,0 +1,94 @@
+package com.telly.wasp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Input stream reading a file mapped in memory, bytes go straight from the page cache to
+ * the reader with no system call nor intermediate buffer. It can be reset to any position
+ * marked, so decoders need no buffering to read bounds first.
+ */
+final class MappedInputStream extends InputStream {
+    private final ByteBuffer buffer;
+    private int mark;
+
+    MappedInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Maps given file, the mapping lives until garbage collected
+     */
+    static MappedInputStream map(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Too big to map: " + file);
+            }
+            // the mapping stays valid once the channel is closed
+            return new MappedInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return the whole mapped content, whatever was read of it
+     */
+    ByteBuffer content() {
+        ByteBuffer content = buffer.duplicate();
+        content.rewind();
+        return content;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] target, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(length, buffer.remaining());
+        buffer.get(target, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long count) {
+        int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mark = buffer.position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        buffer.position(mark);
+    }
+}
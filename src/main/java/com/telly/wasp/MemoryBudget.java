@@ -0,0 +1,99 @@
+package com.telly.wasp;
+
+/**
+ * Sizes the in memory cache after the heap it lives in. It starts at a quarter of the
+ * heap, then follows the headroom observed while the app runs: what the rest of the app
+ * eats into a reserved part of the heap is given back, while the cache is full and the
+ * heap has plenty left it grows, up to a larger share of the heap.
+ * <p/>
+ * Not thread safe, callers must guard it.
+ */
+final class MemoryBudget {
+    static final float INITIAL_FRACTION = 0.25f;
+    static final float MAX_FRACTION = 0.4f;
+    static final float MIN_FRACTION = 0.0625f;
+    /**
+     * Part of the heap the cache never grows into, left for the rest of the app
+     */
+    static final float RESERVED_FRACTION = 0.15f;
+    static final int MIN_INITIAL_SIZE = 4 * 1024 * 1024; // We want at least 4 MB
+    static final int MIN_SIZE = 1024 * 1024;
+    /**
+     * Part of the spare headroom taken each time the budget grows
+     */
+    private static final int GROWTH_DIVIDER = 4;
+    /**
+     * A cache this full of its budget is considered full
+     */
+    private static final float FULL_FRACTION = 0.9f;
+
+    private final long maxMemory;
+    private final boolean adaptive;
+    private final int minSize;
+    private final int initialSize;
+    private final int maxSize;
+
+    /**
+     * @param maxMemory bytes bitmaps may take at most
+     * @param adaptive  whether the used memory the budget gets adapted to tells about bitmaps,
+     *                  i.e. they live in the managed heap
+     */
+    MemoryBudget(long maxMemory, boolean adaptive) {
+        maxMemory = Math.abs(maxMemory);
+        // some implementations return Long.MAX_VALUE, nothing to adapt to then
+        this.adaptive = adaptive && maxMemory < Integer.MAX_VALUE;
+        this.maxMemory = maxMemory;
+        initialSize = clamp(Math.max(MIN_INITIAL_SIZE, (long) (maxMemory * INITIAL_FRACTION)));
+        minSize = Math.min(initialSize, clamp(Math.max(MIN_SIZE, (long) (maxMemory * MIN_FRACTION))));
+        maxSize = Math.max(initialSize, clamp((long) (maxMemory * MAX_FRACTION)));
+    }
+
+    /**
+     * @return true if {@link #adapt(int, int, long, boolean)} makes sense at all
+     */
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    int getInitialSize() {
+        return initialSize;
+    }
+
+    int getMinSize() {
+        return minSize;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param budget     current budget
+     * @param cacheSize  bytes currently cached
+     * @param usedMemory bytes of the heap currently used, cached bitmaps included
+     * @param mayGrow    false to only allow shrinking, e.g. while the system is short of memory
+     * @return the budget to use from now on
+     */
+    int adapt(int budget, int cacheSize, long usedMemory, boolean mayGrow) {
+        long reserved = (long) (maxMemory * RESERVED_FRACTION);
+        long headroom = maxMemory - usedMemory;
+        long target = budget;
+        if (headroom < reserved) {
+            target = Math.min(budget, cacheSize) - (reserved - headroom);
+        } else if (mayGrow && cacheSize >= budget * FULL_FRACTION) {
+            target = budget + (headroom - reserved) / GROWTH_DIVIDER;
+        }
+        return bound(target);
+    }
+
+    /**
+     * @return given budget within the minimum and maximum ones
+     */
+    int bound(long budget) {
+        return (int) Math.max(minSize, Math.min(maxSize, budget));
+    }
+
+    private static int clamp(long size) {
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+}
@@ -0,0 +1,488 @@
+package com.telly.wasp;
+
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Instrumentation of loads: latency histograms per {@link Stage}, counters, and why bitmaps
+ * leave the memory cache. {@link #snapshot() Snapshots} add what every cache tier holds
+ * against its budget and its hit ratio, they can be handed to a {@link Reporter}
+ * periodically, e.g. to compare releases in production.
+ * <p/>
+ * Disabled by default. While disabled, recording costs a volatile read, no clock is read.
+ * Tier statistics are kept by the tiers themselves, they are always in snapshots.
+ *
+ * @see BitmapHelper#getMetrics()
+ */
+public final class Metrics {
+    private static final String TAG = Metrics.class.getSimpleName();
+    /**
+     * Power of two buckets of microseconds, the last one gets anything beyond half an hour
+     */
+    static final int BUCKETS = 32;
+
+    /**
+     * Steps of a load
+     */
+    public enum Stage {
+        /**
+         * Looking the bitmap up in memory, when an observer registers
+         */
+        MEMORY_LOOKUP,
+        /**
+         * Waiting in a queue of the loader for a thread
+         */
+        QUEUE_WAIT,
+        /**
+         * Looking the file up on disk and reading its metadata
+         */
+        DISK_LOOKUP,
+        /**
+         * Downloading, the decode of streamed responses included
+         */
+        FETCH,
+        /**
+         * Decoding from memory or disk
+         */
+        DECODE,
+        /**
+         * Applying the transformation asked for
+         */
+        TRANSFORM,
+        /**
+         * Notifying the observers of a loaded bitmap
+         */
+        DELIVERY
+    }
+
+    /**
+     * Events counted
+     */
+    public enum Counter {
+        /**
+         * Bytes downloaded
+         */
+        DOWNLOADED_BYTES,
+        /**
+         * Loads that failed, nothing was delivered
+         */
+        FAILED_LOADS
+    }
+
+    /**
+     * Why a bitmap left the memory cache
+     */
+    public enum EvictionReason {
+        /**
+         * To make room within the budget
+         */
+        SIZE,
+        /**
+         * The system asked to trim memory
+         */
+        TRIM,
+        /**
+         * Replaced by another bitmap for the same key
+         */
+        REPLACED,
+        /**
+         * Removed, e.g. found recycled or the cache cleared
+         */
+        REMOVED
+    }
+
+    /**
+     * Tiers bitmaps are looked for in, from the fastest
+     */
+    public enum Tier {
+        MEMORY, WEAK, POOL, ENCODED, DISK
+    }
+
+    /**
+     * Gets snapshots, see {@link #setReporter(Reporter, long)}
+     */
+    public interface Reporter {
+        /**
+         * Called on a background thread
+         */
+        void report(Snapshot snapshot);
+    }
+
+    /**
+     * Fills snapshots with the statistics of the tiers
+     */
+    interface Source {
+        void fill(Snapshot snapshot);
+    }
+
+    private final Source source;
+    private volatile boolean enabled;
+    private final Map<Stage, Histogram> histograms = new EnumMap<Stage, Histogram>(Stage.class);
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    private final AtomicLongArray evictions = new AtomicLongArray(EvictionReason.values().length);
+
+    private ScheduledExecutorService reportExecutor;
+    private ScheduledFuture<?> reporting;
+
+    Metrics(Source source) {
+        this.source = source;
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new Histogram());
+        }
+    }
+
+    /**
+     * @param enabled true to record latencies, counters and eviction reasons
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return start time of a stage to record, 0 if disabled
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Records a stage started at given time, if it was started while enabled
+     */
+    void record(Stage stage, long start) {
+        if (start != 0L) {
+            histograms.get(stage).record((System.nanoTime() - start) / 1000L);
+        }
+    }
+
+    void count(Counter counter, long amount) {
+        if (enabled) {
+            counters.getAndAdd(counter.ordinal(), amount);
+        }
+    }
+
+    void evicted(EvictionReason reason) {
+        if (enabled) {
+            evictions.getAndIncrement(reason.ordinal());
+        }
+    }
+
+    /**
+     * Forgets everything recorded so far, tier statistics are left as they are
+     */
+    public void reset() {
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0L);
+        }
+        for (int i = 0; i < evictions.length(); i++) {
+            evictions.set(i, 0L);
+        }
+    }
+
+    /**
+     * @return what was recorded so far along with the current state of the tiers
+     */
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        for (Map.Entry<Stage, Histogram> entry : histograms.entrySet()) {
+            snapshot.latencies.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        for (Counter counter : Counter.values()) {
+            snapshot.counters.put(counter, counters.get(counter.ordinal()));
+        }
+        for (EvictionReason reason : EvictionReason.values()) {
+            snapshot.evictions.put(reason, evictions.get(reason.ordinal()));
+        }
+        source.fill(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Hands a snapshot to given reporter periodically, on a background thread
+     *
+     * @param reporter       reporter to use, null to stop reporting
+     * @param intervalMillis time between two reports
+     */
+    public synchronized void setReporter(final Reporter reporter, long intervalMillis) {
+        if (reporting != null) {
+            reporting.cancel(false);
+            reporting = null;
+        }
+        if (reporter == null) {
+            return;
+        }
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis <= 0");
+        }
+        if (reportExecutor == null) {
+            reportExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "wasp-metrics");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        reporting = reportExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reporter.report(snapshot());
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Reporter failed", e); // keep reporting
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    /**
+     * Latencies bucketed by powers of two, recorded without locking
+     */
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong totalMicros = new AtomicLong();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        void record(long micros) {
+            buckets.getAndIncrement(bucket(micros));
+            totalMicros.getAndAdd(micros);
+            long max;
+            while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+                // raced with another one, try again
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0L);
+            }
+            totalMicros.set(0L);
+            maxMicros.set(0L);
+        }
+
+        Latency snapshot() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return new Latency(counts, totalMicros.get(), maxMicros.get());
+        }
+
+        /**
+         * @return bucket of given latency: 0 below 1us, then i for [2^(i-1), 2^i) us
+         */
+        static int bucket(long micros) {
+            if (micros <= 0L) {
+                return 0;
+            }
+            return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        }
+    }
+
+    /**
+     * Latencies of a stage at the time of a snapshot
+     */
+    public static final class Latency {
+        private final long[] buckets;
+        private final long count;
+        private final long totalMicros;
+        private final long maxMicros;
+
+        Latency(long[] buckets, long totalMicros, long maxMicros) {
+            this.buckets = buckets;
+            long count = 0L;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            this.count = count;
+            this.totalMicros = totalMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        /**
+         * @return number of times the stage was recorded
+         */
+        public long count() {
+            return count;
+        }
+
+        public long meanMicros() {
+            return count != 0L ? totalMicros / count : 0L;
+        }
+
+        public long maxMicros() {
+            return maxMicros;
+        }
+
+        /**
+         * @param quantile from 0 to 1, e.g. 0.99
+         * @return upper bound of the bucket holding given quantile, at most twice the
+         *         actual latency, and never more than the max recorded
+         */
+        public long percentileMicros(double quantile) {
+            if (count == 0L) {
+                return 0L;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0L;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0L) {
+                    return Math.min(maxMicros, i == 0 ? 0L : (1L << i) - 1L);
+                }
+            }
+            return maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[count=%d,mean=%dus,p50=%dus,p99=%dus,max=%dus]",
+                    count, meanMicros(), percentileMicros(0.5), percentileMicros(0.99), maxMicros);
+        }
+    }
+
+    /**
+     * State of a cache tier at the time of a snapshot
+     */
+    public static final class TierStats {
+        private final long hitCount;
+        private final long missCount;
+        private final long size;
+        private final long maxSize;
+
+        TierStats(long hitCount, long missCount, long size, long maxSize) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.size = size;
+            this.maxSize = maxSize;
+        }
+
+        public long hitCount() {
+            return hitCount;
+        }
+
+        public long missCount() {
+            return missCount;
+        }
+
+        /**
+         * @return hits out of lookups, 0 if there was none
+         */
+        public double hitRatio() {
+            long lookups = hitCount + missCount;
+            return lookups != 0L ? hitCount / (double) lookups : 0d;
+        }
+
+        /**
+         * @return bytes in use, or entries for tiers with no byte budget
+         */
+        public long size() {
+            return size;
+        }
+
+        /**
+         * @return budget in bytes, 0 if the tier has none
+         */
+        public long maxSize() {
+            return maxSize;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[hitRatio=%d%%,hits=%d,misses=%d,size=%d/%d]",
+                    Math.round(hitRatio() * 100d), hitCount, missCount, size, maxSize);
+        }
+    }
+
+    /**
+     * Everything recorded at some point in time
+     */
+    public static final class Snapshot {
+        private final long takenAt = System.currentTimeMillis();
+        final Map<Stage, Latency> latencies = new EnumMap<Stage, Latency>(Stage.class);
+        final Map<Counter, Long> counters = new EnumMap<Counter, Long>(Counter.class);
+        final Map<EvictionReason, Long> evictions = new EnumMap<EvictionReason, Long>(EvictionReason.class);
+        final Map<Tier, TierStats> tiers = new EnumMap<Tier, TierStats>(Tier.class);
+        int diskQueueSize;
+        int networkQueueSize;
+
+        Snapshot() {
+        }
+
+        void tier(Tier tier, long hitCount, long missCount, long size, long maxSize) {
+            tiers.put(tier, new TierStats(hitCount, missCount, size, maxSize));
+        }
+
+        /**
+         * @return time it was taken at, in milliseconds since the epoch
+         */
+        public long getTakenAt() {
+            return takenAt;
+        }
+
+        public Latency getLatency(Stage stage) {
+            return latencies.get(stage);
+        }
+
+        public long getCount(Counter counter) {
+            return counters.get(counter);
+        }
+
+        /**
+         * @return number of bitmaps that left the memory cache for given reason
+         */
+        public long getEvictionCount(EvictionReason reason) {
+            return evictions.get(reason);
+        }
+
+        /**
+         * @return statistics of given tier, null if it is not in use yet, e.g. the disk
+         *         cache before any load
+         */
+        public TierStats getTier(Tier tier) {
+            return tiers.get(tier);
+        }
+
+        /**
+         * @return loads waiting for a disk thread
+         */
+        public int getDiskQueueSize() {
+            return diskQueueSize;
+        }
+
+        /**
+         * @return loads waiting for a network thread
+         */
+        public int getNetworkQueueSize() {
+            return networkQueueSize;
+        }
+
+        @Override
+        public String toString() {
+            return "Metrics[latencies=" + latencies + ",counters=" + counters + ",evictions=" + evictions
+                    + ",tiers=" + tiers + ",queues=" + diskQueueSize + '/' + networkQueueSize + ']';
+        }
+    }
+}
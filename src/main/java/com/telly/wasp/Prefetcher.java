@@ -0,0 +1,244 @@
+package com.telly.wasp;
+
+import android.content.Context;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Warms the caches with bitmaps likely to be needed soon, e.g. the next page of a feed,
+ * without getting in the way of the bitmaps needed now.
+ * <p/>
+ * Prefetches run as background loads, behind every other load waiting in the same pool,
+ * so they pause by themselves while foreground loads are queued. They are also bounded
+ * by a budget: no more than a number of them at once, and no more than a number of bytes
+ * downloaded per batch. Depending on their {@link Mode} they stop once the file is on disk
+ * or decode it into a probationary segment of the memory cache, the first to go when room
+ * is needed, so prefetched bitmaps never evict those in use.
+ * <p/>
+ * A foreground request for a bitmap being prefetched takes the prefetch over.
+ *
+ * @see BitmapHelper#getPrefetcher()
+ */
+public final class Prefetcher {
+    static final long DEFAULT_MAX_BYTES = 4L * 1024L * 1024L; // 4 MiB
+    static final int DEFAULT_MAX_CONCURRENT = 2;
+
+    /**
+     * How far a prefetch goes
+     */
+    public enum Mode {
+        /**
+         * Just download to the disk cache
+         */
+        DISK,
+        /**
+         * Download if needed and decode into the memory cache
+         */
+        DECODE
+    }
+
+    /**
+     * Starts prefetches
+     */
+    interface Dispatcher {
+        /**
+         * Starts a prefetch, {@link #finished(long)} is expected once it is done
+         *
+         * @return false if there was nothing to do, e.g. it is cached or being loaded already
+         */
+        boolean dispatch(Request request);
+    }
+
+    /**
+     * A bitmap to prefetch
+     */
+    static final class Request {
+        final Context context;
+        final String uri;
+        final int targetWidth;
+        final int targetHeight;
+        final Mode mode;
+
+        private Request(Context context, String uri, int targetWidth, int targetHeight, Mode mode) {
+            this.context = context;
+            this.uri = uri;
+            this.targetWidth = targetWidth;
+            this.targetHeight = targetHeight;
+            this.mode = mode;
+        }
+    }
+
+    private final Dispatcher dispatcher;
+    private final LinkedList<Request> queue = new LinkedList<Request>();
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private long spentBytes;
+    private int running;
+
+    private int requestCount;
+    private int prefetchedCount;
+    private int skippedCount;
+
+    Prefetcher(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Starts a new batch of prefetches, in the given order. Prefetches of a previous batch
+     * not started yet are dropped, and the byte budget starts over.
+     *
+     * @param context      context needed to download
+     * @param uris         uris to prefetch
+     * @param targetWidth  target width in pixels, as observers will ask for it, 0 if it does not matter
+     * @param targetHeight target height in pixels, as observers will ask for it, 0 if it does not matter
+     * @param mode         how far to go
+     */
+    public void prefetch(Context context, List<String> uris, int targetWidth, int targetHeight, Mode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode == null");
+        }
+        synchronized (this) {
+            skippedCount += queue.size();
+            queue.clear();
+            spentBytes = 0;
+            if (uris != null) {
+                for (String uri : uris) {
+                    if (uri != null && uri.length() > 0) {
+                        queue.add(new Request(context, uri, targetWidth, targetHeight, mode));
+                        requestCount++;
+                    }
+                }
+            }
+        }
+        pump();
+    }
+
+    /**
+     * Drops the prefetches not started yet
+     */
+    public synchronized void cancel() {
+        skippedCount += queue.size();
+        queue.clear();
+    }
+
+    /**
+     * @param maxBytes      bytes prefetches of a batch may download, once spent the rest of
+     *                      the batch is dropped, as are prefetches declaring a longer content
+     * @param maxConcurrent prefetches running at once
+     */
+    public void setBudget(long maxBytes, int maxConcurrent) {
+        if (maxBytes < 0 || maxConcurrent <= 0) {
+            throw new IllegalArgumentException("maxBytes < 0 || maxConcurrent <= 0");
+        }
+        synchronized (this) {
+            this.maxBytes = maxBytes;
+            this.maxConcurrent = maxConcurrent;
+        }
+        pump();
+    }
+
+    /**
+     * @return bytes the running batch may still download
+     */
+    synchronized long remainingBytes() {
+        return Math.max(0L, maxBytes - spentBytes);
+    }
+
+    /**
+     * Records a prefetch started by the dispatcher as done, successfully or not, and
+     * starts the next ones
+     *
+     * @param bytes bytes it downloaded
+     */
+    void finished(long bytes) {
+        synchronized (this) {
+            running--;
+            spentBytes += bytes;
+            prefetchedCount++;
+        }
+        pump();
+    }
+
+    /**
+     * Starts as many queued prefetches as the budget allows. The dispatcher is called
+     * without holding the lock of this prefetcher, as it takes that of the loads.
+     */
+    private void pump() {
+        while (true) {
+            Request next;
+            synchronized (this) {
+                if (running >= maxConcurrent || queue.isEmpty()) {
+                    return;
+                }
+                if (spentBytes >= maxBytes) {
+                    skippedCount += queue.size();
+                    queue.clear();
+                    return;
+                }
+                next = queue.removeFirst();
+                running++;
+            }
+            boolean dispatched = false;
+            try {
+                dispatched = dispatcher.dispatch(next);
+            } finally {
+                if (!dispatched) {
+                    synchronized (this) {
+                        running--;
+                        skippedCount++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of prefetches waiting to start
+     */
+    public synchronized int queuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of prefetches running
+     */
+    public synchronized int runningCount() {
+        return running;
+    }
+
+    /**
+     * @return number of uris asked to be prefetched
+     */
+    public synchronized int requestCount() {
+        return requestCount;
+    }
+
+    /**
+     * @return number of prefetches run, successfully or not
+     */
+    public synchronized int prefetchedCount() {
+        return prefetchedCount;
+    }
+
+    /**
+     * @return number of prefetches not run: already cached or loading, dropped for a newer
+     *         batch or over the byte budget
+     */
+    public synchronized int skippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * @return bytes downloaded by prefetches of the running batch
+     */
+    public synchronized long spentBytes() {
+        return spentBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Prefetcher[queued=%d,running=%d/%d,spent=%d/%d,requests=%d,prefetched=%d,skipped=%d]",
+                queue.size(), running, maxConcurrent, spentBytes, maxBytes, requestCount, prefetchedCount, skippedCount);
+    }
+}
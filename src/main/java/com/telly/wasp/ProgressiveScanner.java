@@ -0,0 +1,180 @@
+package com.telly.wasp;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream following the structure of an image as it is written, to tell as soon as
+ * enough of it arrived to decode a low resolution preview: once a progressive JPEG has
+ * {@link #MIN_PREVIEW_SCANS} complete scans, or once an interlaced PNG has
+ * {@link #PNG_PREVIEW_PERCENT} percent of its known length. Other images never get a preview.
+ * <p/>
+ * JPEG segments are skipped by their length, so markers inside metadata, e.g. an embedded
+ * thumbnail, are not taken for scans.
+ */
+final class ProgressiveScanner extends FilterOutputStream {
+    /**
+     * Complete scans of a progressive JPEG needed for a preview, the first one usually
+     * only has the average color of each block
+     */
+    static final int MIN_PREVIEW_SCANS = 2;
+    /**
+     * Amount of an interlaced PNG needed for a preview, its first five passes take about a
+     * quarter of its pixels
+     */
+    static final int PNG_PREVIEW_PERCENT = 30;
+
+    private static final int PNG_HEADER_LENGTH = 29; // signature, IHDR up to its interlace method
+    private static final int PNG_INTERLACE_OFFSET = 28;
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    private static final int HEADER = 0;
+    private static final int MARKER_START = 1;
+    private static final int MARKER = 2;
+    private static final int LENGTH_HIGH = 3;
+    private static final int LENGTH_LOW = 4;
+    private static final int SKIP = 5;
+    private static final int ENTROPY = 6;
+    private static final int ENTROPY_MARKER = 7;
+    private static final int INTERLACED_PNG = 8;
+    private static final int DONE = 9;
+
+    /**
+     * Notified once enough of the image was written for a preview
+     */
+    interface Listener {
+        /**
+         * Called from the writing thread, once the content is written
+         *
+         * @param length number of bytes, from the start, the preview is to be decoded from
+         * @param jpeg   true if the image is a JPEG, cut short of its end marker
+         */
+        void onPreviewAvailable(long length, boolean jpeg);
+    }
+
+    private final long contentLength;
+    private final Listener listener;
+    private final byte[] header = new byte[PNG_HEADER_LENGTH];
+    private long position;
+    private int state = HEADER;
+    private int afterSegment;
+    private int segmentLength;
+    private int remaining;
+    private boolean progressive;
+    private int scans;
+
+    /**
+     * @param output        where to write the content
+     * @param contentLength length of the whole content, -1 if unknown
+     * @param listener      to notify once a preview can be decoded
+     */
+    ProgressiveScanner(OutputStream output, long contentLength, Listener listener) {
+        super(output);
+        this.contentLength = contentLength;
+        this.listener = listener;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        if (state != DONE) {
+            scan(b & 0xff);
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        out.write(buffer, offset, count);
+        for (int i = offset; i < offset + count && state != DONE; i++) {
+            scan(buffer[i] & 0xff);
+        }
+    }
+
+    private void scan(int b) throws IOException {
+        switch (state) {
+            case HEADER:
+                header[(int) position] = (byte) b;
+                if (position == 1 && header[0] == (byte) 0xff) {
+                    state = b == 0xd8 ? MARKER_START : DONE;
+                } else if (position < PNG_SIGNATURE.length && header[0] != (byte) 0xff
+                        && (byte) b != PNG_SIGNATURE[(int) position]) {
+                    state = DONE; // neither a JPEG nor a PNG
+                } else if (position == PNG_INTERLACE_OFFSET) {
+                    state = b == 1 ? INTERLACED_PNG : DONE;
+                }
+                break;
+            case MARKER_START:
+                state = b == 0xff ? MARKER : DONE;
+                break;
+            case MARKER:
+                if (b != 0xff) { // otherwise fill byte
+                    marker(b);
+                }
+                break;
+            case LENGTH_HIGH:
+                segmentLength = b << 8;
+                state = LENGTH_LOW;
+                break;
+            case LENGTH_LOW:
+                segmentLength |= b;
+                remaining = segmentLength - 2;
+                state = remaining > 0 ? SKIP : (remaining == 0 ? afterSegment : DONE);
+                break;
+            case SKIP:
+                if (--remaining == 0) {
+                    state = afterSegment;
+                }
+                break;
+            case ENTROPY:
+                if (b == 0xff) {
+                    state = ENTROPY_MARKER;
+                }
+                break;
+            case ENTROPY_MARKER:
+                if (b == 0 || (b >= 0xd0 && b <= 0xd7)) { // stuffed byte or restart marker
+                    state = ENTROPY;
+                } else if (b != 0xff) {
+                    marker(b);
+                }
+                break;
+            case INTERLACED_PNG:
+                if (contentLength <= 0) {
+                    state = DONE;
+                } else if ((position + 1) * 100 >= contentLength * PNG_PREVIEW_PERCENT) {
+                    state = DONE;
+                    out.flush();
+                    listener.onPreviewAvailable(position + 1, false);
+                }
+                break;
+        }
+        position++;
+    }
+
+    /**
+     * Handles a JPEG marker, its <code>0xff</code> being the byte right before this one
+     */
+    private void marker(int marker) throws IOException {
+        if (marker == 0xd9) { // end of image, the whole image will do
+            state = DONE;
+        } else if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd8)) { // no length
+            state = MARKER_START;
+        } else if (marker == 0xda) { // start of scan, so the previous one is complete
+            if (progressive && scans == MIN_PREVIEW_SCANS) {
+                state = DONE;
+                out.flush();
+                listener.onPreviewAvailable(position - 1, true);
+                return;
+            }
+            scans++;
+            afterSegment = ENTROPY;
+            state = LENGTH_HIGH;
+        } else {
+            if (marker == 0xc2 || marker == 0xc6 || marker == 0xca || marker == 0xce) {
+                progressive = true;
+            }
+            afterSegment = MARKER_START;
+            state = LENGTH_HIGH;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.telly.wasp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter meant to be incremented from many threads at once, in the spirit of
+ * {@code java.util.concurrent.atomic.LongAdder} which is not available on Android.
+ * <p/>
+ * Increments are spread across a few padded cells chosen by thread id, so concurrent
+ * writers rarely touch the same cache line. Reading the value sums all cells and is
+ * therefore slower and not an atomic snapshot; meant for statistics only.
+ */
+final class StripedCounter {
+    private static final int STRIPES = ceilingPowerOfTwo(Runtime.getRuntime().availableProcessors());
+    private static final int MASK = STRIPES - 1;
+    /**
+     * Distance in longs between two used cells, keeps them in different cache lines
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1L);
+    }
+
+    public void add(long amount) {
+        cells.getAndAdd(index(), amount);
+    }
+
+    public long sum() {
+        long sum = 0L;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * @return {@link #sum()} clamped to the int range
+     */
+    public int intValue() {
+        return (int) Math.min(Integer.MAX_VALUE, sum());
+    }
+
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0L);
+        }
+    }
+
+    private static int index() {
+        return (mix((int) Thread.currentThread().getId()) & MASK) * PADDING;
+    }
+
+    /**
+     * Spreads thread ids so consecutive ones land on different stripes
+     */
+    static int mix(int x) {
+        x ^= x >>> 16;
+        x *= 0x85ebca6b;
+        x ^= x >>> 13;
+        return x;
+    }
+
+    static int ceilingPowerOfTwo(int x) {
+        int n = 1;
+        while (n < x) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
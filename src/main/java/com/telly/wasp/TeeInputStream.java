@@ -0,0 +1,86 @@
+package com.telly.wasp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Input stream copying everything read from it to an output stream, so content can be
+ * consumed and saved in a single pass. Skipped bytes are read and copied too.
+ */
+final class TeeInputStream extends FilterInputStream {
+    private static final int BUFFER_SIZE = 4096;
+
+    private final OutputStream output;
+    private long count;
+
+    /**
+     * @param input  stream to read from
+     * @param output where to copy read bytes, may be null to just count them
+     */
+    TeeInputStream(InputStream input, OutputStream output) {
+        super(input);
+        this.output = output;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            if (output != null) {
+                output.write(b);
+            }
+            count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int n = in.read(buffer, offset, length);
+        if (n > 0) {
+            if (output != null) {
+                output.write(buffer, offset, n);
+            }
+            count += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(n, 1))];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read <= 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Reads and copies whatever is left, decoders usually stop before the end of the content
+     */
+    void drain() throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (read(buffer, 0, buffer.length) != -1) {
+            // copying
+        }
+    }
+
+    /**
+     * @return number of bytes read so far
+     */
+    long getCount() {
+        return count;
+    }
+}
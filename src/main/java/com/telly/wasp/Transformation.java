@@ -0,0 +1,30 @@
+package com.telly.wasp;
+
+import android.graphics.Bitmap;
+
+/**
+ * Change applied to a bitmap once decoded, before it is cached. Transformed bitmaps are
+ * cached by the key of their transformation along with their uri and target size, so
+ * showing the same transformed bitmap again costs nothing.
+ *
+ * @see Transformations for the built in ones and chaining them
+ * @see BaseBitmapObserver#setTransformation(Transformation)
+ */
+public interface Transformation {
+    /**
+     * @return key telling this transformation apart from any other, including others of
+     *         the same kind with different parameters. It must not change over time, nor
+     *         across processes when transformed bitmaps are persisted.
+     */
+    String getKey();
+
+    /**
+     * Transforms a bitmap, called from loading threads
+     *
+     * @param source bitmap to transform, it must be neither changed nor recycled, it is
+     *               given up by the caller if another bitmap is returned
+     * @param pool   pool bitmaps to draw into may be taken from
+     * @return the transformed bitmap, may be source itself if there was nothing to do
+     */
+    Bitmap transform(Bitmap source, BitmapPool pool);
+}
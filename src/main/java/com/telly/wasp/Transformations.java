@@ -0,0 +1,264 @@
+package com.telly.wasp;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+/**
+ * Built in {@link Transformation}s: resizing, center cropping, rounding corners and
+ * blurring, and chaining of any of them. Bitmaps are drawn into pooled bitmaps when
+ * available.
+ */
+public final class Transformations {
+    static final int MAX_BLUR_RADIUS = 25;
+    /**
+     * Box blurs approximating a gaussian one
+     */
+    private static final int BLUR_PASSES = 3;
+
+    private Transformations() {
+    }
+
+    /**
+     * @return a transformation scaling bitmaps to exactly given size, ignoring their aspect ratio
+     */
+    public static Transformation resize(final int width, final int height) {
+        checkSize(width, height);
+        return new Transformation() {
+            @Override
+            public String getKey() {
+                return "resize(" + width + 'x' + height + ')';
+            }
+
+            @Override
+            public Bitmap transform(Bitmap source, BitmapPool pool) {
+                if (source.getWidth() == width && source.getHeight() == height) {
+                    return source;
+                }
+                Matrix matrix = new Matrix();
+                matrix.setScale(width / (float) source.getWidth(), height / (float) source.getHeight());
+                return draw(source, pool, width, height, matrix);
+            }
+        };
+    }
+
+    /**
+     * @return a transformation scaling bitmaps to cover given size, keeping their aspect
+     *         ratio, and cropping what is beyond it on both sides
+     */
+    public static Transformation centerCrop(final int width, final int height) {
+        checkSize(width, height);
+        return new Transformation() {
+            @Override
+            public String getKey() {
+                return "centerCrop(" + width + 'x' + height + ')';
+            }
+
+            @Override
+            public Bitmap transform(Bitmap source, BitmapPool pool) {
+                int sourceWidth = source.getWidth();
+                int sourceHeight = source.getHeight();
+                if (sourceWidth == width && sourceHeight == height) {
+                    return source;
+                }
+                float scale = Math.max(width / (float) sourceWidth, height / (float) sourceHeight);
+                Matrix matrix = new Matrix();
+                matrix.setScale(scale, scale);
+                matrix.postTranslate((width - sourceWidth * scale) / 2f, (height - sourceHeight * scale) / 2f);
+                return draw(source, pool, width, height, matrix);
+            }
+        };
+    }
+
+    /**
+     * @param radius radius of the corners in pixels
+     * @return a transformation making the corners of bitmaps transparent
+     */
+    public static Transformation roundCorners(final float radius) {
+        if (radius < 0f) {
+            throw new IllegalArgumentException("radius < 0");
+        }
+        return new Transformation() {
+            @Override
+            public String getKey() {
+                return "roundCorners(" + radius + ')';
+            }
+
+            @Override
+            public Bitmap transform(Bitmap source, BitmapPool pool) {
+                Bitmap target = obtain(pool, source.getWidth(), source.getHeight(), Bitmap.Config.ARGB_8888);
+                RectF bounds = new RectF(0f, 0f, source.getWidth(), source.getHeight());
+                new Canvas(target).drawRoundRect(bounds, radius, radius, shaderPaint(source));
+                return target;
+            }
+        };
+    }
+
+    /**
+     * @return a transformation keeping the largest circle centered in bitmaps, the rest
+     *         is made transparent
+     */
+    public static Transformation circle() {
+        return new Transformation() {
+            @Override
+            public String getKey() {
+                return "circle";
+            }
+
+            @Override
+            public Bitmap transform(Bitmap source, BitmapPool pool) {
+                int width = source.getWidth();
+                int height = source.getHeight();
+                Bitmap target = obtain(pool, width, height, Bitmap.Config.ARGB_8888);
+                new Canvas(target).drawCircle(width / 2f, height / 2f, Math.min(width, height) / 2f,
+                        shaderPaint(source));
+                return target;
+            }
+        };
+    }
+
+    /**
+     * @param radius radius of the blur in pixels, from 1 to {@link #MAX_BLUR_RADIUS}.
+     *               Blurring is done in Java on the pixels, cheaper once bitmaps are
+     *               resized down.
+     * @return a transformation blurring bitmaps
+     */
+    public static Transformation blur(final int radius) {
+        if (radius < 1 || radius > MAX_BLUR_RADIUS) {
+            throw new IllegalArgumentException("radius must be within 1 and " + MAX_BLUR_RADIUS);
+        }
+        return new Transformation() {
+            @Override
+            public String getKey() {
+                return "blur(" + radius + ')';
+            }
+
+            @Override
+            public Bitmap transform(Bitmap source, BitmapPool pool) {
+                int width = source.getWidth();
+                int height = source.getHeight();
+                int[] pixels = new int[width * height];
+                source.getPixels(pixels, 0, width, 0, 0, width, height);
+                int[] scratch = new int[pixels.length];
+                for (int pass = 0; pass < BLUR_PASSES; pass++) {
+                    boxBlur(pixels, scratch, height, width, radius);
+                    boxBlur(scratch, pixels, width, height, radius);
+                }
+                Bitmap.Config config = source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888;
+                Bitmap target = obtain(pool, width, height, config);
+                target.setPixels(pixels, 0, width, 0, 0, width, height);
+                return target;
+            }
+        };
+    }
+
+    /**
+     * @return a transformation applying the given ones in order, its key is made of theirs
+     */
+    public static Transformation chain(Transformation... transformations) {
+        if (transformations.length == 0) {
+            throw new IllegalArgumentException("No transformation to chain");
+        }
+        if (transformations.length == 1) {
+            return transformations[0];
+        }
+        final Transformation[] steps = transformations.clone();
+        StringBuilder builder = new StringBuilder();
+        for (Transformation step : steps) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(step.getKey());
+        }
+        final String key = builder.toString();
+        return new Transformation() {
+            @Override
+            public String getKey() {
+                return key;
+            }
+
+            @Override
+            public Bitmap transform(Bitmap source, BitmapPool pool) {
+                Bitmap bitmap = source;
+                for (Transformation step : steps) {
+                    Bitmap transformed = step.transform(bitmap, pool);
+                    if (transformed != bitmap && bitmap != source && pool != null) {
+                        pool.put(bitmap); // intermediate, nobody else has it
+                    }
+                    bitmap = transformed;
+                }
+                return bitmap;
+            }
+        };
+    }
+
+    private static void checkSize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Width and height must be > 0");
+        }
+    }
+
+    /**
+     * @return a cleared mutable bitmap, pooled if one matches
+     */
+    private static Bitmap obtain(BitmapPool pool, int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = pool != null ? pool.get(width, height, config) : null;
+        if (bitmap != null) {
+            bitmap.eraseColor(0);
+            return bitmap;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    private static Bitmap draw(Bitmap source, BitmapPool pool, int width, int height, Matrix matrix) {
+        Bitmap.Config config = source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap target = obtain(pool, width, height, config);
+        new Canvas(target).drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        return target;
+    }
+
+    private static Paint shaderPaint(Bitmap source) {
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setShader(new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+        return paint;
+    }
+
+    /**
+     * Blurs lines of pixels with a running sum per channel, writing them transposed so
+     * blurring the result again blurs the other direction and transposes it back
+     *
+     * @param lines  number of lines
+     * @param length pixels per line
+     */
+    static void boxBlur(int[] source, int[] target, int lines, int length, int radius) {
+        int window = radius * 2 + 1;
+        for (int line = 0; line < lines; line++) {
+            int start = line * length;
+            int a = 0, r = 0, g = 0, b = 0;
+            for (int i = -radius; i <= radius; i++) {
+                int pixel = source[start + clamp(i, length)];
+                a += pixel >>> 24;
+                r += (pixel >> 16) & 0xff;
+                g += (pixel >> 8) & 0xff;
+                b += pixel & 0xff;
+            }
+            for (int i = 0; i < length; i++) {
+                target[i * lines + line] = ((a / window) << 24) | ((r / window) << 16) | ((g / window) << 8) | (b / window);
+                int out = source[start + clamp(i - radius, length)];
+                int in = source[start + clamp(i + radius + 1, length)];
+                a += (in >>> 24) - (out >>> 24);
+                r += ((in >> 16) & 0xff) - ((out >> 16) & 0xff);
+                g += ((in >> 8) & 0xff) - ((out >> 8) & 0xff);
+                b += (in & 0xff) - (out & 0xff);
+            }
+        }
+    }
+
+    private static int clamp(int index, int length) {
+        return index < 0 ? 0 : index >= length ? length - 1 : index;
+    }
+}
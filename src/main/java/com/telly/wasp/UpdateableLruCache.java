@@ -1,28 +1,48 @@
 package com.telly.wasp;
 
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Refactored version of Android's LruCache with the ability of update a given entry
+ * <p/>
+ * Lookups go straight to a {@link ConcurrentHashMap} and never block, the recency
+ * update a hit implies is recorded in small striped buffers and replayed on the
+ * {@link EvictionPolicy} in batches by whichever thread holds the policy lock. Writes and
+ * evictions take that lock only for the bookkeeping, {@link #entryRemoved} and
+ * {@link #create} are always called outside of it.
+ * <p/>
+ * Entries are evicted in least recently used order unless another policy is given.
  *
  * @author evelio
- * @version 1.0
+ * @version 2.0
  */
 class UpdateableLruCache<K, V> {
-    private final LinkedHashMap<K, V> map;
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+
+    /**
+     * Guards {@link #policy}, {@link #size} writes and {@link Node#weight}
+     */
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final ReadBuffer<K, V> readBuffer = new ReadBuffer<K, V>();
+    private EvictionPolicy<K, V> policy;
 
     /**
      * Size of this cache in units. Not necessarily the number of elements.
      */
-    private int size;
-    private int maxSize;
+    private volatile int size;
+    private volatile int maxSize;
 
-    private int putCount;
-    private int createCount;
-    private int evictionCount;
-    private int hitCount;
-    private int missCount;
+    private final StripedCounter putCount = new StripedCounter();
+    private final StripedCounter createCount = new StripedCounter();
+    private final StripedCounter evictionCount = new StripedCounter();
+    private final StripedCounter hitCount = new StripedCounter();
+    private final StripedCounter missCount = new StripedCounter();
 
     /**
      * @param maxSize for caches that do not override {@link #sizeOf}, this is
@@ -30,11 +50,48 @@ class UpdateableLruCache<K, V> {
      *                this is the maximum sum of the sizes of the entries in this cache.
      */
     public UpdateableLruCache(int maxSize) {
+        this(maxSize, new LruPolicy<K, V>());
+    }
+
+    /**
+     * @param maxSize see {@link #UpdateableLruCache(int)}
+     * @param policy  decides which entry gets evicted first
+     */
+    UpdateableLruCache(int maxSize, EvictionPolicy<K, V> policy) {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
+        if (policy == null) {
+            throw new NullPointerException("policy == null");
+        }
         this.maxSize = maxSize;
-        this.map = new LinkedHashMap<K, V>(0, 0.75f, true);
+        this.map = new ConcurrentHashMap<K, Node<K, V>>(16, 0.75f, StripedCounter.ceilingPowerOfTwo(
+                Runtime.getRuntime().availableProcessors() * 4));
+        this.policy = policy;
+        policy.setMaximum(maxSize);
+    }
+
+    /**
+     * Replaces the eviction policy, current entries are handed to the new one in their
+     * current eviction order
+     */
+    final void setPolicy(EvictionPolicy<K, V> newPolicy) {
+        if (newPolicy == null) {
+            throw new NullPointerException("newPolicy == null");
+        }
+        policyLock.lock();
+        try {
+            drainReadBuffer();
+            List<Node<K, V>> nodes = policy.ascending();
+            newPolicy.setMaximum(maxSize);
+            for (Node<K, V> node : nodes) {
+                node.prev = node.next = null;
+                newPolicy.onAdd(node);
+            }
+            policy = newPolicy;
+        } finally {
+            policyLock.unlock();
+        }
     }
 
     /**
@@ -48,15 +105,13 @@ class UpdateableLruCache<K, V> {
             throw new NullPointerException("key == null");
         }
 
-        V mapValue;
-        synchronized (this) {
-            mapValue = map.get(key);
-            if (mapValue != null) {
-                hitCount++;
-                return mapValue;
-            }
-            missCount++;
+        Node<K, V> node = map.get(key);
+        if (node != null) {
+            hitCount.increment();
+            afterRead(node);
+            return node.value;
         }
+        missCount.increment();
 
         /*
          * Attempt to create a value. This may take a long time, and the map
@@ -70,16 +125,19 @@ class UpdateableLruCache<K, V> {
             return null;
         }
 
-        synchronized (this) {
-            createCount++;
-            mapValue = map.put(key, createdValue);
-
-            if (mapValue != null) {
-                // There was a conflict so undo that last put
-                map.put(key, mapValue);
+        V mapValue;
+        policyLock.lock();
+        try {
+            createCount.increment();
+            Node<K, V> current = map.get(key);
+            if (current != null) {
+                mapValue = current.value;
             } else {
-                size += safeSizeOf(key, createdValue);
+                mapValue = null;
+                addNode(new Node<K, V>(key, createdValue, safeSizeOf(key, createdValue)));
             }
+        } finally {
+            policyLock.unlock();
         }
 
         if (mapValue != null) {
@@ -94,6 +152,10 @@ class UpdateableLruCache<K, V> {
     /**
      * Caches {@code value} for {@code key}. The value is moved to the head of
      * the queue.
+     * <p/>
+     * Putting again a value already cached for {@code key} updates its size, this is
+     * how entries that grow after being cached (e.g. a placeholder getting its bitmap)
+     * are accounted for.
      *
      * @return the previous value mapped by {@code key}.
      */
@@ -103,17 +165,25 @@ class UpdateableLruCache<K, V> {
         }
 
         V previous;
-        synchronized (this) {
-            putCount++;
-            size += safeSizeOf(key, value);
-            previous = map.put(key, value);
-            if (previous != null) {
-                if (previous.equals(value)) {
-                    size -= safePreviousSizeOf(key, previous);
-                } else {
-                    size -= safeSizeOf(key, previous);
-                }
+        policyLock.lock();
+        try {
+            putCount.increment();
+            drainReadBuffer();
+            int weight = safeSizeOf(key, value);
+            Node<K, V> node = map.get(key);
+            if (node == null) {
+                previous = null;
+                addNode(new Node<K, V>(key, value, weight));
+            } else {
+                previous = node.value;
+                int oldWeight = node.weight;
+                size += weight - oldWeight;
+                node.weight = weight;
+                node.value = value;
+                policy.onUpdate(node, oldWeight);
             }
+        } finally {
+            policyLock.unlock();
         }
 
         if (previous != null) {
@@ -124,6 +194,68 @@ class UpdateableLruCache<K, V> {
         return previous;
     }
 
+    /**
+     * Caches {@code value} for {@code key} speculatively, e.g. prefetched: until read it
+     * is evicted before any other entry, so it only takes spare room or that of other
+     * speculative entries. Does nothing if {@code key} is already cached.
+     *
+     * @return true if added, it may have been evicted right away if there was no room
+     */
+    public final boolean putProbationary(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        policyLock.lock();
+        try {
+            drainReadBuffer();
+            if (map.containsKey(key)) {
+                return false;
+            }
+            putCount.increment();
+            Node<K, V> node = new Node<K, V>(key, value, safeSizeOf(key, value));
+            map.put(key, node);
+            policy.onAddProbationary(node);
+            size += node.weight;
+        } finally {
+            policyLock.unlock();
+        }
+
+        trimToSize(maxSize);
+        return true;
+    }
+
+    /**
+     * @return the value cached for {@code key} or null, neither counted as a hit or miss
+     *         nor as a use of the entry
+     */
+    public final V peek(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        Node<K, V> node = map.get(key);
+        return node != null ? node.value : null;
+    }
+
+    /**
+     * Sets the maximum size of the cache, entries are evicted right away if it shrinks.
+     *
+     * @param maxSize see {@link #UpdateableLruCache(int)}
+     */
+    public final void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        policyLock.lock();
+        try {
+            this.maxSize = maxSize;
+            policy.setMaximum(maxSize);
+        } finally {
+            policyLock.unlock();
+        }
+        trimToSize(maxSize);
+    }
+
     /**
      * @param maxSize the maximum size of the cache before returning. May be -1
      *                to evict even 0-sized elements.
@@ -132,26 +264,30 @@ class UpdateableLruCache<K, V> {
         while (true) {
             K key;
             V value;
-            synchronized (this) {
+            policyLock.lock();
+            try {
+                drainReadBuffer();
+                Node<K, V> toEvict = policy.victim();
+                boolean empty = toEvict == null;
                 if (size < 0) {
                     throw new IllegalStateException(getClass().getName()
                             + ".sizeOf() is reporting inconsistent results size < 0");
                 }
-                if (map.isEmpty() && size != 0) {
+                if (empty && size != 0) {
                     throw new IllegalStateException(getClass().getName()
                             + ".sizeOf() is reporting inconsistent results map.isEmpty() && size != 0");
                 }
 
-                if (size <= maxSize || map.isEmpty()) {
+                if (size <= maxSize || empty) {
                     break;
                 }
 
-                Map.Entry<K, V> toEvict = map.entrySet().iterator().next();
-                key = toEvict.getKey();
-                value = toEvict.getValue();
-                map.remove(key);
-                size -= safeSizeOf(key, value);
-                evictionCount++;
+                key = toEvict.key;
+                value = toEvict.value;
+                removeNode(toEvict);
+                evictionCount.increment();
+            } finally {
+                policyLock.unlock();
             }
 
             entryRemoved(true, key, value, null);
@@ -168,12 +304,16 @@ class UpdateableLruCache<K, V> {
             throw new NullPointerException("key == null");
         }
 
-        V previous;
-        synchronized (this) {
-            previous = map.remove(key);
-            if (previous != null) {
-                size -= safeSizeOf(key, previous);
+        V previous = null;
+        policyLock.lock();
+        try {
+            Node<K, V> node = map.get(key);
+            if (node != null) {
+                previous = node.value;
+                removeNode(node);
             }
+        } finally {
+            policyLock.unlock();
         }
 
         if (previous != null) {
@@ -230,35 +370,18 @@ class UpdateableLruCache<K, V> {
         return result;
     }
 
-    private int safePreviousSizeOf(K key, V value) {
-        int result = previousSizeOf(key, value);
-        if (result < 0) {
-            throw new IllegalStateException("Negative previous size: " + key + "=" + value);
-        }
-        return result;
-    }
-
     /**
      * Returns the size of the entry for {@code key} and {@code value} in
      * user-defined units.  The default implementation returns 1 so that size
      * is the number of entries and max size is the maximum number of entries.
      * <p/>
-     * <p>An entry's size should not change while it is in the cache.
+     * <p>It is called with the policy lock held whenever the entry is put, an entry's
+     * size should not change while it is in the cache unless it is put again.
      */
     protected int sizeOf(K key, V value) {
         return 1;
     }
 
-    /**
-     * Returns the size of the entry for {@code key} and {@code value} in
-     * user-defined units.  The default implementation returns 1 so that size
-     * is the number of entries and max size is the maximum number of entries.
-     */
-    protected int previousSizeOf(K key, V value) {
-        return 1;
-    }
-
-
     /**
      * Clear the cache, calling {@link #entryRemoved} on each removed entry.
      */
@@ -271,7 +394,7 @@ class UpdateableLruCache<K, V> {
      * of entries in the cache. For all other caches, this returns the sum of
      * the sizes of the entries in this cache.
      */
-    public synchronized final int size() {
+    public final int size() {
         return size;
     }
 
@@ -280,63 +403,268 @@ class UpdateableLruCache<K, V> {
      * number of entries in the cache. For all other caches, this returns the
      * maximum sum of the sizes of the entries in this cache.
      */
-    public synchronized final int maxSize() {
+    public final int maxSize() {
         return maxSize;
     }
 
     /**
      * Returns the number of times {@link #get} returned a value.
      */
-    public synchronized final int hitCount() {
-        return hitCount;
+    public final int hitCount() {
+        return hitCount.intValue();
     }
 
     /**
      * Returns the number of times {@link #get} returned null or required a new
      * value to be created.
      */
-    public synchronized final int missCount() {
-        return missCount;
+    public final int missCount() {
+        return missCount.intValue();
     }
 
     /**
      * Returns the number of times {@link #create(Object)} returned a value.
      */
-    public synchronized final int createCount() {
-        return createCount;
+    public final int createCount() {
+        return createCount.intValue();
     }
 
     /**
      * Returns the number of times {@link #put} was called.
      */
-    public synchronized final int putCount() {
-        return putCount;
+    public final int putCount() {
+        return putCount.intValue();
     }
 
     /**
      * Returns the number of values that have been evicted.
      */
-    public synchronized final int evictionCount() {
-        return evictionCount;
+    public final int evictionCount() {
+        return evictionCount.intValue();
     }
 
     /**
-     * Returns a copy of the current contents of the cache, ordered from least
+     * Returns a copy of the current contents of the cache, ordered from the first
+     * to be evicted to the last. For the default policy that is from least
      * recently accessed to most recently accessed.
      */
-    public synchronized final Map<K, V> snapshot() {
-        return new LinkedHashMap<K, V>(map);
+    public final Map<K, V> snapshot() {
+        policyLock.lock();
+        try {
+            drainReadBuffer();
+            LinkedHashMap<K, V> snapshot = new LinkedHashMap<K, V>();
+            for (Node<K, V> node : policy.ascending()) {
+                snapshot.put(node.key, node.value);
+            }
+            return snapshot;
+        } finally {
+            policyLock.unlock();
+        }
     }
 
     @Override
-    public synchronized final String toString() {
-        int accesses = hitCount + missCount;
-        int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+    public final String toString() {
+        int hits = hitCount();
+        int misses = missCount();
+        int accesses = hits + misses;
+        int hitPercent = accesses != 0 ? (int) (100L * hits / accesses) : 0;
         return String.format("LruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
-                maxSize, hitCount, missCount, hitPercent);
+                maxSize, hits, misses, hitPercent);
     }
 
     public int cacheSize() {
         return map.size();
     }
-}
\ No newline at end of file
+
+    private void afterRead(Node<K, V> node) {
+        if (readBuffer.offer(node) && policyLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replays buffered hits on the LRU queue, must hold {@link #policyLock}
+     */
+    private void drainReadBuffer() {
+        readBuffer.drain(this);
+    }
+
+    /**
+     * Must hold {@link #policyLock}
+     */
+    private void onAccess(Node<K, V> node) {
+        if (node.isLinked()) {
+            policy.onAccess(node);
+        }
+    }
+
+    /**
+     * Must hold {@link #policyLock}
+     */
+    private void addNode(Node<K, V> node) {
+        map.put(node.key, node);
+        policy.onAdd(node);
+        size += node.weight;
+    }
+
+    /**
+     * Must hold {@link #policyLock}
+     */
+    private void removeNode(Node<K, V> node) {
+        map.remove(node.key, node);
+        policy.onRemove(node);
+        size -= node.weight;
+    }
+
+    /**
+     * A cache entry, everything but {@link #value} is guarded by the policy lock
+     */
+    static final class Node<K, V> {
+        final K key;
+        volatile V value;
+        int weight;
+        /**
+         * Which of its queues the policy keeps this entry in
+         */
+        int queue;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+
+        boolean isLinked() {
+            return prev != null;
+        }
+    }
+
+    /**
+     * Doubly linked queue of entries keeping their total weight, used by policies
+     */
+    static final class AccessQueue<K, V> {
+        /**
+         * Sentinel of the circular list, {@code head.next} is the eldest entry
+         */
+        private final Node<K, V> head = new Node<K, V>(null, null, 0);
+        int weight;
+
+        AccessQueue() {
+            head.prev = head.next = head;
+        }
+
+        /**
+         * @return eldest entry or null if empty
+         */
+        Node<K, V> first() {
+            return head.next == head ? null : head.next;
+        }
+
+        /**
+         * @return newest entry or null if empty
+         */
+        Node<K, V> last() {
+            return head.prev == head ? null : head.prev;
+        }
+
+        void add(Node<K, V> node) {
+            Node<K, V> last = head.prev;
+            node.prev = last;
+            node.next = head;
+            last.next = node;
+            head.prev = node;
+            weight += node.weight;
+        }
+
+        void remove(Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToTail(Node<K, V> node) {
+            if (head.prev != node) {
+                remove(node);
+                add(node);
+            }
+        }
+
+        void addTo(List<Node<K, V>> nodes) {
+            for (Node<K, V> node = head.next; node != head; node = node.next) {
+                nodes.add(node);
+            }
+        }
+    }
+
+    /**
+     * Striped, lossy ring buffers where readers record hits without locking. When a
+     * stripe is full further hits are just dropped, recency is a hint not a contract.
+     */
+    private static final class ReadBuffer<K, V> {
+        private static final int STRIPES = StripedCounter.ceilingPowerOfTwo(Runtime.getRuntime().availableProcessors());
+        private static final int STRIPE_MASK = STRIPES - 1;
+        private static final int SIZE = 16;
+        private static final int MASK = SIZE - 1;
+        private static final int DRAIN_THRESHOLD = SIZE / 2;
+
+        private final Stripe<K, V>[] stripes;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ReadBuffer() {
+            stripes = new Stripe[STRIPES];
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Stripe<K, V>();
+            }
+        }
+
+        /**
+         * @return true if the buffer should be drained
+         */
+        boolean offer(Node<K, V> node) {
+            Stripe<K, V> stripe = stripes[StripedCounter.mix((int) Thread.currentThread().getId()) & STRIPE_MASK];
+            long tail = stripe.tail.get();
+            long pending = tail - stripe.head;
+            if (pending >= SIZE) {
+                return true;
+            }
+            if (stripe.tail.compareAndSet(tail, tail + 1)) {
+                stripe.slots.lazySet((int) (tail & MASK), node);
+                return pending + 1 >= DRAIN_THRESHOLD;
+            }
+            return false;
+        }
+
+        /**
+         * Must hold the policy lock of given cache
+         */
+        void drain(UpdateableLruCache<K, V> cache) {
+            for (Stripe<K, V> stripe : stripes) {
+                long head = stripe.head;
+                long tail = stripe.tail.get();
+                for (; head < tail; head++) {
+                    int index = (int) (head & MASK);
+                    Node<K, V> node = stripe.slots.get(index);
+                    if (node == null) {
+                        break; // offered but not yet published, next drain will get it
+                    }
+                    stripe.slots.lazySet(index, null);
+                    cache.onAccess(node);
+                }
+                stripe.head = head;
+            }
+        }
+
+        private static final class Stripe<K, V> {
+            final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<Node<K, V>>(SIZE);
+            final AtomicLong tail = new AtomicLong();
+            volatile long head;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.telly.wasp;
+
+import android.graphics.Bitmap;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Second tier of the in memory cache, holding bitmaps evicted while still shown through
+ * weak references. The view showing one keeps it alive, so asking for it again finds it
+ * here instead of decoding a second copy of it, it costs no memory of its own.
+ * <p/>
+ * Bitmaps kept here are never pooled, their pixels must stay as they are.
+ *
+ * @see BitmapHelper#getWeakCache()
+ */
+public final class WeakBitmapCache {
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final ReferenceQueue<Bitmap> collected = new ReferenceQueue<Bitmap>();
+
+    private int hitCount;
+    private int missCount;
+    private int putCount;
+    private int collectedCount;
+
+    WeakBitmapCache() {
+    }
+
+    /**
+     * Keeps a weak reference to an evicted bitmap
+     *
+     * @param key cache key the bitmap was evicted from
+     */
+    synchronized void put(String key, Bitmap bitmap) {
+        expungeCollected();
+        if (!BitmapUtils.isBitmapValid(bitmap)) {
+            return;
+        }
+        entries.put(key, new Entry(key, bitmap, collected));
+        putCount++;
+    }
+
+    /**
+     * Takes the bitmap of given key out of this cache, meant to be promoted back to the
+     * memory cache
+     *
+     * @return the bitmap if still alive, null otherwise
+     */
+    synchronized Bitmap take(String key) {
+        expungeCollected();
+        Entry entry = entries.remove(key);
+        Bitmap bitmap = entry != null ? entry.get() : null;
+        if (BitmapUtils.isBitmapValid(bitmap)) {
+            hitCount++;
+            return bitmap;
+        }
+        missCount++;
+        return null;
+    }
+
+    /**
+     * @return true if a live bitmap is kept for given key, neither counted as a hit or miss
+     */
+    synchronized boolean contains(String key) {
+        Entry entry = entries.get(key);
+        return entry != null && BitmapUtils.isBitmapValid(entry.get());
+    }
+
+    /**
+     * Forgets the bitmap kept for given key, if any
+     */
+    synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Forgets every bitmap
+     */
+    public synchronized void clear() {
+        entries.clear();
+        expungeCollected();
+    }
+
+    /**
+     * Drops the entries whose bitmap was garbage collected
+     */
+    private void expungeCollected() {
+        Entry entry;
+        while ((entry = (Entry) collected.poll()) != null) {
+            if (entries.get(entry.key) == entry) {
+                entries.remove(entry.key);
+                collectedCount++;
+            }
+        }
+    }
+
+    /**
+     * @return number of bitmaps kept, some may have been garbage collected already
+     */
+    public synchronized int size() {
+        expungeCollected();
+        return entries.size();
+    }
+
+    /**
+     * @return number of times a bitmap was found alive and promoted back
+     */
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of times no live bitmap was found
+     */
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    /**
+     * @return number of evicted bitmaps kept
+     */
+    public synchronized int putCount() {
+        return putCount;
+    }
+
+    /**
+     * @return number of kept bitmaps garbage collected before being asked for again
+     */
+    public synchronized int collectedCount() {
+        return collectedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = hitCount + missCount;
+        int hitPercent = accesses != 0 ? (int) (100L * hitCount / accesses) : 0;
+        return String.format("WeakBitmapCache[size=%d,hits=%d,misses=%d,hitRate=%d%%,puts=%d,collected=%d]",
+                entries.size(), hitCount, missCount, hitPercent, putCount, collectedCount);
+    }
+
+    private static final class Entry extends WeakReference<Bitmap> {
+        final String key;
+
+        Entry(String key, Bitmap bitmap, ReferenceQueue<Bitmap> queue) {
+            super(bitmap, queue);
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.telly.wasp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Window TinyLFU eviction: new entries land in a small LRU admission window, the rest of
+ * the cache is a segmented LRU (probation and protected). Entries leaving the window
+ * compete with the eldest probation entry and only the one seen more often, according
+ * to a {@link FrequencySketch}, stays. This keeps a burst of one-off entries from
+ * flushing entries that are reused often. Speculative entries wait in a queue of their
+ * own, evicted first, until read.
+ * <p/>
+ * See "TinyLFU: A Highly Efficient Cache Admission Policy" by Einziger, Friedman and Manes.
+ */
+final class WindowTinyLfuPolicy<K, V> implements EvictionPolicy<K, V> {
+    static final float DEFAULT_WINDOW_PERCENTAGE = 0.01f;
+    private static final float PROTECTED_PERCENTAGE = 0.8f;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int PROBATIONARY = 3;
+
+    private final UpdateableLruCache.AccessQueue<K, V> window = new UpdateableLruCache.AccessQueue<K, V>();
+    private final UpdateableLruCache.AccessQueue<K, V> probation = new UpdateableLruCache.AccessQueue<K, V>();
+    private final UpdateableLruCache.AccessQueue<K, V> protectedQueue = new UpdateableLruCache.AccessQueue<K, V>();
+    private final UpdateableLruCache.AccessQueue<K, V> probationary = new UpdateableLruCache.AccessQueue<K, V>();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private final float windowPercentage;
+    private final int expectedEntries;
+
+    private int windowMaximum;
+    private int protectedMaximum;
+    private int entries;
+
+    WindowTinyLfuPolicy() {
+        this(DEFAULT_WINDOW_PERCENTAGE);
+    }
+
+    /**
+     * @param windowPercentage fraction of the cache maximum given to the admission window
+     */
+    WindowTinyLfuPolicy(float windowPercentage) {
+        this(windowPercentage, 0);
+    }
+
+    /**
+     * @param windowPercentage fraction of the cache maximum given to the admission window
+     * @param expectedEntries  most entries the cache is expected to hold, for caches
+     *                         weighing their entries, 0 to go by the cache maximum
+     */
+    WindowTinyLfuPolicy(float windowPercentage, int expectedEntries) {
+        if (windowPercentage <= 0f || windowPercentage >= 1f) {
+            throw new IllegalArgumentException("windowPercentage must be in (0, 1)");
+        }
+        if (expectedEntries < 0) {
+            throw new IllegalArgumentException("expectedEntries < 0");
+        }
+        this.windowPercentage = windowPercentage;
+        this.expectedEntries = expectedEntries;
+        if (expectedEntries > 0) {
+            sketch.ensureCapacity(expectedEntries);
+        }
+    }
+
+    /**
+     * Sizes the sketch too, unless expected entries were given. It only ever grows, which
+     * drops the recorded frequencies, so it is done here rather than as entries come.
+     */
+    @Override
+    public void setMaximum(int maximum) {
+        windowMaximum = Math.max(1, (int) (maximum * windowPercentage));
+        protectedMaximum = (int) ((maximum - windowMaximum) * PROTECTED_PERCENTAGE);
+        if (expectedEntries == 0) {
+            sketch.ensureCapacity(maximum);
+        }
+    }
+
+    @Override
+    public void onAdd(UpdateableLruCache.Node<K, V> node) {
+        entries++;
+        sketch.increment(node.key);
+        node.queue = WINDOW;
+        window.add(node);
+        evictFromWindow();
+    }
+
+    @Override
+    public void onAddProbationary(UpdateableLruCache.Node<K, V> node) {
+        entries++;
+        node.queue = PROBATIONARY;
+        probationary.add(node);
+    }
+
+    @Override
+    public void onAccess(UpdateableLruCache.Node<K, V> node) {
+        if (node.queue == PROBATIONARY) { // first read, from now on a regular new entry
+            probationary.remove(node);
+            entries--;
+            onAdd(node);
+            return;
+        }
+        sketch.increment(node.key);
+        switch (node.queue) {
+            case WINDOW:
+                window.moveToTail(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.queue = PROTECTED;
+                protectedQueue.add(node);
+                demoteFromProtected();
+                break;
+            case PROTECTED:
+                protectedQueue.moveToTail(node);
+                break;
+        }
+    }
+
+    @Override
+    public void onUpdate(UpdateableLruCache.Node<K, V> node, int oldWeight) {
+        queueOf(node).weight += node.weight - oldWeight;
+        onAccess(node);
+        if (node.queue == WINDOW) {
+            evictFromWindow();
+        }
+    }
+
+    @Override
+    public void onRemove(UpdateableLruCache.Node<K, V> node) {
+        entries--;
+        queueOf(node).remove(node);
+    }
+
+    @Override
+    public UpdateableLruCache.Node<K, V> victim() {
+        UpdateableLruCache.Node<K, V> victim = probationary.first();
+        if (victim != null) {
+            return victim;
+        }
+        victim = probation.first();
+        if (victim == null) {
+            victim = protectedQueue.first();
+        }
+        if (victim == null) {
+            return window.first();
+        }
+        // the newest probation entry is the one most recently let out of the window,
+        // it is only admitted if it is more popular than the entry it would replace
+        UpdateableLruCache.Node<K, V> candidate = probation.last();
+        if (candidate == null || candidate == victim) {
+            return victim;
+        }
+        return sketch.frequency(candidate.key) > sketch.frequency(victim.key) ? victim : candidate;
+    }
+
+    @Override
+    public List<UpdateableLruCache.Node<K, V>> ascending() {
+        List<UpdateableLruCache.Node<K, V>> nodes = new ArrayList<UpdateableLruCache.Node<K, V>>(entries);
+        probationary.addTo(nodes);
+        probation.addTo(nodes);
+        protectedQueue.addTo(nodes);
+        window.addTo(nodes);
+        return nodes;
+    }
+
+    /**
+     * Moves the eldest window entries to probation, always keeping the newest one
+     */
+    private void evictFromWindow() {
+        while (window.weight > windowMaximum && window.first() != window.last()) {
+            UpdateableLruCache.Node<K, V> node = window.first();
+            window.remove(node);
+            node.queue = PROBATION;
+            probation.add(node);
+        }
+    }
+
+    private void demoteFromProtected() {
+        while (protectedQueue.weight > protectedMaximum && protectedQueue.first() != protectedQueue.last()) {
+            UpdateableLruCache.Node<K, V> node = protectedQueue.first();
+            protectedQueue.remove(node);
+            node.queue = PROBATION;
+            probation.add(node);
+        }
+    }
+
+    private UpdateableLruCache.AccessQueue<K, V> queueOf(UpdateableLruCache.Node<K, V> node) {
+        switch (node.queue) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            case PROBATIONARY:
+                return probationary;
+            default:
+                return protectedQueue;
+        }
+    }
+}
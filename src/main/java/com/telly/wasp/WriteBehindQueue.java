@@ -0,0 +1,257 @@
+package com.telly.wasp;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Persists bitmaps cached by the app to the disk cache behind its back, one at a time on
+ * a single background thread so compressing them never competes with the app for more
+ * than a core.
+ * <p/>
+ * Writes are coalesced by uri: a bitmap cached again before the previous one was written
+ * replaces it, keeping its place in the queue, and only the last one is written. The
+ * queue is bounded, once full the oldest pending write is dropped, the bitmap stays in
+ * the memory cache anyway.
+ *
+ * @see BitmapHelper#getWriteBehindQueue()
+ * @see BitmapHelper#cacheBitmap(Context, Bitmap, String, boolean)
+ */
+public final class WriteBehindQueue {
+    static final int DEFAULT_MAX_PENDING = 32;
+
+    /**
+     * Writes bitmaps, on the thread of the executor. Failures are only counted by the
+     * queue, writers log them if they want to.
+     */
+    interface Writer {
+        void write(Write write) throws IOException;
+    }
+
+    /**
+     * A bitmap to persist
+     */
+    static final class Write {
+        final Context context;
+        final String uri;
+        final Bitmap bitmap;
+        /**
+         * Keeps the bitmap from being reused until written, null if the app owns it
+         */
+        final BitmapLease lease;
+
+        Write(Context context, String uri, Bitmap bitmap, BitmapLease lease) {
+            this.context = context;
+            this.uri = uri;
+            this.bitmap = bitmap;
+            this.lease = lease;
+        }
+
+        void done() {
+            if (lease != null) {
+                lease.release();
+            }
+        }
+    }
+
+    private final Writer writer;
+    private final Executor executor;
+    /**
+     * Pending writes by uri, oldest first
+     */
+    private final LinkedHashMap<String, Write> pending = new LinkedHashMap<String, Write>();
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    private int maxPending = DEFAULT_MAX_PENDING;
+    private boolean draining;
+    private int writing;
+
+    private int enqueuedCount;
+    private int writtenCount;
+    private int coalescedCount;
+    private int droppedCount;
+    private int failedCount;
+    /**
+     * {@link #failedCount} as of the last flush
+     */
+    private int flushedFailedCount;
+
+    WriteBehindQueue(Writer writer, Executor executor) {
+        this.writer = writer;
+        this.executor = executor;
+    }
+
+    /**
+     * Queues a bitmap to be written, replacing the one pending for the same uri if any
+     */
+    void enqueue(Context context, String uri, Bitmap bitmap) {
+        enqueue(new Write(context, uri, bitmap, null));
+    }
+
+    /**
+     * Queues a leased bitmap to be written, the lease is released once done with it
+     */
+    void enqueueLeased(Context context, String uri, BitmapLease lease) {
+        enqueue(new Write(context, uri, lease.getBitmap(), lease));
+    }
+
+    private void enqueue(Write write) {
+        synchronized (this) {
+            enqueuedCount++;
+            Write replaced = pending.put(write.uri, write); // keeps the place of the replaced one
+            if (replaced != null) {
+                coalescedCount++;
+                replaced.done();
+            }
+            dropOverflow();
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        executor.execute(drainer);
+    }
+
+    /**
+     * Writes pending bitmaps until there are none left
+     */
+    private void drain() {
+        while (true) {
+            Write next;
+            synchronized (this) {
+                Iterator<Write> iterator = pending.values().iterator();
+                if (!iterator.hasNext()) {
+                    draining = false;
+                    return;
+                }
+                next = iterator.next();
+                iterator.remove();
+                writing++;
+            }
+            boolean written = false;
+            try {
+                writer.write(next);
+                written = true;
+            } catch (Exception e) {
+                // counted below, the writer tells why if it wants to
+            } finally {
+                next.done();
+                synchronized (this) {
+                    writing--;
+                    if (written) {
+                        writtenCount++;
+                    } else {
+                        failedCount++;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest pending writes over the bound. Must hold the lock.
+     */
+    private void dropOverflow() {
+        Iterator<Write> iterator = pending.values().iterator();
+        while (pending.size() > maxPending && iterator.hasNext()) {
+            Write dropped = iterator.next();
+            iterator.remove();
+            dropped.done();
+            droppedCount++;
+        }
+    }
+
+    /**
+     * Waits for every pending write to be done. Must not be called from the thread writing.
+     *
+     * @param timeoutMillis time to wait at most, 0 to wait as long as needed
+     * @return true if nothing is left to write and no write failed since the previous flush
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!pending.isEmpty() || writing > 0) {
+            if (timeoutMillis <= 0) {
+                wait();
+                continue;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        boolean failed = failedCount != flushedFailedCount;
+        flushedFailedCount = failedCount;
+        return !failed;
+    }
+
+    /**
+     * @param maxPending writes kept waiting at most, the oldest are dropped beyond it
+     */
+    public synchronized void setMaxPending(int maxPending) {
+        if (maxPending <= 0) {
+            throw new IllegalArgumentException("maxPending <= 0");
+        }
+        this.maxPending = maxPending;
+        dropOverflow();
+    }
+
+    /**
+     * @return number of writes waiting, the one in progress excluded
+     */
+    public synchronized int backlog() {
+        return pending.size();
+    }
+
+    /**
+     * @return number of bitmaps queued to be written
+     */
+    public synchronized int enqueuedCount() {
+        return enqueuedCount;
+    }
+
+    /**
+     * @return number of bitmaps written
+     */
+    public synchronized int writtenCount() {
+        return writtenCount;
+    }
+
+    /**
+     * @return number of pending writes replaced by a newer bitmap of the same uri
+     */
+    public synchronized int coalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * @return number of pending writes dropped as the queue was full
+     */
+    public synchronized int droppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return number of writes that failed
+     */
+    public synchronized int failedCount() {
+        return failedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("WriteBehindQueue[backlog=%d/%d,writing=%d,enqueued=%d,written=%d,coalesced=%d,dropped=%d,failed=%d]",
+                pending.size(), maxPending, writing, enqueuedCount, writtenCount, coalescedCount, droppedCount,
+                failedCount);
+    }
+}
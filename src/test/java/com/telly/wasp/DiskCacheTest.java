@@ -0,0 +1,184 @@
+package com.telly.wasp;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests journal replay and size bound of {@link DiskCache}
+ */
+public class DiskCacheTest extends TestCase {
+    private static final long CLEANUP_WAIT_MILLIS = 500;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"), "wasp-disk-cache-test-" + System.nanoTime());
+        assertTrue(directory.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(directory);
+    }
+
+    public void testCommittedEntriesSurviveReopen() throws Exception {
+        DiskCache cache = new DiskCache(directory, 1000);
+        write(cache, "wasp1", 10);
+        write(cache, "wasp2", 20);
+        cache.remove("wasp1");
+        cache.flush();
+
+        DiskCache reopened = new DiskCache(directory, 1000);
+        assertNull(reopened.get("wasp1"));
+        assertNotNull(reopened.get("wasp2"));
+        assertEquals(20, reopened.size());
+    }
+
+    public void testEvictsLeastRecentlyUsedOverBudget() throws Exception {
+        DiskCache cache = new DiskCache(directory, 100);
+        write(cache, "wasp1", 40);
+        write(cache, "wasp2", 40);
+        cache.get("wasp1");
+        write(cache, "wasp3", 40);
+        Thread.sleep(CLEANUP_WAIT_MILLIS);
+
+        assertNull(cache.get("wasp2"));
+        assertNotNull(cache.get("wasp1"));
+        assertFalse(cache.fileFor("wasp2").exists());
+        assertTrue(cache.size() <= cache.maxSize());
+    }
+
+    public void testAbortedEditLeavesNothing() throws Exception {
+        DiskCache cache = new DiskCache(directory, 100);
+        DiskCache.Editor editor = cache.edit("wasp1");
+        assertNull(cache.edit("wasp1"));
+        editor.abort();
+        assertNull(cache.get("wasp1"));
+        assertNotNull(cache.edit("wasp1"));
+    }
+
+    public void testAdoptsShardedFilesWithoutJournal() throws Exception {
+        File shard = new File(directory, "ab");
+        assertTrue(shard.mkdirs());
+        writeFile(new File(shard, "abcdef"), 10);
+        writeFile(new File(directory, "unrelated"), 10);
+        DiskCache cache = new DiskCache(directory, 100);
+        assertEquals(1, cache.count());
+        assertNotNull(cache.get("abcdef"));
+    }
+
+    public void testOriginFooter() throws Exception {
+        DiskCache cache = new DiskCache(directory, 1000);
+        DiskCache.Editor editor = cache.edit("wasp1");
+        writeFile(editor.getFile(), 10);
+        File file = editor.commit("http://example.com/a.png");
+        assertEquals("http://example.com/a.png", DiskCache.readOrigin(file));
+        assertEquals(file.length(), cache.size());
+
+        write(cache, "wasp2", 10);
+        assertNull(DiskCache.readOrigin(cache.get("wasp2")));
+    }
+
+    public void testRecommitRefreshesMetadataKeepingContent() throws Exception {
+        DiskCache cache = new DiskCache(directory, 1000);
+        DiskCache.Editor editor = cache.edit("wasp1");
+        writeFile(editor.getFile(), 10);
+        editor.commit(new DiskCache.Metadata("http://example.com/a.png", "\"v1\"", null, 1000L));
+        DiskCache.Metadata metadata = DiskCache.readMetadata(cache.get("wasp1"));
+        assertEquals("\"v1\"", metadata.getEtag());
+        assertNull(metadata.getLastModified());
+        assertTrue(metadata.isExpired(1000L));
+
+        editor = cache.edit("wasp1");
+        File file = editor.recommit(new DiskCache.Metadata("http://example.com/a.png", "\"v1\"", "Mon, 01 Jan 2024 00:00:00 GMT", 0));
+        metadata = DiskCache.readMetadata(file);
+        assertEquals("Mon, 01 Jan 2024 00:00:00 GMT", metadata.getLastModified());
+        assertFalse(metadata.isExpired(Long.MAX_VALUE));
+        assertEquals(10, file.length() - metadata.footerLength);
+        assertEquals(file.length(), cache.size());
+    }
+
+    public void testAbortedResumableEditIsResumedAndVerified() throws Exception {
+        DiskCache cache = new DiskCache(directory, 1000);
+        DiskCache.Editor editor = cache.edit("wasp1");
+        assertNull(editor.getPartial());
+        OutputStream output = editor.openResumable(null, "\"v1\"", 30);
+        output.write(new byte[20]);
+        output.close();
+        editor.abort();
+        assertNull(cache.get("wasp1"));
+
+        editor = cache.edit("wasp1");
+        DiskCache.Partial partial = editor.getPartial();
+        assertNotNull(partial);
+        assertEquals("\"v1\"", partial.getValidator());
+        assertEquals(20, partial.getLength());
+        assertEquals(30, partial.getTotalLength());
+        output = editor.openResumable(partial, partial.getValidator(), partial.getTotalLength());
+        output.write(new byte[5]);
+        output.close();
+        assertNull(editor.commit()); // short of the total length, discarded
+        assertNull(cache.get("wasp1"));
+
+        editor = cache.edit("wasp1");
+        assertNull(editor.getPartial());
+        output = editor.openResumable(null, "\"v1\"", 30);
+        output.write(new byte[30]);
+        output.close();
+        File file = editor.commit();
+        assertNotNull(file);
+        assertEquals(30, file.length());
+        assertNull(cache.edit("wasp2").getPartial());
+    }
+
+    public void testCorruptPartialIsDiscarded() throws Exception {
+        DiskCache cache = new DiskCache(directory, 1000);
+        DiskCache.Editor editor = cache.edit("wasp1");
+        OutputStream output = editor.openResumable(null, "\"v1\"", 30);
+        output.write(new byte[20]);
+        output.close();
+        File temp = editor.getFile();
+        editor.abort();
+
+        RandomAccessFile file = new RandomAccessFile(temp, "rw");
+        try {
+            file.write(1);
+        } finally {
+            file.close();
+        }
+        editor = cache.edit("wasp1");
+        assertNull(editor.getPartial());
+        assertFalse(temp.exists());
+    }
+
+    private static void write(DiskCache cache, String key, int length) throws IOException {
+        DiskCache.Editor editor = cache.edit(key);
+        writeFile(editor.getFile(), length);
+        assertNotNull(editor.commit());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void writeFile(File file, int length) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(new byte[length]);
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.telly.wasp;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests paging, eviction and budget of {@link EncodedBitmapCache}
+ */
+public class EncodedBitmapCacheTest extends TestCase {
+    private static final int SLAB = EncodedBitmapCache.SLAB_SIZE;
+    private static final int PAGE = EncodedBitmapCache.PAGE_SIZE;
+
+    public void testKeepsContentAcrossPages() throws Exception {
+        EncodedBitmapCache cache = new EncodedBitmapCache(SLAB);
+        byte[] content = content(PAGE * 2 + 10, 1);
+        ByteBuffer source = ByteBuffer.wrap(content, 0, content.length - 5);
+        assertTrue(cache.put("wasp1", source, 0));
+        assertEquals(content.length - 5, source.remaining()); // left as it was
+        byte[] kept = cache.get("wasp1", 0);
+        assertTrue(Arrays.equals(Arrays.copyOf(content, content.length - 5), kept));
+        assertEquals(PAGE * 3, cache.size());
+        assertNull(cache.get("wasp2", 0));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    public void testEvictsLeastRecentlyUsedWhenOutOfPages() throws Exception {
+        EncodedBitmapCache cache = new EncodedBitmapCache(SLAB);
+        assertTrue(cache.put("wasp1", ByteBuffer.wrap(content(SLAB / 2, 2)), 0));
+        assertTrue(cache.put("wasp2", ByteBuffer.wrap(content(SLAB / 2, 2)), 0));
+        cache.get("wasp1", 0);
+        byte[] content = content(SLAB / 4, 3);
+        assertTrue(cache.put("wasp3", ByteBuffer.wrap(content), 0));
+
+        assertNull(cache.get("wasp2", 0));
+        assertNotNull(cache.get("wasp1", 0));
+        assertTrue(Arrays.equals(content, cache.get("wasp3", 0)));
+        assertEquals(1, cache.evictionCount());
+        assertTrue(cache.size() <= cache.maxSize());
+        assertFalse(cache.put("wasp4", ByteBuffer.wrap(content(SLAB + 1, 2)), 0)); // over the whole budget
+    }
+
+    public void testDropsExpiredContent() throws Exception {
+        EncodedBitmapCache cache = new EncodedBitmapCache(SLAB);
+        assertTrue(cache.put("wasp1", ByteBuffer.wrap(content(10, 4)), 1000L));
+        assertNotNull(cache.get("wasp1", 999L));
+        assertNull(cache.get("wasp1", 1000L));
+        assertNull(cache.get("wasp1", 0));
+        assertEquals(0, cache.size());
+    }
+
+    public void testShrinkingReleasesSlabs() throws Exception {
+        EncodedBitmapCache cache = new EncodedBitmapCache(SLAB * 2);
+        byte[] content = content(SLAB, 5);
+        assertTrue(cache.put("wasp1", ByteBuffer.wrap(content), 0));
+        assertTrue(cache.put("wasp2", ByteBuffer.wrap(content), 0));
+        cache.setMaxSize(SLAB);
+        assertEquals(SLAB, cache.size());
+        assertEquals(1, cache.count());
+        assertTrue(cache.put("wasp3", ByteBuffer.wrap(content), 0));
+        assertEquals(1, cache.count());
+
+        cache.setMaxSize(0);
+        assertEquals(0, cache.size());
+        assertFalse(cache.put("wasp4", ByteBuffer.wrap(content, 0, 10), 0));
+    }
+
+    private static byte[] content(int length, int seed) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 31 + seed);
+        }
+        return content;
+    }
+}
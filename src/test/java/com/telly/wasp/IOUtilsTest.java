@@ -0,0 +1,163 @@
+package com.telly.wasp;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests conditional requests, redirects, chunked responses and connection reuse of
+ * {@link IOUtils} against a local server
+ */
+public class IOUtilsTest extends TestCase {
+    private static final String ETAG = "\"v1\"";
+    private static final String BODY = "hello";
+
+    private ServerSocket server;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new ServerSocket(0);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        connections.incrementAndGet();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }).start();
+                    }
+                } catch (IOException ignored) {
+                    // closed
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+        IOUtils.setMaxContentLength(0);
+    }
+
+    public void testRevalidatesOverReusedConnection() throws Exception {
+        String url = "http://127.0.0.1:" + server.getLocalPort() + "/image.png";
+        long now = System.currentTimeMillis();
+
+        URLConnection connection = IOUtils.openConnectionHandleRedirect(url, null, 0);
+        assertFalse(IOUtils.isNotModified(connection));
+        assertEquals(ETAG, connection.getHeaderField("ETag"));
+        long expiration = IOUtils.getExpiration(connection, now);
+        assertEquals(now + 60000L, expiration);
+        IOUtils.discard(connection);
+
+        Map<String, String> conditions = new HashMap<String, String>();
+        conditions.put("If-None-Match", ETAG);
+        connection = IOUtils.openConnectionHandleRedirect(url, conditions, 0);
+        assertTrue(IOUtils.isNotModified(connection));
+        IOUtils.discard(connection);
+
+        conditions.put("If-None-Match", "\"v0\"");
+        connection = IOUtils.openConnectionHandleRedirect(url, conditions, 0);
+        assertFalse(IOUtils.isNotModified(connection));
+        IOUtils.discard(connection);
+
+        assertEquals(1, connections.get());
+    }
+
+    public void testKeepsConnectionsAliveButOnOldAndroid() throws Exception {
+        assertTrue(IOUtils.isKeepAliveBroken(false, "Dalvik"));
+        assertFalse(IOUtils.isKeepAliveBroken(true, "Dalvik"));
+        assertFalse(IOUtils.isKeepAliveBroken(false, "OpenJDK 64-Bit Server VM"));
+        assertFalse("false".equals(System.getProperty("http.keepAlive")));
+    }
+
+    public void testFollowsRedirectToChunkedContent() throws Exception {
+        String url = "http://127.0.0.1:" + server.getLocalPort() + "/redirect";
+        URLConnection connection = IOUtils.openConnectionHandleRedirect(url, null, 0);
+        assertEquals(-1, connection.getContentLength());
+        assertEquals(BODY, read(IOUtils.getInputStream(connection)));
+        assertEquals(1, connections.get());
+    }
+
+    public void testAbortsOversizedContent() throws Exception {
+        IOUtils.setMaxContentLength(BODY.length() - 1);
+        String url = "http://127.0.0.1:" + server.getLocalPort();
+        try {
+            IOUtils.openConnectionHandleRedirect(url + "/image.png", null, 0);
+            fail("Declared length over the limit");
+        } catch (IOException expected) {
+        }
+        URLConnection connection = IOUtils.openConnectionHandleRedirect(url + "/chunked", null, 0);
+        try {
+            read(IOUtils.getInputStream(connection));
+            fail("Streamed length over the limit");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static String read(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[2];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toString("US-ASCII");
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            OutputStream output = socket.getOutputStream();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String path = line.split(" ")[1];
+                boolean notModified = false;
+                while (line != null && line.length() > 0) {
+                    notModified |= line.equalsIgnoreCase("If-None-Match: " + ETAG);
+                    line = reader.readLine();
+                }
+                String headers = "ETag: " + ETAG + "\r\nCache-Control: public, max-age=60\r\n";
+                String response;
+                if (path.equals("/redirect")) {
+                    response = "HTTP/1.1 302 Found\r\nLocation: /chunked\r\nContent-Length: 0\r\n\r\n";
+                } else if (path.equals("/chunked")) {
+                    response = "HTTP/1.1 200 OK\r\n" + headers + "Transfer-Encoding: chunked\r\n\r\n"
+                            + "3\r\n" + BODY.substring(0, 3) + "\r\n"
+                            + Integer.toHexString(BODY.length() - 3) + "\r\n" + BODY.substring(3) + "\r\n0\r\n\r\n";
+                } else if (notModified) {
+                    response = "HTTP/1.1 304 Not Modified\r\n" + headers + "\r\n";
+                } else {
+                    response = "HTTP/1.1 200 OK\r\n" + headers + "Content-Length: " + BODY.length() + "\r\n\r\n" + BODY;
+                }
+                output.write(response.getBytes("US-ASCII"));
+                output.flush();
+            }
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.telly.wasp;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Tests joining, bounding and stats of {@link InFlightTable}
+ */
+public class InFlightTableTest extends TestCase {
+
+    public void testJoinsPendingAndDropsLeastRecentlyRequested() throws Exception {
+        InFlightTable<String> table = new InFlightTable<String>(2);
+        assertNull(table.join("a"));
+        assertNull(table.put("a", "load a"));
+        assertNull(table.join("b"));
+        assertNull(table.put("b", "load b"));
+        assertEquals("load a", table.join("a"));
+
+        assertNull(table.join("c"));
+        List<String> dropped = table.put("c", "load c");
+        assertEquals(1, dropped.size());
+        assertEquals("load b", dropped.get(0));
+        assertEquals(2, table.size());
+
+        assertFalse(table.remove("a", "another load"));
+        assertTrue(table.remove("a", "load a"));
+        assertEquals(4, table.requestCount());
+        assertEquals(1, table.coalescedCount());
+        assertEquals(1, table.droppedCount());
+        assertEquals(0.25f, table.coalescingRatio());
+    }
+
+    public void testKeepsPinnedLoadsOverItsBound() throws Exception {
+        InFlightTable<String> table = new InFlightTable<String>(1, new InFlightTable.Pinning<String>() {
+            @Override
+            public boolean isPinned(String value) {
+                return value.startsWith("running");
+            }
+        });
+        assertNull(table.put("a", "running a"));
+        assertNull(table.put("b", "load b"));
+        assertEquals(2, table.size());
+
+        List<String> dropped = table.put("c", "load c");
+        assertEquals(1, dropped.size());
+        assertEquals("load b", dropped.get(0));
+        assertEquals(2, table.size());
+        assertEquals("running a", table.get("a"));
+        assertEquals(1, table.droppedCount());
+    }
+}
@@ -0,0 +1,149 @@
+package com.telly.wasp;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link LoadScheduler} runs the most recently requested task first, background
+ * ones last, and drops cancelled ones
+ */
+public class LoadSchedulerTest extends TestCase {
+
+    public void testRunsNewestAndBumpedTasksFirst() throws Exception {
+        LoadScheduler scheduler = new LoadScheduler(1, 1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<String> order = new ArrayList<String>();
+        scheduler.executeOnDisk(new LoadScheduler.Task() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                } catch (InterruptedException ignored) {
+                }
+                done.countDown();
+            }
+        });
+        while (scheduler.diskActiveCount() == 0) {
+            Thread.sleep(1);
+        }
+
+        LoadScheduler.Task first = newTask("first", order, done);
+        scheduler.executeOnDisk(first);
+        scheduler.executeOnDisk(newTask("second", order, done));
+        scheduler.executeOnDisk(newTask("third", order, done));
+        assertEquals(3, scheduler.diskQueueSize());
+        assertTrue(scheduler.bump(first));
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("first", order.get(0));
+        assertEquals("third", order.get(1));
+        assertEquals("second", order.get(2));
+        assertFalse(scheduler.bump(first));
+    }
+
+    public void testRunsBackgroundTasksLastInOrder() throws Exception {
+        LoadScheduler scheduler = new LoadScheduler(1, 1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<String> order = new ArrayList<String>();
+        scheduler.executeOnDisk(new LoadScheduler.Task() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                } catch (InterruptedException ignored) {
+                }
+                done.countDown();
+            }
+        });
+        while (scheduler.diskActiveCount() == 0) {
+            Thread.sleep(1);
+        }
+
+        scheduler.executeOnDisk(newBackgroundTask("background1", order, done));
+        scheduler.executeOnDisk(newBackgroundTask("background2", order, done));
+        scheduler.executeOnDisk(newTask("foreground", order, done));
+        blocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("foreground", order.get(0));
+        assertEquals("background1", order.get(1));
+        assertEquals("background2", order.get(2));
+    }
+
+    public void testPurgesCancelledTasks() throws Exception {
+        LoadScheduler scheduler = new LoadScheduler(1, 1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        scheduler.executeOnNetwork(new LoadScheduler.Task() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        while (scheduler.networkActiveCount() == 0) {
+            Thread.sleep(1);
+        }
+
+        final boolean[] dropped = new boolean[1];
+        scheduler.executeOnNetwork(new LoadScheduler.Task() {
+            @Override
+            boolean isCancelled() {
+                return true;
+            }
+
+            @Override
+            void onCancel() {
+                dropped[0] = true;
+            }
+
+            @Override
+            public void run() {
+                fail("cancelled task ran");
+            }
+        });
+        scheduler.executeOnNetwork(newTask("needed", new ArrayList<String>(), new CountDownLatch(1)));
+
+        assertEquals(1, scheduler.purge());
+        assertTrue(dropped[0]);
+        assertEquals(1, scheduler.networkQueueSize());
+        assertEquals(1, scheduler.cancelledCount());
+        blocker.countDown();
+    }
+
+    private static LoadScheduler.Task newTask(final String name, final List<String> order, final CountDownLatch done) {
+        return new LoadScheduler.Task() {
+            @Override
+            public void run() {
+                synchronized (order) {
+                    order.add(name);
+                }
+                done.countDown();
+            }
+        };
+    }
+
+    private static LoadScheduler.Task newBackgroundTask(final String name, final List<String> order, final CountDownLatch done) {
+        return new LoadScheduler.Task() {
+            @Override
+            boolean isBackground() {
+                return true;
+            }
+
+            @Override
+            public void run() {
+                synchronized (order) {
+                    order.add(name);
+                }
+                done.countDown();
+            }
+        };
+    }
+}
@@ -0,0 +1,56 @@
+package com.telly.wasp;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Tests {@link MappedInputStream} reads, skips and resets within a mapped file
+ */
+public class MappedInputStreamTest extends TestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("wasp-mapped-test", ".tmp");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testReadsSkipsAndResetsToMark() throws Exception {
+        byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+        MappedInputStream input = MappedInputStream.map(file);
+
+        assertTrue(input.markSupported());
+        input.mark(0);
+        assertEquals(0, input.read());
+        byte[] read = new byte[99];
+        assertEquals(99, input.read(read, 0, 99));
+        assertEquals(99, read[98]);
+        assertEquals(5000, input.skip(5000));
+        assertEquals(content.length - 5100, input.available());
+        input.reset();
+        assertEquals(content.length, input.available());
+
+        assertEquals(content.length, input.skip(content.length + 1));
+        assertEquals(-1, input.read());
+        assertEquals(-1, input.read(read, 0, 99));
+        ByteBuffer whole = input.content();
+        assertEquals(content.length, whole.remaining());
+        assertEquals((byte) 255, whole.get(255));
+    }
+}
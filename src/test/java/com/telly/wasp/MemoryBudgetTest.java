@@ -0,0 +1,50 @@
+package com.telly.wasp;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the budget {@link MemoryBudget} adapts to the heap headroom
+ */
+public class MemoryBudgetTest extends TestCase {
+    private static final long HEAP = 64L * 1024L * 1024L;
+
+    public void testStartsAtAQuarterOfTheHeap() throws Exception {
+        MemoryBudget budget = new MemoryBudget(HEAP, true);
+        assertEquals(HEAP / 4, budget.getInitialSize());
+        assertEquals(HEAP / 16, budget.getMinSize());
+        assertTrue(budget.getMaxSize() > budget.getInitialSize());
+        assertTrue(budget.isAdaptive());
+
+        MemoryBudget small = new MemoryBudget(8L * 1024L * 1024L, true);
+        assertEquals(MemoryBudget.MIN_INITIAL_SIZE, small.getInitialSize());
+        assertTrue(small.getMinSize() <= small.getInitialSize());
+
+        assertFalse(new MemoryBudget(Long.MAX_VALUE, true).isAdaptive());
+        assertEquals(Integer.MAX_VALUE, new MemoryBudget(Long.MAX_VALUE, true).getInitialSize());
+    }
+
+    public void testGivesBackWhatTheAppNeeds() throws Exception {
+        MemoryBudget budget = new MemoryBudget(HEAP, true);
+        int initial = budget.getInitialSize();
+        long reserved = (long) (HEAP * MemoryBudget.RESERVED_FRACTION);
+        // heap used up to 1 MiB into the reserve
+        int adapted = budget.adapt(initial, initial, HEAP - reserved + 1024 * 1024, true);
+        assertEquals(initial - 1024 * 1024, adapted);
+        // heap full, the whole reserve is given back
+        assertEquals(initial - reserved, budget.adapt(initial, initial, HEAP, true));
+        // a cache holding less than its budget gives back from what it holds, never below the minimum
+        assertEquals(budget.getMinSize(), budget.adapt(initial, budget.getMinSize(), HEAP, true));
+    }
+
+    public void testGrowsOnlyWhenFullAndAllowed() throws Exception {
+        MemoryBudget budget = new MemoryBudget(HEAP, true);
+        int initial = budget.getInitialSize();
+        long used = HEAP / 2;
+        assertEquals(initial, budget.adapt(initial, initial / 2, used, true));
+        assertEquals(initial, budget.adapt(initial, initial, used, false));
+        int grown = budget.adapt(initial, initial, used, true);
+        assertTrue(grown > initial);
+        assertTrue(grown <= budget.getMaxSize());
+        assertEquals(budget.getMaxSize(), budget.adapt(budget.getMaxSize(), budget.getMaxSize(), 0, true));
+    }
+}
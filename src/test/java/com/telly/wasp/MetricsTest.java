@@ -0,0 +1,67 @@
+package com.telly.wasp;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link Metrics} buckets latencies and records nothing while disabled
+ */
+public class MetricsTest extends TestCase {
+    private Metrics metrics;
+
+    @Override
+    protected void setUp() throws Exception {
+        metrics = new Metrics(new Metrics.Source() {
+            @Override
+            public void fill(Metrics.Snapshot snapshot) {
+                snapshot.tier(Metrics.Tier.MEMORY, 3, 1, 10, 100);
+            }
+        });
+    }
+
+    public void testBucketsArePowersOfTwo() throws Exception {
+        assertEquals(0, Metrics.Histogram.bucket(0));
+        assertEquals(1, Metrics.Histogram.bucket(1));
+        assertEquals(2, Metrics.Histogram.bucket(2));
+        assertEquals(2, Metrics.Histogram.bucket(3));
+        assertEquals(10, Metrics.Histogram.bucket(1000));
+        assertEquals(Metrics.BUCKETS - 1, Metrics.Histogram.bucket(Long.MAX_VALUE));
+    }
+
+    public void testPercentilesBoundedByBucketAndMax() throws Exception {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int micros = 1; micros <= 100; micros++) {
+            histogram.record(micros);
+        }
+        Metrics.Latency latency = histogram.snapshot();
+        assertEquals(100, latency.count());
+        assertEquals(50, latency.meanMicros());
+        assertEquals(100, latency.maxMicros());
+        assertEquals(63, latency.percentileMicros(0.5));
+        assertEquals(100, latency.percentileMicros(1.0));
+    }
+
+    public void testRecordsNothingWhileDisabled() throws Exception {
+        long start = metrics.start();
+        assertEquals(0L, start);
+        metrics.record(Metrics.Stage.DECODE, start);
+        metrics.count(Metrics.Counter.DOWNLOADED_BYTES, 10);
+        metrics.evicted(Metrics.EvictionReason.SIZE);
+        Metrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(0, snapshot.getLatency(Metrics.Stage.DECODE).count());
+        assertEquals(0, snapshot.getCount(Metrics.Counter.DOWNLOADED_BYTES));
+        assertEquals(0, snapshot.getEvictionCount(Metrics.EvictionReason.SIZE));
+        assertEquals(0.75, snapshot.getTier(Metrics.Tier.MEMORY).hitRatio(), 0.001);
+
+        metrics.setEnabled(true);
+        metrics.record(Metrics.Stage.DECODE, metrics.start());
+        metrics.count(Metrics.Counter.DOWNLOADED_BYTES, 10);
+        metrics.evicted(Metrics.EvictionReason.SIZE);
+        snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.getLatency(Metrics.Stage.DECODE).count());
+        assertEquals(10, snapshot.getCount(Metrics.Counter.DOWNLOADED_BYTES));
+        assertEquals(1, snapshot.getEvictionCount(Metrics.EvictionReason.SIZE));
+
+        metrics.reset();
+        assertEquals(0, metrics.snapshot().getCount(Metrics.Counter.DOWNLOADED_BYTES));
+    }
+}
@@ -0,0 +1,73 @@
+package com.telly.wasp;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests {@link Prefetcher} keeps to its budget and lets newer batches replace older ones
+ */
+public class PrefetcherTest extends TestCase {
+    private final List<Prefetcher.Request> started = new ArrayList<Prefetcher.Request>();
+    private Prefetcher prefetcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        prefetcher = new Prefetcher(new Prefetcher.Dispatcher() {
+            @Override
+            public boolean dispatch(Prefetcher.Request request) {
+                if (request.uri.startsWith("cached")) {
+                    return false;
+                }
+                started.add(request);
+                return true;
+            }
+        });
+        prefetcher.setBudget(100, 2);
+    }
+
+    public void testRunsWithinConcurrencyBudget() throws Exception {
+        prefetcher.prefetch(null, Arrays.asList("a", "cached", "b", "c"), 0, 0, Prefetcher.Mode.DISK);
+        assertEquals(2, started.size());
+        assertEquals("a", started.get(0).uri);
+        assertEquals("b", started.get(1).uri);
+        assertEquals(1, prefetcher.skippedCount());
+        assertEquals(1, prefetcher.queuedCount());
+
+        prefetcher.finished(10);
+        assertEquals(3, started.size());
+        assertEquals("c", started.get(2).uri);
+        assertEquals(90, prefetcher.remainingBytes());
+    }
+
+    public void testStopsOnceBytesAreSpent() throws Exception {
+        prefetcher.prefetch(null, Arrays.asList("a", "b", "c", "d"), 0, 0, Prefetcher.Mode.DECODE);
+        prefetcher.finished(60); // c starts while there is budget left
+        prefetcher.finished(60);
+        assertEquals(3, started.size()); // d dropped once the bytes are spent
+        assertEquals(1, prefetcher.skippedCount());
+        assertEquals(0, prefetcher.queuedCount());
+        prefetcher.finished(0);
+
+        prefetcher.prefetch(null, Arrays.asList("e", "f", "g"), 0, 0, Prefetcher.Mode.DECODE);
+        assertEquals(5, started.size()); // a new batch gets a new budget
+        prefetcher.finished(100);
+        assertEquals(5, started.size());
+        prefetcher.finished(0);
+        assertEquals(5, started.size());
+        assertEquals(0, prefetcher.queuedCount());
+        assertEquals(2, prefetcher.skippedCount());
+        assertEquals(0, prefetcher.runningCount());
+    }
+
+    public void testNewBatchReplacesQueuedPrefetches() throws Exception {
+        prefetcher.prefetch(null, Arrays.asList("a", "b", "c", "d"), 0, 0, Prefetcher.Mode.DISK);
+        prefetcher.prefetch(null, Arrays.asList("e"), 0, 0, Prefetcher.Mode.DISK);
+        assertEquals(2, prefetcher.skippedCount());
+        assertEquals(1, prefetcher.queuedCount());
+        prefetcher.finished(0);
+        assertEquals("e", started.get(2).uri);
+    }
+}
@@ -0,0 +1,97 @@
+package com.telly.wasp;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests when {@link ProgressiveScanner} finds previews can be decoded
+ */
+public class ProgressiveScannerTest extends TestCase {
+    private static final int[] SOI = {0xff, 0xd8};
+    private static final int[] EOI = {0xff, 0xd9};
+    // application segment whose payload looks like a start of scan, e.g. a thumbnail
+    private static final int[] APP1 = {0xff, 0xe1, 0x00, 0x06, 0xff, 0xda, 0xff, 0xda};
+    private static final int[] SOF0 = {0xff, 0xc0, 0x00, 0x03, 0x08};
+    private static final int[] SOF2 = {0xff, 0xc2, 0x00, 0x03, 0x08};
+    private static final int[] SOS = {0xff, 0xda, 0x00, 0x03, 0x01};
+    // entropy coded data with a stuffed byte and a restart marker
+    private static final int[] SCAN_DATA = {0x12, 0xff, 0x00, 0x34, 0xff, 0xd0, 0x56};
+
+    private long previewLength = -1;
+    private boolean previewJpeg;
+
+    public void testPreviewAfterScansOfProgressiveJpeg() throws Exception {
+        byte[] image = bytes(SOI, APP1, SOF2, SOS, SCAN_DATA, SOS, SCAN_DATA, SOS, SCAN_DATA, EOI);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ProgressiveScanner scanner = newScanner(output, image.length);
+        for (byte b : image) {
+            scanner.write(b);
+        }
+        scanner.close();
+        int thirdScan = SOI.length + APP1.length + SOF2.length + 2 * (SOS.length + SCAN_DATA.length);
+        assertEquals(thirdScan, previewLength);
+        assertTrue(previewJpeg);
+        assertEquals(image.length, output.size());
+    }
+
+    public void testNoPreviewOfBaselineJpeg() throws Exception {
+        scan(bytes(SOI, APP1, SOF0, SOS, SCAN_DATA, SOS, SCAN_DATA, SOS, SCAN_DATA, EOI), -1);
+        assertEquals(-1, previewLength);
+    }
+
+    public void testNoPreviewOfProgressiveJpegEndingEarly() throws Exception {
+        scan(bytes(SOI, SOF2, SOS, SCAN_DATA, SOS, SCAN_DATA, EOI), -1);
+        assertEquals(-1, previewLength);
+    }
+
+    public void testPreviewOfInterlacedPng() throws Exception {
+        byte[] image = png(1, 200);
+        scan(image, image.length);
+        assertEquals(image.length * ProgressiveScanner.PNG_PREVIEW_PERCENT / 100, previewLength);
+        assertFalse(previewJpeg);
+
+        previewLength = -1;
+        image = png(0, 200);
+        scan(image, image.length);
+        assertEquals(-1, previewLength);
+    }
+
+    private void scan(byte[] image, long contentLength) throws IOException {
+        ProgressiveScanner scanner = newScanner(new ByteArrayOutputStream(), contentLength);
+        scanner.write(image, 0, image.length);
+        scanner.close();
+    }
+
+    private ProgressiveScanner newScanner(ByteArrayOutputStream output, long contentLength) {
+        return new ProgressiveScanner(output, contentLength, new ProgressiveScanner.Listener() {
+            @Override
+            public void onPreviewAvailable(long length, boolean jpeg) {
+                assertEquals(-1, previewLength);
+                previewLength = length;
+                previewJpeg = jpeg;
+            }
+        });
+    }
+
+    private static byte[] png(int interlace, int length) {
+        byte[] png = new byte[length];
+        int[] header = {0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 0, 0, 0, 13, 'I', 'H', 'D', 'R',
+                0, 0, 1, 0, 0, 0, 1, 0, 8, 6, 0, 0, interlace};
+        for (int i = 0; i < header.length; i++) {
+            png[i] = (byte) header[i];
+        }
+        return png;
+    }
+
+    private static byte[] bytes(int[]... parts) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (int[] part : parts) {
+            for (int b : part) {
+                output.write(b);
+            }
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,32 @@
+package com.telly.wasp;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Tests {@link TeeInputStream} copies everything consumed, skipped or drained
+ */
+public class TeeInputStreamTest extends TestCase {
+
+    public void testCopiesReadSkippedAndDrainedBytes() throws Exception {
+        byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        TeeInputStream tee = new TeeInputStream(new ByteArrayInputStream(content), copy);
+
+        assertEquals(0, tee.read());
+        assertEquals(99, tee.read(new byte[99], 0, 99));
+        assertEquals(5000, tee.skip(5000));
+        assertEquals(5100, tee.getCount());
+        tee.drain();
+
+        assertEquals(content.length, tee.getCount());
+        assertEquals(-1, tee.read());
+        assertTrue(Arrays.equals(content, copy.toByteArray()));
+    }
+}
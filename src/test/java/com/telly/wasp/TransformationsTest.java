@@ -0,0 +1,42 @@
+package com.telly.wasp;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests keys of {@link Transformations} and their blur
+ */
+public class TransformationsTest extends TestCase {
+
+    public void testKeysTellParametersApart() throws Exception {
+        assertEquals(Transformations.centerCrop(100, 50).getKey(), Transformations.centerCrop(100, 50).getKey());
+        assertFalse(Transformations.centerCrop(100, 50).getKey().equals(Transformations.centerCrop(50, 100).getKey()));
+        assertFalse(Transformations.centerCrop(100, 50).getKey().equals(Transformations.resize(100, 50).getKey()));
+
+        Transformation chain = Transformations.chain(Transformations.centerCrop(10, 10), Transformations.circle());
+        assertEquals("centerCrop(10x10),circle", chain.getKey());
+        assertEquals("http://wasp/a#10x10|centerCrop(10x10),circle", BitmapHelper.cacheKey("http://wasp/a", 10, 10, chain));
+        assertEquals(BitmapHelper.cacheKey("http://wasp/a", 10, 10), BitmapHelper.cacheKey("http://wasp/a", 10, 10, null));
+    }
+
+    public void testBoxBlurSpreadsAndTransposes() throws Exception {
+        int width = 7;
+        int height = 3;
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, 0xff000000);
+        pixels[width + 3] = 0xff0000ff; // blue at (3, 1)
+        int[] transposed = new int[pixels.length];
+
+        Transformations.boxBlur(pixels, transposed, height, width, 1);
+        assertEquals(0xff000055, transposed[2 * height + 1]); // (2, 1) transposed
+        assertEquals(0xff000055, transposed[4 * height + 1]);
+        assertEquals(0xff000000, transposed[5 * height + 1]);
+        assertEquals(0xff000000, transposed[3 * height]); // other lines untouched
+
+        int[] blurred = new int[pixels.length];
+        Transformations.boxBlur(transposed, blurred, width, height, 1);
+        assertEquals(0xff00001c, blurred[3]); // (3, 0)
+        assertEquals(0xff000000, blurred[width]); // (0, 1)
+    }
+}
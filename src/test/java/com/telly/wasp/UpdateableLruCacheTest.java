@@ -0,0 +1,187 @@
+package com.telly.wasp;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests weighted size and eviction order of {@link UpdateableLruCache} and its policies
+ */
+public class UpdateableLruCacheTest extends TestCase {
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 50000;
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        final List<String> evicted = new ArrayList<String>();
+        UpdateableLruCache<String, Integer> cache = new UpdateableLruCache<String, Integer>(10) {
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evictedEntry, String key, Integer oldValue, Integer newValue) {
+                if (evictedEntry) {
+                    evicted.add(key);
+                }
+            }
+        };
+        cache.put("a", 3);
+        cache.put("b", 3);
+        cache.put("c", 3);
+        cache.get("a");
+        cache.put("d", 3);
+
+        assertEquals(1, evicted.size());
+        assertEquals("b", evicted.get(0));
+        assertEquals(9, cache.size());
+    }
+
+    public void testPutAgainUpdatesSize() throws Exception {
+        UpdateableLruCache<String, int[]> cache = new UpdateableLruCache<String, int[]>(100) {
+            @Override
+            protected int sizeOf(String key, int[] value) {
+                return value[0];
+            }
+        };
+        int[] entry = {0};
+        cache.put("a", entry);
+        assertEquals(0, cache.size());
+        entry[0] = 42;
+        cache.put("a", entry);
+        assertEquals(42, cache.size());
+        cache.remove("a");
+        assertEquals(0, cache.size());
+    }
+
+    public void testResizeEvictsOverNewMaximum() throws Exception {
+        UpdateableLruCache<String, Integer> cache = new UpdateableLruCache<String, Integer>(10) {
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+        };
+        cache.put("a", 3);
+        cache.put("b", 3);
+        cache.put("c", 3);
+        cache.resize(5);
+        assertEquals(5, cache.maxSize());
+        assertEquals(3, cache.size());
+        assertNotNull(cache.get("c"));
+
+        cache.resize(20);
+        cache.put("d", 10);
+        assertEquals(13, cache.size());
+        assertEquals(2, cache.evictionCount());
+    }
+
+    public void testTinyLfuKeepsPopularEntriesDuringScans() throws Exception {
+        int lruHitRate = scanHitRate(new LruPolicy<Integer, Integer>());
+        int tinyLfuHitRate = scanHitRate(new WindowTinyLfuPolicy<Integer, Integer>());
+        assertTrue("W-TinyLFU " + tinyLfuHitRate + "% vs LRU " + lruHitRate + "%", tinyLfuHitRate > 2 * lruHitRate);
+    }
+
+    public void testSwitchingPolicyKeepsEntries() throws Exception {
+        UpdateableLruCache<Integer, Integer> cache = new UpdateableLruCache<Integer, Integer>(50);
+        for (int i = 0; i < 50; i++) {
+            cache.put(i, i);
+        }
+        cache.setPolicy(new WindowTinyLfuPolicy<Integer, Integer>());
+        assertEquals(50, cache.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(Integer.valueOf(i), cache.get(i));
+        }
+        cache.put(50, 50);
+        assertEquals(50, cache.size());
+    }
+
+    public void testProbationaryEntriesNeverEvictOthers() throws Exception {
+        assertProbationaryEntriesNeverEvictOthers(new LruPolicy<String, Integer>());
+        assertProbationaryEntriesNeverEvictOthers(new WindowTinyLfuPolicy<String, Integer>());
+    }
+
+    private static void assertProbationaryEntriesNeverEvictOthers(EvictionPolicy<String, Integer> policy) {
+        UpdateableLruCache<String, Integer> cache = new UpdateableLruCache<String, Integer>(4, policy) {
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+        };
+        cache.put("a", 1);
+        cache.put("b", 1);
+        assertTrue(cache.putProbationary("p1", 1));
+        assertTrue(cache.putProbationary("p2", 2)); // evicts p1, the eldest probationary entry
+        assertFalse(cache.putProbationary("a", 1));
+        assertEquals(4, cache.size());
+        assertNull(cache.peek("p1"));
+        assertNotNull(cache.peek("a"));
+        assertNotNull(cache.peek("b"));
+
+        assertEquals(Integer.valueOf(2), cache.get("p2")); // read, a regular entry from now on
+        assertTrue(cache.putProbationary("p3", 1));
+        assertNull(cache.peek("p3"));
+        assertNotNull(cache.peek("p2"));
+    }
+
+    /**
+     * One out of three requests goes to a small popular set, the rest are never repeated
+     */
+    private static int scanHitRate(EvictionPolicy<Integer, Integer> policy) {
+        UpdateableLruCache<Integer, Integer> cache = new UpdateableLruCache<Integer, Integer>(100, policy);
+        Random random = new Random(1);
+        int oneOff = 100000;
+        int hits = 0;
+        int requests = 100000;
+        for (int i = 0; i < requests; i++) {
+            int key = i % 3 == 0 ? random.nextInt(80) : oneOff++;
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return 100 * hits / requests;
+    }
+
+    public void testSizeIsConsistentUnderContention() throws Exception {
+        final UpdateableLruCache<Integer, Integer> cache = new UpdateableLruCache<Integer, Integer>(1000) {
+            @Override
+            protected int sizeOf(Integer key, Integer value) {
+                return value % 5;
+            }
+        };
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        int key = random.nextInt(3000);
+                        if (random.nextInt(4) == 0) {
+                            cache.put(key, key);
+                        } else {
+                            cache.get(key);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int sum = 0;
+        Map<Integer, Integer> snapshot = cache.snapshot();
+        for (Integer value : snapshot.values()) {
+            sum += value % 5;
+        }
+        assertEquals(cache.size(), sum);
+        assertEquals(cache.cacheSize(), snapshot.size());
+        assertTrue(cache.size() <= cache.maxSize());
+    }
+}
@@ -0,0 +1,81 @@
+package com.telly.wasp;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests {@link WriteBehindQueue} coalesces writes by uri and keeps to its bound
+ */
+public class WriteBehindQueueTest extends TestCase {
+    private final List<String> written = new ArrayList<String>();
+    private final List<Runnable> scheduled = new ArrayList<Runnable>();
+    private WriteBehindQueue queue;
+
+    @Override
+    protected void setUp() throws Exception {
+        queue = new WriteBehindQueue(new WriteBehindQueue.Writer() {
+            @Override
+            public void write(WriteBehindQueue.Write write) throws IOException {
+                if (write.uri.startsWith("broken")) {
+                    throw new IOException("disk full");
+                }
+                written.add(write.uri);
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                scheduled.add(command);
+            }
+        });
+    }
+
+    public void testCoalescesPendingWritesOfSameUri() throws Exception {
+        queue.enqueue(null, "a", null);
+        queue.enqueue(null, "b", null);
+        queue.enqueue(null, "a", null);
+        assertEquals(1, scheduled.size()); // a single drainer at once
+        assertEquals(2, queue.backlog());
+        assertEquals(1, queue.coalescedCount());
+
+        runScheduled();
+        assertEquals(2, written.size());
+        assertEquals("a", written.get(0));
+        assertEquals("b", written.get(1));
+        assertEquals(0, queue.backlog());
+        assertTrue(queue.flush(1));
+
+        queue.enqueue(null, "broken", null);
+        queue.enqueue(null, "c", null);
+        runScheduled();
+        assertEquals("c", written.get(2));
+        assertEquals(1, queue.failedCount());
+        assertEquals(3, queue.writtenCount());
+        assertFalse(queue.flush(1)); // tells the failure once
+        assertTrue(queue.flush(1));
+    }
+
+    public void testDropsOldestWritesOverBound() throws Exception {
+        queue.setMaxPending(2);
+        queue.enqueue(null, "a", null);
+        queue.enqueue(null, "b", null);
+        queue.enqueue(null, "c", null);
+        assertEquals(2, queue.backlog());
+        assertEquals(1, queue.droppedCount());
+        assertFalse(queue.flush(1));
+
+        runScheduled();
+        assertEquals(2, written.size());
+        assertEquals("b", written.get(0));
+        assertEquals("c", written.get(1));
+    }
+
+    private void runScheduled() {
+        while (!scheduled.isEmpty()) {
+            scheduled.remove(0).run();
+        }
+    }
+}